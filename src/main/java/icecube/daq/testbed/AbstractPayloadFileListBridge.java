@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
@@ -21,10 +22,22 @@ public abstract class AbstractPayloadFileListBridge
     private static final Logger LOG =
         Logger.getLogger(AbstractPayloadFileListBridge.class);
 
+    /** Accumulate throttle delays until there's enough to sleep on */
+    private static final long MIN_THROTTLE_SLEEP = 1000000L;
+
+    /** Time to wait for a followed file to grow */
+    private static final long FOLLOW_POLL_NANOS = 100000000L;
+
     private int bundleSize;
     private int writeDelay;
     private int writeCount;
 
+    private volatile long throttleNanos;
+    private long throttleDebt;
+
+    /** Time spent in the most recent <tt>write()</tt>, excluding delays */
+    private long writeNanos;
+
     private String name;
     private File[] files;
     private int curIndex;
@@ -32,6 +45,7 @@ public abstract class AbstractPayloadFileListBridge
     private Thread thread;
     private int numSkipped;
     private int numWritten;
+    private volatile long numBytes;
     private int numToSkip;
     private int maxToWrite;
 
@@ -43,6 +57,9 @@ public abstract class AbstractPayloadFileListBridge
 
     private long lastTime;
 
+    /** If set, keep reading the last file until this file appears */
+    private File doneFile;
+
     /**
      * Create an output bridge which writes payloads from a list of files.
      *
@@ -59,6 +76,23 @@ public abstract class AbstractPayloadFileListBridge
         }
 
         curIndex = 0;
+
+        LatencyTracker.addBridge(this);
+    }
+
+    /**
+     * Finish a flight recorder event for a batch of payloads.
+     *
+     * @param evt batch event
+     */
+    private void commitBatch(FlightRecording.BridgeBatch evt)
+    {
+        evt.end();
+        if (evt.shouldCommit()) {
+            evt.bridge = name;
+            evt.lastTime = lastTime;
+            evt.commit();
+        }
     }
 
     /**
@@ -78,6 +112,26 @@ public abstract class AbstractPayloadFileListBridge
         return lastTime;
     }
 
+    /**
+     * Get the source name.
+     *
+     * @return name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Get the number of bytes written to the channel.
+     *
+     * @return number of bytes written
+     */
+    public long getNumberOfBytesWritten()
+    {
+        return numBytes;
+    }
+
     /**
      * Get the number of initial payloads which should be skipped.
      *
@@ -98,6 +152,19 @@ public abstract class AbstractPayloadFileListBridge
         return numWritten;
     }
 
+    /**
+     * Is the input thread still following a growing file?  Until the
+     * writer's "done" marker appears, a bridge which is waiting at the
+     * end of its last file has not run out of input, even though nothing
+     * is changing.
+     *
+     * @return <tt>true</tt> if more data may still be appended
+     */
+    public boolean isFollowing()
+    {
+        return doneFile != null && !stopped && !doneFile.exists();
+    }
+
     /**
      * Is the input thread paused?
      *
@@ -131,12 +198,57 @@ public abstract class AbstractPayloadFileListBridge
         }
     }
 
+    /**
+     * Fill a buffer from the input channel.  When following a growing
+     * file, wait at the end of the file for more data until the writer
+     * creates its "done" marker (or the thread is stopped).
+     *
+     * @param chanIn input channel
+     * @param buf buffer to fill
+     * @param follow "done" marker file, or <tt>null</tt> if the file is
+     *               not growing
+     *
+     * @return number of bytes read, which is less than requested only
+     *         at the end of the data
+     *
+     * @throws IOException if the channel cannot be read
+     */
+    private int readFully(ReadableByteChannel chanIn, ByteBuffer buf,
+                          File follow)
+        throws IOException
+    {
+        int total = 0;
+        boolean sawDone = false;
+        while (buf.hasRemaining()) {
+            final int num = chanIn.read(buf);
+            if (num > 0) {
+                total += num;
+                continue;
+            }
+
+            if (follow == null || stopping || sawDone) {
+                break;
+            }
+
+            if (follow.exists()) {
+                // the writer is finished; make one last attempt
+                sawDone = true;
+            } else {
+                LockSupport.parkNanos(FOLLOW_POLL_NANOS);
+            }
+        }
+
+        return total;
+    }
+
     /**
      * Read in payloads from a set of files and write them to the channel.
      */
     @Override
     public void run()
     {
+        ThreadAccounting.register(ThreadAccounting.BRIDGE);
+
         ByteBuffer lenBuf = ByteBuffer.allocate(4);
 
         boolean sendStop = true;
@@ -144,6 +256,10 @@ public abstract class AbstractPayloadFileListBridge
         for (int i = 0; running && i < files.length; i++) {
             ReadableByteChannel chanIn;
 
+            FlightRecording.BridgeOpen openEvt =
+                new FlightRecording.BridgeOpen();
+            openEvt.begin();
+
             FileInputStream fin;
             try {
                 fin = new FileInputStream(files[i]);
@@ -161,6 +277,14 @@ public abstract class AbstractPayloadFileListBridge
                 chanIn = fin.getChannel();
             }
 
+            openEvt.end();
+            if (openEvt.shouldCommit()) {
+                openEvt.bridge = name;
+                openEvt.file = files[i].getPath();
+                openEvt.compressed = files[i].getName().endsWith(".gz");
+                openEvt.commit();
+            }
+
             if (LOG.isInfoEnabled()) {
                 LOG.info("Opened " + files[i]);
             }
@@ -169,6 +293,13 @@ public abstract class AbstractPayloadFileListBridge
                 throw new Error("Found file \"" + files[i] + "\" after stop");
             }
 
+            // only the last file can still be growing
+            final File follow = (i == files.length - 1 ? doneFile : null);
+
+            FlightRecording.BridgeBatch batchEvt =
+                new FlightRecording.BridgeBatch();
+            batchEvt.begin();
+
             while (true) {
                 lenBuf.rewind();
 
@@ -187,20 +318,26 @@ public abstract class AbstractPayloadFileListBridge
                     break;
                 }
 
-                int numBytes;
+                final long readStart = System.nanoTime();
+
+                int lenBytes;
                 try {
-                    numBytes = chanIn.read(lenBuf);
+                    if (follow == null) {
+                        lenBytes = chanIn.read(lenBuf);
+                    } else {
+                        lenBytes = readFully(chanIn, lenBuf, follow);
+                    }
                 } catch (IOException ioe) {
                     throw new Error("Couldn't read length from " +
                                     files[curIndex].getName(), ioe);
                 }
 
-                if (numBytes <= 0) {
+                if (lenBytes <= 0) {
                     break;
                 }
 
-                if (numBytes < 4) {
-                    throw new Error("Incomplete payload (" + numBytes +
+                if (lenBytes < 4) {
+                    throw new Error("Incomplete payload (" + lenBytes +
                                     " bytes)");
                 }
 
@@ -212,6 +349,26 @@ public abstract class AbstractPayloadFileListBridge
                 ByteBuffer buf = ByteBuffer.allocate(len);
                 buf.putInt(len);
 
+                if (follow != null) {
+                    try {
+                        readFully(chanIn, buf, follow);
+                    } catch (IOException ioe) {
+                        throw new Error("Couldn't read data from " +
+                                        files[curIndex].getName(), ioe);
+                    }
+
+                    if (buf.position() != len) {
+                        if (stopping) {
+                            running = false;
+                            break;
+                        }
+
+                        throw new Error("Incomplete " + len + "-byte" +
+                                        " payload at end of " +
+                                        files[i].getName());
+                    }
+                }
+
                 while (buf.position() != len) {
                     try {
                         chanIn.read(buf);
@@ -221,6 +378,8 @@ public abstract class AbstractPayloadFileListBridge
                     }
                 }
 
+                final long readNanos = System.nanoTime() - readStart;
+
                 if (len >= 16) {
                     lastTime = buf.getLong(8);
                 }
@@ -248,7 +407,25 @@ public abstract class AbstractPayloadFileListBridge
                     break;
                 }
 
+                // pacing delays are deliberate, so they aren't latency
+                LatencyTracker.recordNanos(LatencyTracker.READER,
+                                           readNanos + writeNanos);
+
                 numWritten++;
+                numBytes += len;
+                PayloadValidation.submit(name, numWritten, buf);
+                BufferCacheProfiler.recordSize(BufferCacheProfiler.INPUT, len);
+
+                batchEvt.payloads++;
+                batchEvt.bytes += len;
+
+                if (numWritten % LatencyTracker.INGEST_INTERVAL == 0) {
+                    LatencyTracker.ingest();
+
+                    commitBatch(batchEvt);
+                    batchEvt = new FlightRecording.BridgeBatch();
+                    batchEvt.begin();
+                }
 
                 if (maxToWrite > 0 && numWritten > maxToWrite) {
                     running = false;
@@ -256,6 +433,10 @@ public abstract class AbstractPayloadFileListBridge
                 }
             }
 
+            if (batchEvt.payloads > 0) {
+                commitBatch(batchEvt);
+            }
+
             try {
                 chanIn.close();
             } catch (IOException ioe) {
@@ -282,6 +463,25 @@ public abstract class AbstractPayloadFileListBridge
 
         stopped = true;
         stopping = false;
+
+        // drop this bridge from the latency watermark
+        LatencyTracker.ingest();
+
+        ThreadAccounting.unregister();
+
+        ActivitySignal.signal();
+    }
+
+    /**
+     * Follow the last file as it grows, like <tt>tail -f</tt>, until
+     * <tt>doneFile</tt> appears.  While the bridge is following,
+     * <tt>ActivityMonitor</tt> does not treat a quiet pipeline as static.
+     *
+     * @param doneFile marker file created once the last file is complete
+     */
+    public void setFollow(File doneFile)
+    {
+        this.doneFile = doneFile;
     }
 
     /**
@@ -316,6 +516,16 @@ public abstract class AbstractPayloadFileListBridge
         writeDelay = msecSleep;
     }
 
+    /**
+     * Slow down the input thread by adding a delay after every payload.
+     *
+     * @param nanos per-payload delay in nanoseconds (0 for full speed)
+     */
+    public void setThrottleDelay(long nanos)
+    {
+        throttleNanos = nanos;
+    }
+
     /**
      * Start the input thread.
      */
@@ -365,7 +575,21 @@ public abstract class AbstractPayloadFileListBridge
             }
         }
 
+        final long writeStart = System.nanoTime();
         write(buf);
+        writeNanos = System.nanoTime() - writeStart;
+
+        final long delay = throttleNanos;
+        if (delay <= 0) {
+            throttleDebt = 0;
+        } else {
+            // sleep in larger chunks so the average rate is accurate
+            throttleDebt += delay;
+            if (throttleDebt >= MIN_THROTTLE_SLEEP) {
+                LockSupport.parkNanos(throttleDebt);
+                throttleDebt = 0;
+            }
+        }
 
         Thread.yield();
     }
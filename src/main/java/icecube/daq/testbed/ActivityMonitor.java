@@ -13,13 +13,16 @@ import java.io.PrintStream;
  */
 public abstract class ActivityMonitor
 {
-    private static final long MAX_QUEUED = 100000;
-
     private static final long MAX_TIME_DIFF = 10000000000L;
 
     private static final int PROGRESS_FREQUENCY = 100;
     private static final int MONITOR_FREQUENCY = 4;
 
+    /** Milliseconds between checks when nothing signals a change */
+    private static final long POLL_MSEC = 100;
+    /** Milliseconds to wait for stragglers once everything has stopped */
+    private static final long SETTLE_MSEC = 20;
+
     protected Consumer consumer;
 
     private AbstractPayloadFileListBridge[] bridges;
@@ -36,6 +39,13 @@ public abstract class ActivityMonitor
 
     private MemoryStatistics memoryStats = new MemoryStatistics();
 
+    private BackpressureController backpressure =
+        new BackpressureController();
+
+    private TestbedMonitor mbean;
+
+    private TimeSeriesWriter series;
+
     ActivityMonitor(AbstractPayloadFileListBridge[] bridges, Consumer consumer,
                     int maxFailures)
     {
@@ -112,12 +122,14 @@ public abstract class ActivityMonitor
                     bridge.getLastTime() - latestTime < MAX_TIME_DIFF)
                 {
                     bridge.unpause();
+                    recordThrottle(bridge, false, latestTime);
                 }
 
                 if (!bridge.isPaused() &&
                     bridge.getLastTime() - earliestTime > MAX_TIME_DIFF)
                 {
                     bridge.pause();
+                    recordThrottle(bridge, true, earliestTime);
                 }
             }
         }
@@ -176,6 +188,30 @@ public abstract class ActivityMonitor
 
     public abstract String getName();
 
+    /**
+     * Get the total number of payloads written by the input bridges.
+     *
+     * @return number of input payloads
+     */
+    long getNumberOfInputPayloads()
+    {
+        long total = 0;
+        for (AbstractPayloadFileListBridge bridge : bridges) {
+            total += bridge.getNumberWritten();
+        }
+        return total;
+    }
+
+    /**
+     * Get the current input throttle level.
+     *
+     * @return 0.0 (full speed) to 1.0 (stopped)
+     */
+    double getThrottleLevel()
+    {
+        return backpressure.getLevel();
+    }
+
     long getNumberOfQueuedInputs()
     {
         return queuedIn;
@@ -263,6 +299,16 @@ public abstract class ActivityMonitor
         sent = value;
     }
 
+    /**
+     * Set the writer which records machine-readable monitoring samples.
+     *
+     * @param series time series writer (or <tt>null</tt>)
+     */
+    void setTimeSeries(TimeSeriesWriter series)
+    {
+        this.series = series;
+    }
+
     /**
      * Set "stopped" state
      *
@@ -273,68 +319,184 @@ public abstract class ActivityMonitor
         stopped = val;
     }
 
+    /**
+     * Wait until the monitored pipeline either stops or stops changing.
+     * The monitor is woken by <tt>ActivitySignal</tt> events as soon as
+     * any part of the pipeline changes state; the polling interval is only
+     * a fallback for components which don't signal.
+     *
+     * A pipeline is never considered static while any input bridge is
+     * still following a growing file whose "done" marker hasn't appeared,
+     * since the writer may simply be slower than the pipeline.  Only
+     * <tt>maxReps</tt> limits how long such a run can wait.
+     *
+     * @param staticReps number of polling intervals without any change
+     *                   before giving up
+     * @param maxReps maximum number of polling intervals to wait
+     * @param stoppedReps number of consecutive checks which must find
+     *                    everything stopped
+     * @param verbose if <tt>true</tt>, print periodic progress reports
+     * @param dumpSplicers if <tt>true</tt>, include splicer state in
+     *                     progress reports
+     * @param monOut if non-null, write periodic monitoring data here
+     *
+     * @return <tt>true</tt> if the pipeline stopped changing without
+     *         stopping
+     */
     boolean waitForStasis(int staticReps, int maxReps, int stoppedReps,
                           boolean verbose, boolean dumpSplicers,
                           PrintStream monOut)
     {
-        final int sleepMSec = 100;
-
         final PrintStream out = System.out;
 
-        int numStatic = 0;
+        if (mbean == null) {
+            mbean = new TestbedMonitor(this, bridges, consumer);
+            mbean.register();
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final long staticMSec = staticReps * POLL_MSEC;
+        final long maxMSec = maxReps * POLL_MSEC;
+
+        long lastChange = startTime;
+        long lastProgress = -1;
+        long lastMonitor = -1;
+        long lastSample = -1;
+
         int numStopped = 0;
-        for (int i = 0; i < maxReps; i++) {
-            boolean changed = check();
+        boolean isStatic = false;
+        while (true) {
+            final long events = ActivitySignal.getEventCount();
+
+            final boolean changed = check();
+            final long now = System.currentTimeMillis();
             if (changed) {
-                numStatic = 0;
+                lastChange = now;
                 numStopped = 0;
             } else if (isStopped()) {
                 numStopped++;
-            } else {
-                numStatic++;
             }
 
-            if (changed && (queuedIn > MAX_QUEUED || queuedOut > MAX_QUEUED) &&
-                !isInputPaused())
-            {
-                pauseInput();
-                if (verbose) {
-                    System.err.println("!! Pausing reader");
-                }
-            } else if (changed &&
-                       (queuedIn <= MAX_QUEUED && queuedOut <= MAX_QUEUED) &&
-                       isInputPaused())
-            {
-                resumeInput();
-                if (verbose) {
-                    System.err.println("!! Unpausing reader");
-                }
+            if (!isStopped()) {
+                throttle(changed, verbose);
+            }
+
+            final long tick = (now - startTime) / POLL_MSEC;
+            if (verbose && tick / PROGRESS_FREQUENCY != lastProgress) {
+                lastProgress = tick / PROGRESS_FREQUENCY;
+                dumpProgress(out, (int) tick, dumpSplicers);
             }
 
-            if (verbose && i % PROGRESS_FREQUENCY == 0) {
-                dumpProgress(out, i, dumpSplicers);
+            if (monOut != null && tick / MONITOR_FREQUENCY != lastMonitor) {
+                lastMonitor = tick / MONITOR_FREQUENCY;
+                dumpMonitoring(monOut, (int) tick);
             }
 
-            if (monOut != null && i % MONITOR_FREQUENCY == 0) {
-                dumpMonitoring(monOut, i);
+            if (series != null && tick / MONITOR_FREQUENCY != lastSample) {
+                lastSample = tick / MONITOR_FREQUENCY;
+                series.sample(this, bridges, consumer.getNumberWritten());
             }
 
-            if (numStatic >= staticReps || numStopped >= stoppedReps) {
+            isStatic = !isStopped() && now - lastChange >= staticMSec &&
+                !isFollowingInput();
+            if (isStatic || numStopped >= stoppedReps) {
                 System.out.println(getMonitoredName() + " was static for " +
-                                   numStatic + " reps" +
+                                   (now - lastChange) + " ms" +
                                    (numStopped == 0 ? "" :
-                                    ", stopped for " + numStopped + " reps"));
+                                    ", stopped for " + numStopped +
+                                    " checks"));
+                break;
+            }
+
+            if (now - startTime >= maxMSec) {
+                System.out.println(getMonitoredName() + " was still active" +
+                                   " after " + (now - startTime) + " ms");
                 break;
             }
 
-            try {
-                Thread.sleep(sleepMSec);
-            } catch (InterruptedException ie) {
-                // ignore errors
+            // once everything looks stopped, only wait long enough to
+            // confirm that nothing else is in flight
+            ActivitySignal.await(events,
+                                 isStopped() ? SETTLE_MSEC : POLL_MSEC);
+        }
+
+        if (series != null) {
+            series.sample(this, bridges, consumer.getNumberWritten());
+        }
+
+        return isStatic;
+    }
+
+    /**
+     * Is any input bridge still waiting for a growing file to be
+     * completed?
+     *
+     * @return <tt>true</tt> if more input may still arrive
+     */
+    private boolean isFollowingInput()
+    {
+        for (AbstractPayloadFileListBridge bridge : bridges) {
+            if (bridge.isFollowing()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Record a bridge pause or resume in the flight recording.
+     *
+     * @param bridge input bridge
+     * @param paused <tt>true</tt> if the bridge was paused
+     * @param refTime time of the bridge it was compared against
+     */
+    private static void recordThrottle(AbstractPayloadFileListBridge bridge,
+                                       boolean paused, long refTime)
+    {
+        FlightRecording.BridgeThrottle evt =
+            new FlightRecording.BridgeThrottle();
+        if (evt.shouldCommit()) {
+            evt.bridge = bridge.getName();
+            evt.paused = paused;
+            evt.payloadTime = bridge.getLastTime();
+            evt.skew = bridge.getLastTime() - refTime;
+            evt.commit();
+        }
+    }
+
+    /**
+     * Slow down or pause the input bridges to keep queue growth and heap
+     * usage under control.
+     *
+     * @param changed <tt>true</tt> if the pipeline changed since the last
+     *                check (only needed to pause input)
+     * @param verbose if <tt>true</tt>, report pauses and resumes
+     */
+    private void throttle(boolean changed, boolean verbose)
+    {
+        final double prevLevel = backpressure.getLevel();
+        backpressure.update(queuedIn, queuedOut);
+
+        if (backpressure.getLevel() != prevLevel) {
+            final long delay = backpressure.getDelayNanos();
+            for (AbstractPayloadFileListBridge bridge : bridges) {
+                bridge.setThrottleDelay(delay);
             }
         }
 
-        return numStatic >= staticReps;
+        if (changed && backpressure.isSaturated() && !isInputPaused()) {
+            pauseInput();
+            if (verbose) {
+                System.err.println("!! Pausing reader: " + backpressure);
+            }
+        } else if (!backpressure.isSaturated() && isInputPaused()) {
+            // paused input may leave nothing changing, so don't wait for it
+            resumeInput();
+            if (verbose) {
+                System.err.println("!! Unpausing reader: " + backpressure);
+            }
+        }
     }
 
     /**
@@ -355,10 +517,10 @@ public abstract class ActivityMonitor
         long[] stats = memoryStats.getMemoryStatistics();
 
         summarized = stopped;
-        return String.format(" %s%s %d->%d->%d->%d->%d%s | %d / %d",
+        return String.format(" %s%s %d->%d->%d->%d->%d%s | %d / %d | %s",
                              getName(), rdStopped, getNumberReceived(),
                              getNumberOfQueuedInputs(), getNumberProcessed(),
                              getNumberOfQueuedOutputs(), getNumberSent(),
-                             wrStopped, stats[0], stats[1]);
+                             wrStopped, stats[0], stats[1], backpressure);
     }
 }
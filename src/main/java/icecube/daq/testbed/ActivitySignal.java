@@ -0,0 +1,77 @@
+package icecube.daq.testbed;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide event counter used to wake up <tt>ActivityMonitor</tt> as
+ * soon as some part of the pipeline changes state (a bridge finishes,
+ * a queue drains, a stop message arrives), rather than waiting for the
+ * next polling interval.
+ */
+abstract class ActivitySignal
+{
+    private static final Object LOCK = new Object();
+
+    private static AtomicLong events = new AtomicLong();
+    private static volatile int numWaiting;
+
+    /**
+     * Wait for a new event.
+     *
+     * @param seen event count returned by the last call to
+     *             <tt>getEventCount()</tt>
+     * @param maxMillis maximum number of milliseconds to wait
+     *
+     * @return <tt>true</tt> if a new event arrived
+     */
+    static boolean await(long seen, long maxMillis)
+    {
+        final long deadline = System.currentTimeMillis() + maxMillis;
+
+        synchronized (LOCK) {
+            numWaiting++;
+            try {
+                while (events.get() == seen) {
+                    final long remaining =
+                        deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+
+                    try {
+                        LOCK.wait(remaining);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            } finally {
+                numWaiting--;
+            }
+        }
+
+        return events.get() != seen;
+    }
+
+    /**
+     * Get the current event count.
+     *
+     * @return number of events signalled so far
+     */
+    static long getEventCount()
+    {
+        return events.get();
+    }
+
+    /**
+     * Record an event and wake up any waiting monitor.
+     */
+    static void signal()
+    {
+        events.incrementAndGet();
+        if (numWaiting > 0) {
+            synchronized (LOCK) {
+                LOCK.notifyAll();
+            }
+        }
+    }
+}
@@ -18,7 +18,6 @@ import icecube.daq.trigger.exceptions.IllegalParameterValueException;
 import icecube.daq.trigger.exceptions.TriggerException;
 import icecube.daq.trigger.exceptions.UnknownParameterException;
 import icecube.daq.util.CodeTimer;
-import icecube.daq.util.DOMRegistryFactory;
 import icecube.daq.util.IDOMRegistry;
 
 import java.util.ArrayList;
@@ -32,6 +31,7 @@ class ManagerWrapper
     implements ITriggerManager
 {
     private ITriggerManager mgr;
+    private IDOMRegistry registry;
 
     ManagerWrapper(ITriggerManager mgr)
     {
@@ -71,11 +71,22 @@ class ManagerWrapper
     @Override
     public IDOMRegistry getDOMRegistry()
     {
-        try {
-            return DOMRegistryFactory.load();
-        } catch (Exception ex) {
-            throw new Error("Cannot load DOM registry", ex);
+        if (registry == null) {
+            // use the wrapped manager's registry if it has one
+            if (mgr != null) {
+                registry = mgr.getDOMRegistry();
+            }
+
+            if (registry == null) {
+                try {
+                    registry = DOMRegistryCache.load();
+                } catch (Exception ex) {
+                    throw new Error("Cannot load DOM registry", ex);
+                }
+            }
         }
+
+        return registry;
     }
 
     @Override
@@ -175,11 +186,51 @@ public class AlgorithmDeathmatch
     private int numFailed;
     private int numWritten;
 
+    /** Number of payloads which can be queued for the parallel runners */
+    private static final int RING_SIZE = 4096;
+
+    /** Index of each algorithm in the ring and reconciler */
+    private static final int OLD_INDEX = 0;
+    private static final int NEW_INDEX = 1;
+
+    /** If <tt>null</tt>, algorithms are run serially on the caller's thread */
+    private BroadcastRing ring;
+    private ReleaseReconciler reconciler;
+    private AlgorithmRunner oldRunner;
+    private AlgorithmRunner newRunner;
+    private long parallelStart;
+    private long parallelNanos;
+
     public AlgorithmDeathmatch(ITriggerAlgorithm newAlgorithm,
                                ITriggerAlgorithm oldAlgorithm)
+    {
+        this(newAlgorithm, oldAlgorithm, false);
+    }
+
+    /**
+     * Pit two algorithms against each other.
+     *
+     * @param newAlgorithm algorithm being tested
+     * @param oldAlgorithm reference algorithm
+     * @param parallel if <tt>true</tt>, run each algorithm on its own thread
+     *                 and compare released requests asynchronously
+     */
+    public AlgorithmDeathmatch(ITriggerAlgorithm newAlgorithm,
+                               ITriggerAlgorithm oldAlgorithm,
+                               boolean parallel)
     {
         this.newAlgorithm = newAlgorithm;
         this.oldAlgorithm = oldAlgorithm;
+
+        if (parallel) {
+            ring = new BroadcastRing(RING_SIZE, 2);
+            reconciler =
+                new ReleaseReconciler(new String[] { "old", "new" });
+            oldRunner = new AlgorithmRunner(oldAlgorithm, oldTimer, ring,
+                                            OLD_INDEX, reconciler);
+            newRunner = new AlgorithmRunner(newAlgorithm, newTimer, ring,
+                                            NEW_INDEX, reconciler);
+        }
     }
 
     @Override
@@ -234,9 +285,32 @@ public class AlgorithmDeathmatch
         throw new Error("Unimplemented");
     }
 
+    /**
+     * Wait until the parallel runners have processed all queued payloads.
+     * The caller must hold <tt>runLock</tt> so no new payloads are queued
+     * before it has finished with the algorithms.
+     *
+     * @throws Error if a runner thread died
+     */
+    private void drain()
+    {
+        if (ring != null) {
+            ring.waitForDrain();
+        }
+    }
+
     @Override
     public void flush()
     {
+        if (ring != null) {
+            synchronized (runLock) {
+                startRunners();
+                ring.publish(AlgorithmRunner.FLUSH);
+                drain();
+            }
+            return;
+        }
+
         final int pos = 2;
 
         final boolean oldFirst = random.nextBoolean();
@@ -261,6 +335,14 @@ public class AlgorithmDeathmatch
     @Override
     public IPayload getEarliestPayloadOfInterest()
     {
+        if (ring != null) {
+            // algorithms aren't in lockstep, so there's nothing to compare
+            synchronized (runLock) {
+                drain();
+                return oldAlgorithm.getEarliestPayloadOfInterest();
+            }
+        }
+
         final int pos = 3;
 
         IPayload oldPay = null;
@@ -299,12 +381,25 @@ public class AlgorithmDeathmatch
             return -1;
         }
 
+        if (ring != null) {
+            return subscriber.size() + (int) ring.backlog() +
+                reconciler.getNumberQueued();
+        }
+
         return subscriber.size();
     }
 
     @Override
     public Interval getInterval(Interval interval)
     {
+        if (ring != null) {
+            // algorithms aren't in lockstep, so there's nothing to compare
+            synchronized (runLock) {
+                drain();
+                return oldAlgorithm.getInterval(interval);
+            }
+        }
+
         final int pos = 5;
 
         Interval oldIval = null;
@@ -342,6 +437,14 @@ public class AlgorithmDeathmatch
 
     @Override
     public long getLatency()
+    {
+        synchronized (runLock) {
+            drain();
+            return getLatencyLocked();
+        }
+    }
+
+    private long getLatencyLocked()
     {
         final int pos = 6;
 
@@ -404,12 +507,22 @@ public class AlgorithmDeathmatch
      */
     public int getNumberFailed()
     {
+        if (ring != null) {
+            return reconciler.getNumberFailed() +
+                oldRunner.getNumberOfErrors() + newRunner.getNumberOfErrors();
+        }
+
         return numFailed;
     }
 
     @Override
     public int getNumberOfCachedRequests()
     {
+        if (ring != null) {
+            // algorithms aren't in lockstep, so there's nothing to compare
+            return oldRunner.getNumberOfCachedRequests();
+        }
+
         final int pos = 7;
 
         int oldVal = Integer.MIN_VALUE, newVal = Integer.MIN_VALUE;
@@ -448,6 +561,10 @@ public class AlgorithmDeathmatch
      */
     public int getNumberWritten()
     {
+        if (ring != null) {
+            return reconciler.getNumberCompared();
+        }
+
         return numWritten;
     }
 
@@ -474,6 +591,11 @@ public class AlgorithmDeathmatch
     @Override
     public long getSentTriggerCount()
     {
+        if (ring != null) {
+            // algorithms aren't in lockstep, so there's nothing to compare
+            return oldRunner.getSentTriggerCount();
+        }
+
         final int pos = 9;
 
         long oldVal = Long.MIN_VALUE, newVal = Long.MIN_VALUE;
@@ -511,8 +633,16 @@ public class AlgorithmDeathmatch
         return oldAlgorithm.getSourceId();
     }
 
+    /**
+     * Get timing statistics.  Parallel runners are stopped first, since
+     * the algorithms cannot be examined while they're running.
+     *
+     * @return statistics
+     */
     public String getStats()
     {
+        stopRunners();
+
         final double oldTotal = (double) oldTimer.getTotalTime();
         final double newTotal = (double) newTimer.getTotalTime();
 
@@ -529,10 +659,24 @@ public class AlgorithmDeathmatch
                               newTime, oldTime, newTime - oldTime);
         }
 
+        String parStr;
+        if (ring == null) {
+            parStr = "";
+        } else {
+            final double wallSecs = (double) parallelNanos / 1000000000.0;
+            final double oldSecs =
+                (double) oldRunner.getBusyNanos() / 1000000000.0;
+            final double newSecs =
+                (double) newRunner.getBusyNanos() / 1000000000.0;
+            parStr = String.format("\nParallel: old busy %.2fs, new busy" +
+                                   " %.2fs, wall %.2fs", oldSecs, newSecs,
+                                   wallSecs) + "\n" + reconciler;
+        }
+
         return oldTimer.getStats(oldAlgorithm.getClass().getName()) + "\n" +
             newTimer.getStats(newAlgorithm.getClass().getName()) + "\n" +
             String.format("Old algorithm takes %.2f%% as long as new",
-                          (oldTotal / newTotal) * 100.0) + timeStr;
+                          (oldTotal / newTotal) * 100.0) + timeStr + parStr;
     }
 
     @Override
@@ -550,6 +694,11 @@ public class AlgorithmDeathmatch
     @Override
     public int getTriggerCounter()
     {
+        if (ring != null) {
+            // algorithms aren't in lockstep, so there's nothing to compare
+            return oldRunner.getTriggerCounter();
+        }
+
         final int pos = 13;
 
         int oldVal = Integer.MIN_VALUE, newVal = Integer.MIN_VALUE;
@@ -602,6 +751,11 @@ public class AlgorithmDeathmatch
     @Override
     public boolean hasCachedRequests()
     {
+        if (ring != null) {
+            // algorithms aren't in lockstep, so there's nothing to compare
+            return oldRunner.hasCachedRequests();
+        }
+
         final int pos = 16;
 
         boolean oldVal = false, newVal = false;
@@ -644,6 +798,14 @@ public class AlgorithmDeathmatch
 
     @Override
     public boolean hasValidMultiplicity()
+    {
+        synchronized (runLock) {
+            drain();
+            return hasValidMultiplicityLocked();
+        }
+    }
+
+    private boolean hasValidMultiplicityLocked()
     {
         final int pos = 18;
 
@@ -677,6 +839,14 @@ public class AlgorithmDeathmatch
 
     @Override
     public boolean isConfigured()
+    {
+        synchronized (runLock) {
+            drain();
+            return isConfiguredLocked();
+        }
+    }
+
+    private boolean isConfiguredLocked()
     {
         final int pos = 19;
 
@@ -721,6 +891,15 @@ public class AlgorithmDeathmatch
 
     @Override
     public void recycleUnusedRequests()
+    {
+        synchronized (runLock) {
+            drain();
+            recycleUnusedRequestsLocked();
+            updateRunnerCounters();
+        }
+    }
+
+    private void recycleUnusedRequestsLocked()
     {
         final int pos = 20;
         final boolean oldFirst = random.nextBoolean();
@@ -746,6 +925,15 @@ public class AlgorithmDeathmatch
 
     @Override
     public void resetAlgorithm()
+    {
+        synchronized (runLock) {
+            drain();
+            resetAlgorithmLocked();
+            updateRunnerCounters();
+        }
+    }
+
+    private void resetAlgorithmLocked()
     {
         final int pos = 22;
 
@@ -765,6 +953,14 @@ public class AlgorithmDeathmatch
 
     @Override
     public void resetUID()
+    {
+        synchronized (runLock) {
+            drain();
+            resetUIDLocked();
+        }
+    }
+
+    private void resetUIDLocked()
     {
         final int pos = 23;
 
@@ -789,6 +985,12 @@ public class AlgorithmDeathmatch
         final int pos = 30;
 
         synchronized (runLock) {
+            if (ring != null) {
+                startRunners();
+                ring.publish(AlgorithmRunner.copyPayload(payload, 2));
+                return;
+            }
+
             final boolean oldFirst = random.nextBoolean();
             for (int i = 0; i < 2; i++) {
                 ITriggerAlgorithm algo = getRandomAlgorithm(oldFirst, i);
@@ -806,6 +1008,15 @@ public class AlgorithmDeathmatch
 
     @Override
     public void sendLast()
+    {
+        synchronized (runLock) {
+            drain();
+            sendLastLocked();
+            updateRunnerCounters();
+        }
+    }
+
+    private void sendLastLocked()
     {
         final int pos = 40;
 
@@ -823,8 +1034,8 @@ public class AlgorithmDeathmatch
         }
     }
 
-    private static int releaseAll(ITriggerAlgorithm algorithm,
-                                  List<ITriggerRequestPayload> released)
+    static int releaseAll(ITriggerAlgorithm algorithm,
+                          List<ITriggerRequestPayload> released)
     {
         int numReleased = 0;
         while (true) {
@@ -848,6 +1059,11 @@ public class AlgorithmDeathmatch
     @Override
     public void setChanged()
     {
+        if (ring != null) {
+            // each runner releases its own algorithm's requests
+            return;
+        }
+
         final int pos = 42;
 
         final boolean oldFirst = random.nextBoolean();
@@ -879,6 +1095,15 @@ public class AlgorithmDeathmatch
             if (!PayloadComparison.compareTriggerRequest(oldReq, newReq, true,
                                                          false))
             {
+                FlightRecording.AlgorithmMismatch evt =
+                    new FlightRecording.AlgorithmMismatch();
+                if (evt.shouldCommit()) {
+                    evt.algorithm = newAlgorithm.getTriggerName();
+                    evt.expected = oldReq.toString();
+                    evt.received = newReq.toString();
+                    evt.commit();
+                }
+
                 throw new Error("Expected " + oldReq + ", got " + newReq);
             }
         }
@@ -917,8 +1142,13 @@ public class AlgorithmDeathmatch
     @Override
     public void setTriggerCollector(ITriggerCollector collector)
     {
-        oldAlgorithm.setTriggerCollector(this);
-        newAlgorithm.setTriggerCollector(this);
+        if (ring != null) {
+            oldAlgorithm.setTriggerCollector(oldRunner);
+            newAlgorithm.setTriggerCollector(newRunner);
+        } else {
+            oldAlgorithm.setTriggerCollector(this);
+            newAlgorithm.setTriggerCollector(this);
+        }
     }
 
     @Override
@@ -986,6 +1216,55 @@ public class AlgorithmDeathmatch
         }
     }
 
+    private void startRunners()
+    {
+        if (parallelStart == 0L) {
+            parallelStart = System.nanoTime();
+            oldRunner.start("OldAlgorithm");
+            newRunner.start("NewAlgorithm");
+        }
+    }
+
+    /**
+     * Wait for the parallel algorithm threads to process all queued
+     * payloads, then stop them and finish comparing released requests.
+     * This does nothing if the algorithms are run serially.
+     */
+    public void stopRunners()
+    {
+        if (ring == null || ring.isStopped()) {
+            return;
+        }
+
+        synchronized (runLock) {
+            // runner failures have already been logged and counted
+            ring.awaitDrain();
+            if (parallelStart != 0L) {
+                final long lastDone = Math.max(oldRunner.getLastDoneNanos(),
+                                               newRunner.getLastDoneNanos());
+                parallelNanos = lastDone - parallelStart;
+            }
+            ring.stop();
+        }
+
+        oldRunner.join();
+        newRunner.join();
+        reconciler.close();
+    }
+
+    /**
+     * Refresh the runners' saved counters after the algorithms were
+     * changed on this thread.  The caller must hold <tt>runLock</tt> and
+     * the ring must be drained.
+     */
+    private void updateRunnerCounters()
+    {
+        if (ring != null) {
+            oldRunner.updateCounters();
+            newRunner.updateCounters();
+        }
+    }
+
     @Override
     public void unsubscribe(SubscribedList list)
     {
@@ -1006,6 +1285,7 @@ public class AlgorithmDeathmatch
     @Override
     public String toString()
     {
-        return "Deathmatch[" + oldAlgorithm + " <=> " + newAlgorithm + "]";
+        return "Deathmatch[" + oldAlgorithm + " <=> " + newAlgorithm +
+            (ring == null ? "" : ", " + ring) + "]";
     }
 }
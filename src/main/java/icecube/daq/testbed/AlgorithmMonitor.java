@@ -138,6 +138,14 @@ class AlgorithmMonitor
     @Override
     public boolean isOutputStopped()
     {
+        // payloads may still be working their way through the splicer
+        if (subscriber instanceof SplicerSubscriber &&
+            ((SplicerSubscriber) subscriber).getNumberReceived() <
+            getNumberReceived())
+        {
+            return false;
+        }
+
         if (algorithm.getInputQueueSize() > 0) {
             return false;
         }
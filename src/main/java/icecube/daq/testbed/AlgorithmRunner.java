@@ -0,0 +1,385 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.IPayload;
+import icecube.daq.payload.ITriggerRequestPayload;
+import icecube.daq.trigger.algorithm.ITriggerAlgorithm;
+import icecube.daq.trigger.control.ITriggerCollector;
+import icecube.daq.util.CodeTimer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Run a single trigger algorithm on its own thread, reading payloads from
+ * a shared broadcast ring and passing released requests to a reconciler.
+ *
+ * Algorithms load and keep the payloads they're given, so payloads must
+ * be published as an array built by <tt>copyPayload()</tt> which holds a
+ * separate copy for each runner.
+ */
+class AlgorithmRunner
+    implements ITriggerCollector, Runnable
+{
+    private static final Logger LOG = Logger.getLogger(AlgorithmRunner.class);
+
+    /** Ring entry which tells the algorithm to flush its cached requests */
+    static final Object FLUSH = new Object();
+
+    /** CodeTimer position for runTrigger() */
+    static final int RUN_POS = 30;
+    /** CodeTimer position for flush() */
+    static final int FLUSH_POS = 2;
+    /** CodeTimer position for releasing requests */
+    static final int RELEASE_POS = 42;
+
+    /** Per-method timing index for runTrigger() */
+    static final int RUN_METHOD = 0;
+    /** Per-method timing index for releasing requests */
+    static final int RELEASE_METHOD = 1;
+    /** Per-method timing index for flush() */
+    static final int FLUSH_METHOD = 2;
+    /** Number of per-method timing slots */
+    static final int NUM_METHODS = 3;
+
+    private ITriggerAlgorithm algorithm;
+    private CodeTimer timer;
+    private BroadcastRing ring;
+    private int index;
+    private ReleaseReconciler reconciler;
+
+    private List<ITriggerRequestPayload> released =
+        new ArrayList<ITriggerRequestPayload>();
+
+    private Thread thread;
+    private long busyNanos;
+    private volatile long lastDoneNanos;
+    private int numErrors;
+
+    /** Algorithm counters as of the most recently processed payload */
+    private volatile int numCached;
+    private volatile boolean hasCached;
+    private volatile int triggerCounter;
+    private volatile long sentTriggerCount;
+
+    /** Time spent in each method, excluding nested releases */
+    private long[] methodNanos = new long[NUM_METHODS];
+    private long[] methodCalls = new long[NUM_METHODS];
+
+    /**
+     * Create an algorithm runner.
+     *
+     * @param algorithm trigger algorithm
+     * @param timer timer for this algorithm's methods
+     * @param ring source of payloads
+     * @param index this runner's consumer index in <tt>ring</tt> and
+     *              side index in <tt>reconciler</tt>
+     * @param reconciler consumer of released requests
+     */
+    AlgorithmRunner(ITriggerAlgorithm algorithm, CodeTimer timer,
+                    BroadcastRing ring, int index,
+                    ReleaseReconciler reconciler)
+    {
+        this.algorithm = algorithm;
+        this.timer = timer;
+        this.ring = ring;
+        this.index = index;
+        this.reconciler = reconciler;
+    }
+
+    /**
+     * Build a ring entry holding a separate copy of a payload for each
+     * runner.
+     *
+     * @param payload original payload (which is not handed to any runner)
+     * @param numRunners number of runners reading from the ring
+     *
+     * @return array of payload copies, indexed by runner
+     */
+    static IPayload[] copyPayload(IPayload payload, int numRunners)
+    {
+        IPayload[] copies = new IPayload[numRunners];
+        for (int i = 0; i < numRunners; i++) {
+            copies[i] = (IPayload) payload.deepCopy();
+        }
+        return copies;
+    }
+
+    /**
+     * Get the algorithm.
+     *
+     * @return trigger algorithm
+     */
+    ITriggerAlgorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    /**
+     * Get the total time spent in runTrigger() and flush().
+     *
+     * @return busy time in nanoseconds
+     */
+    long getBusyNanos()
+    {
+        return busyNanos;
+    }
+
+    /**
+     * Get the time the most recent payload was finished.
+     *
+     * @return <tt>System.nanoTime()</tt> value, or 0 if no payloads have
+     *         been processed
+     */
+    long getLastDoneNanos()
+    {
+        return lastDoneNanos;
+    }
+
+    /**
+     * Get the number of calls to a method.
+     *
+     * @param method method index (<tt>RUN_METHOD</tt>,
+     *               <tt>RELEASE_METHOD</tt>, or <tt>FLUSH_METHOD</tt>)
+     *
+     * @return number of calls
+     */
+    long getMethodCalls(int method)
+    {
+        return methodCalls[method];
+    }
+
+    /**
+     * Get the total time spent in a method.  Time spent releasing requests
+     * from inside runTrigger() or flush() is only counted as release time.
+     *
+     * @param method method index (<tt>RUN_METHOD</tt>,
+     *               <tt>RELEASE_METHOD</tt>, or <tt>FLUSH_METHOD</tt>)
+     *
+     * @return time in nanoseconds
+     */
+    long getMethodNanos(int method)
+    {
+        return methodNanos[method];
+    }
+
+    /**
+     * Get the number of cached requests after the most recently
+     * processed payload.
+     *
+     * @return number of cached requests
+     */
+    int getNumberOfCachedRequests()
+    {
+        return numCached;
+    }
+
+    /**
+     * Get the number of exceptions thrown by the algorithm, plus one if
+     * the runner thread died.
+     *
+     * @return number of errors
+     */
+    int getNumberOfErrors()
+    {
+        return numErrors;
+    }
+
+    /**
+     * Get the number of triggers sent after the most recently processed
+     * payload.
+     *
+     * @return number of sent triggers
+     */
+    long getSentTriggerCount()
+    {
+        return sentTriggerCount;
+    }
+
+    /**
+     * Get the trigger counter after the most recently processed payload.
+     *
+     * @return trigger counter
+     */
+    int getTriggerCounter()
+    {
+        return triggerCounter;
+    }
+
+    /**
+     * Did the algorithm have cached requests after the most recently
+     * processed payload?
+     *
+     * @return <tt>true</tt> if there were cached requests
+     */
+    boolean hasCachedRequests()
+    {
+        return hasCached;
+    }
+
+    /**
+     * Wait for the runner thread to exit.  The ring must be stopped first.
+     */
+    void join()
+    {
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                LOG.error("Interrupted while waiting for " + thread.getName());
+            }
+        }
+    }
+
+    /**
+     * Pass a single payload (or <tt>FLUSH</tt>) to the algorithm on the
+     * current thread.
+     *
+     * @param obj payload or <tt>FLUSH</tt>
+     */
+    void process(Object obj)
+    {
+        final int pos, method;
+        if (obj == FLUSH) {
+            pos = FLUSH_POS;
+            method = FLUSH_METHOD;
+        } else {
+            pos = RUN_POS;
+            method = RUN_METHOD;
+        }
+
+        final long nested = methodNanos[RELEASE_METHOD];
+        final long start = System.nanoTime();
+        timer.start(pos);
+        try {
+            if (obj == FLUSH) {
+                algorithm.flush();
+            } else {
+                algorithm.runTrigger((IPayload) obj);
+            }
+        } catch (Throwable thr) {
+            numErrors++;
+            LOG.error(algorithm.getTriggerName() + " failed on " + obj, thr);
+        } finally {
+            timer.stop(pos);
+
+            lastDoneNanos = System.nanoTime();
+
+            final long elapsed = lastDoneNanos - start;
+            busyNanos += elapsed;
+            methodNanos[method] +=
+                elapsed - (methodNanos[RELEASE_METHOD] - nested);
+            methodCalls[method]++;
+
+            updateCounters();
+        }
+    }
+
+    /**
+     * Feed payloads from the ring to the algorithm.  If the thread dies,
+     * the ring is marked as failed so nobody waits for it forever.
+     */
+    @Override
+    public void run()
+    {
+        ThreadAccounting.register(ThreadAccounting.TRIGGER);
+
+        try {
+            while (true) {
+                Object obj = ring.next(index);
+                if (obj == null) {
+                    break;
+                }
+
+                if (obj instanceof IPayload[]) {
+                    obj = ((IPayload[]) obj)[index];
+                }
+
+                try {
+                    process(obj);
+                } finally {
+                    ring.release(index);
+                }
+
+                if (ring.isDrained()) {
+                    ActivitySignal.signal();
+                }
+            }
+        } catch (Throwable thr) {
+            numErrors++;
+            LOG.error(thread.getName() + " died", thr);
+            ring.fail(thread.getName(), thr);
+            ActivitySignal.signal();
+        } finally {
+            ThreadAccounting.unregister();
+        }
+    }
+
+    /**
+     * Release all available requests from the algorithm.
+     */
+    @Override
+    public void setChanged()
+    {
+        final long start = System.nanoTime();
+        timer.start(RELEASE_POS);
+        try {
+            AlgorithmDeathmatch.releaseAll(algorithm, released);
+        } finally {
+            timer.stop(RELEASE_POS);
+            methodNanos[RELEASE_METHOD] += System.nanoTime() - start;
+            methodCalls[RELEASE_METHOD]++;
+        }
+
+        if (released.size() > 0) {
+            if (index == 0 && LatencyTracker.isEnabled()) {
+                for (ITriggerRequestPayload req : released) {
+                    LatencyTracker.record(LatencyTracker.RELEASE,
+                                          req.getUTCTime());
+                }
+            }
+
+            reconciler.add(index, released);
+            released.clear();
+        }
+    }
+
+    /**
+     * Start the runner thread.
+     *
+     * @param name thread name
+     */
+    void start(String name)
+    {
+        if (thread != null) {
+            throw new Error("Runner " + thread.getName() +
+                            " has already been started");
+        }
+
+        thread = new Thread(this);
+        thread.setName(name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Save the algorithm's counters so they can be read without stopping
+     * the runner.  This must be called from the runner thread, or while
+     * the ring is drained and no new payloads can be published.
+     */
+    void updateCounters()
+    {
+        numCached = algorithm.getNumberOfCachedRequests();
+        hasCached = algorithm.hasCachedRequests();
+        triggerCounter = algorithm.getTriggerCounter();
+        sentTriggerCount = algorithm.getSentTriggerCount();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AlgorithmRunner#" + index + "[" + algorithm +
+            (numErrors == 0 ? "" : ", " + numErrors + " errors") + "]";
+    }
+}
@@ -0,0 +1,650 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.IPayload;
+import icecube.daq.payload.ITriggerRequestPayload;
+import icecube.daq.payload.impl.TriggerRequestFactory;
+import icecube.daq.trigger.algorithm.ITriggerAlgorithm;
+import icecube.daq.trigger.control.ITriggerCollector;
+import icecube.daq.trigger.control.ITriggerManager;
+import icecube.daq.trigger.control.Interval;
+import icecube.daq.trigger.control.PayloadSubscriber;
+import icecube.daq.trigger.control.SubscribedList;
+import icecube.daq.trigger.exceptions.ConfigException;
+import icecube.daq.trigger.exceptions.IllegalParameterValueException;
+import icecube.daq.trigger.exceptions.TriggerException;
+import icecube.daq.trigger.exceptions.UnknownParameterException;
+import icecube.daq.util.CodeTimer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Feed a single hit stream to several versions of the same trigger
+ * algorithm, check that they all release the same requests, and rank
+ * them by speed.  The first algorithm is the reference against which
+ * all others are compared.
+ */
+public class AlgorithmTournament
+    implements ITriggerAlgorithm
+{
+    private static final Logger LOG =
+        Logger.getLogger(AlgorithmTournament.class);
+
+    /** Number of payloads which can be queued for the parallel runners */
+    private static final int RING_SIZE = 4096;
+
+    /** Column names for the per-method timing table */
+    private static final String[] METHOD_NAMES = {
+        "runTrigger", "release", "flush",
+    };
+
+    private Object runLock = new Object();
+
+    private String[] names;
+    private ITriggerAlgorithm[] algorithms;
+    private CodeTimer[] timers;
+    private AlgorithmRunner[] runners;
+    private ReleaseReconciler reconciler;
+
+    /** If <tt>null</tt>, algorithms are run serially on the caller's thread */
+    private BroadcastRing ring;
+    private boolean started;
+
+    private int[] order;
+    private Random random = new Random();
+
+    private PayloadSubscriber subscriber;
+
+    /**
+     * Create a tournament.
+     *
+     * @param names name of each algorithm
+     * @param algorithms list of algorithms (the first is the reference)
+     * @param parallel if <tt>true</tt>, run each algorithm on its own thread
+     */
+    public AlgorithmTournament(String[] names, ITriggerAlgorithm[] algorithms,
+                               boolean parallel)
+    {
+        if (algorithms.length < 2) {
+            throw new Error("A tournament needs at least two algorithms");
+        } else if (names.length != algorithms.length) {
+            throw new Error("Expected " + algorithms.length +
+                            " names, not " + names.length);
+        }
+
+        this.names = names;
+        this.algorithms = algorithms;
+
+        if (parallel) {
+            ring = new BroadcastRing(RING_SIZE, algorithms.length);
+        }
+
+        reconciler = new ReleaseReconciler(names);
+
+        timers = new CodeTimer[algorithms.length];
+        runners = new AlgorithmRunner[algorithms.length];
+        order = new int[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            timers[i] = new CodeTimer(100);
+            runners[i] = new AlgorithmRunner(algorithms[i], timers[i], ring,
+                                             i, reconciler);
+            order[i] = i;
+        }
+    }
+
+    @Override
+    public void addParameter(String name, String value)
+        throws UnknownParameterException, IllegalParameterValueException
+    {
+        for (ITriggerAlgorithm algo : algorithms) {
+            algo.addParameter(name, value);
+        }
+    }
+
+    @Override
+    public void addReadout(int rdoutType, int offset, int minus, int plus)
+    {
+        for (ITriggerAlgorithm algo : algorithms) {
+            algo.addReadout(rdoutType, offset, minus, plus);
+        }
+    }
+
+    @Override
+    public void checkTriggerType(int type)
+        throws ConfigException
+    {
+        algorithms[0].checkTriggerType(type);
+    }
+
+    @Override
+    public int compareTo(ITriggerAlgorithm algorithm)
+    {
+        throw new Error("Unimplemented");
+    }
+
+    /**
+     * Wait until all queued payloads have been processed.  The caller
+     * must hold <tt>runLock</tt> so no new payloads are queued before it
+     * has finished with the algorithms.
+     *
+     * @throws Error if a runner thread died
+     */
+    private void drain()
+    {
+        if (ring != null) {
+            ring.waitForDrain();
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        synchronized (runLock) {
+            publish(AlgorithmRunner.FLUSH);
+            drain();
+        }
+    }
+
+    @Override
+    public IPayload getEarliestPayloadOfInterest()
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].getEarliestPayloadOfInterest();
+        }
+    }
+
+    @Override
+    public int getInputQueueSize()
+    {
+        if (subscriber == null) {
+            return -1;
+        }
+
+        int size = subscriber.size() + reconciler.getNumberQueued();
+        if (ring != null) {
+            size += (int) ring.backlog();
+        }
+
+        return size;
+    }
+
+    @Override
+    public Interval getInterval(Interval interval)
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].getInterval(interval);
+        }
+    }
+
+    @Override
+    public long getLatency()
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].getLatency();
+        }
+    }
+
+    @Override
+    public String getMonitoringName()
+    {
+        return algorithms[0].getMonitoringName();
+    }
+
+    /**
+     * Get the number of mismatched requests and algorithm exceptions.
+     *
+     * @return number of failures
+     */
+    public int getNumberFailed()
+    {
+        int numFailed = reconciler.getNumberFailed();
+        for (AlgorithmRunner runner : runners) {
+            numFailed += runner.getNumberOfErrors();
+        }
+        return numFailed;
+    }
+
+    @Override
+    public int getNumberOfCachedRequests()
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].getNumberOfCachedRequests();
+        }
+    }
+
+    /**
+     * Get the number of requests compared across all algorithms.
+     *
+     * @return number of requests
+     */
+    public int getNumberWritten()
+    {
+        return reconciler.getNumberCompared();
+    }
+
+    @Override
+    public long getReleaseTime()
+    {
+        return algorithms[0].getReleaseTime();
+    }
+
+    @Override
+    public long getSentTriggerCount()
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].getSentTriggerCount();
+        }
+    }
+
+    @Override
+    public int getSourceId()
+    {
+        return algorithms[0].getSourceId();
+    }
+
+    /**
+     * Build a table of per-method times for each algorithm, ranked with
+     * the fastest correct algorithm first.  Any algorithm threads are
+     * stopped first, so every request has been compared.
+     *
+     * @return timing table
+     */
+    public String getStats()
+    {
+        stopRunners();
+
+        Integer[] rank = new Integer[runners.length];
+        for (int i = 0; i < rank.length; i++) {
+            rank[i] = i;
+        }
+
+        Arrays.sort(rank, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b)
+                {
+                    final boolean aBad = isFailed(a);
+                    final boolean bBad = isFailed(b);
+                    if (aBad != bBad) {
+                        return aBad ? 1 : -1;
+                    }
+
+                    return Long.compare(getTotalNanos(a), getTotalNanos(b));
+                }
+            });
+
+        int nameLen = 4;
+        for (String name : names) {
+            nameLen = Math.max(nameLen, name.length());
+        }
+
+        final String nameFmt = "%-" + nameLen + "s";
+
+        StringBuilder buf = new StringBuilder();
+        buf.append(String.format("Rank " + nameFmt, "Name"));
+        for (String method : METHOD_NAMES) {
+            buf.append(String.format(" %12s %9s", method + " ms", "us/call"));
+        }
+        buf.append(String.format(" %10s %s", "total ms", "result"));
+
+        for (int r = 0; r < rank.length; r++) {
+            final int idx = rank[r];
+            final AlgorithmRunner runner = runners[idx];
+
+            buf.append(String.format("\n%4d " + nameFmt, r + 1, names[idx]));
+            for (int m = 0; m < AlgorithmRunner.NUM_METHODS; m++) {
+                final long nanos = runner.getMethodNanos(m);
+                final long calls = runner.getMethodCalls(m);
+
+                final double perCall;
+                if (calls == 0) {
+                    perCall = 0.0;
+                } else {
+                    perCall = ((double) nanos / (double) calls) / 1000.0;
+                }
+
+                buf.append(String.format(" %12.2f %9.3f",
+                                         (double) nanos / 1000000.0,
+                                         perCall));
+            }
+
+            String result;
+            if (idx == 0) {
+                result = "reference";
+            } else if (!isFailed(idx)) {
+                result = "ok";
+            } else {
+                result = reconciler.getNumberFailed(idx) + " mismatched, " +
+                    runner.getNumberOfErrors() + " errors";
+            }
+
+            buf.append(String.format(" %10.2f %s",
+                                     (double) getTotalNanos(idx) / 1000000.0,
+                                     result));
+        }
+
+        buf.append('\n').append(reconciler);
+
+        return buf.toString();
+    }
+
+    @Override
+    public PayloadSubscriber getSubscriber()
+    {
+        return subscriber;
+    }
+
+    private long getTotalNanos(int idx)
+    {
+        long total = 0;
+        for (int m = 0; m < AlgorithmRunner.NUM_METHODS; m++) {
+            total += runners[idx].getMethodNanos(m);
+        }
+        return total;
+    }
+
+    @Override
+    public int getTriggerConfigId()
+    {
+        return algorithms[0].getTriggerConfigId();
+    }
+
+    @Override
+    public int getTriggerCounter()
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].getTriggerCounter();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getTriggerMonitorMap()
+    {
+        throw new Error("Unimplemented");
+    }
+
+    @Override
+    public String getTriggerName()
+    {
+        return algorithms[0].getTriggerName();
+    }
+
+    @Override
+    public int getTriggerType()
+    {
+        return algorithms[0].getTriggerType();
+    }
+
+    @Override
+    public boolean hasCachedRequests()
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].hasCachedRequests();
+        }
+    }
+
+    @Override
+    public boolean hasData()
+    {
+        if (subscriber == null) {
+            return false;
+        }
+
+        return subscriber.hasData();
+    }
+
+    @Override
+    public boolean hasValidMultiplicity()
+    {
+        synchronized (runLock) {
+            drain();
+            return algorithms[0].hasValidMultiplicity();
+        }
+    }
+
+    @Override
+    public boolean isConfigured()
+    {
+        boolean configured = true;
+        for (int i = 0; i < algorithms.length; i++) {
+            if (!algorithms[i].isConfigured()) {
+                LOG.error(names[i] + " is not configured");
+                configured = false;
+            }
+        }
+        return configured;
+    }
+
+    private boolean isFailed(int idx)
+    {
+        return reconciler.getNumberFailed(idx) > 0 ||
+            runners[idx].getNumberOfErrors() > 0;
+    }
+
+    /**
+     * Has this algorithm finished with all incoming payloads?
+     *
+     * @return <tt>true</tt> if the algorithm has processed all its data
+     */
+    @Override
+    public boolean isStopped()
+    {
+        return subscriber.isStopped();
+    }
+
+    /**
+     * Pass a payload to every algorithm.  The caller must hold
+     * <tt>runLock</tt>.
+     *
+     * @param obj payload or <tt>AlgorithmRunner.FLUSH</tt>
+     */
+    private void publish(Object obj)
+    {
+        if (ring != null) {
+            if (!started) {
+                for (int i = 0; i < runners.length; i++) {
+                    runners[i].start("Tournament-" + names[i]);
+                }
+                started = true;
+            }
+
+            if (obj == AlgorithmRunner.FLUSH) {
+                ring.publish(obj);
+            } else {
+                ring.publish(AlgorithmRunner.copyPayload((IPayload) obj,
+                                                         runners.length));
+            }
+            return;
+        }
+
+        // shuffle the order so no algorithm always gets a warm cache
+        for (int i = order.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        for (int i = 0; i < order.length; i++) {
+            runners[order[i]].process(obj);
+        }
+    }
+
+    @Override
+    public void recycleUnusedRequests()
+    {
+        synchronized (runLock) {
+            drain();
+            for (ITriggerAlgorithm algo : algorithms) {
+                algo.recycleUnusedRequests();
+            }
+        }
+    }
+
+    @Override
+    public int release(Interval interval,
+                       List<ITriggerRequestPayload> released)
+    {
+        throw new Error("Unimplemented");
+    }
+
+    @Override
+    public void resetAlgorithm()
+    {
+        synchronized (runLock) {
+            drain();
+            for (ITriggerAlgorithm algo : algorithms) {
+                algo.resetAlgorithm();
+            }
+        }
+    }
+
+    @Override
+    public void resetUID()
+    {
+        synchronized (runLock) {
+            drain();
+            for (ITriggerAlgorithm algo : algorithms) {
+                algo.resetUID();
+            }
+        }
+    }
+
+    @Override
+    public void runTrigger(IPayload payload)
+        throws TriggerException
+    {
+        synchronized (runLock) {
+            publish(payload);
+        }
+    }
+
+    @Override
+    public void sendLast()
+    {
+        synchronized (runLock) {
+            drain();
+            for (ITriggerAlgorithm algo : algorithms) {
+                algo.sendLast();
+            }
+        }
+    }
+
+    @Override
+    public void setSourceId(int srcId)
+    {
+        for (ITriggerAlgorithm algo : algorithms) {
+            algo.setSourceId(srcId);
+        }
+    }
+
+    @Override
+    public void setSubscriber(PayloadSubscriber subscriber)
+    {
+        if (this.subscriber != null) {
+            throw new Error(getTriggerName() +
+                            " is already subscribed to an input queue");
+        }
+
+        this.subscriber = subscriber;
+    }
+
+    @Override
+    public void setTriggerCollector(ITriggerCollector collector)
+    {
+        for (int i = 0; i < algorithms.length; i++) {
+            algorithms[i].setTriggerCollector(runners[i]);
+        }
+    }
+
+    @Override
+    public void setTriggerConfigId(int cfgId)
+    {
+        for (ITriggerAlgorithm algo : algorithms) {
+            algo.setTriggerConfigId(cfgId);
+        }
+    }
+
+    @Override
+    public void setTriggerFactory(TriggerRequestFactory factory)
+    {
+        for (ITriggerAlgorithm algo : algorithms) {
+            algo.setTriggerFactory(factory);
+        }
+    }
+
+    @Override
+    public void setTriggerManager(ITriggerManager mgr)
+    {
+        ManagerWrapper mock = new ManagerWrapper(mgr);
+        for (ITriggerAlgorithm algo : algorithms) {
+            algo.setTriggerManager(mock);
+        }
+    }
+
+    @Override
+    public void setTriggerName(String name)
+    {
+        for (ITriggerAlgorithm algo : algorithms) {
+            algo.setTriggerName(name);
+        }
+    }
+
+    /**
+     * Wait for all queued payloads to be processed, stop any algorithm
+     * threads, and finish comparing released requests.
+     */
+    public void stopRunners()
+    {
+        synchronized (runLock) {
+            if (ring != null) {
+                // runner failures have already been logged and counted
+                ring.awaitDrain();
+                ring.stop();
+            }
+        }
+
+        if (ring != null) {
+            for (AlgorithmRunner runner : runners) {
+                runner.join();
+            }
+        }
+
+        reconciler.close();
+    }
+
+    @Override
+    public void unsubscribe(SubscribedList list)
+    {
+        if (subscriber == null) {
+            LOG.warn(getTriggerName() +
+                     " is not subscribed to the input queue");
+            return;
+        }
+
+        if (!list.unsubscribe(subscriber)) {
+            LOG.warn(getTriggerName() +
+                     " was not fully unsubscribed from the input queue");
+        }
+
+        subscriber = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Tournament" + Arrays.toString(names) +
+            (ring == null ? "" : "[" + ring + "]");
+    }
+}
@@ -0,0 +1,238 @@
+package icecube.daq.testbed;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+
+/**
+ * Decide how hard to throttle the input bridges.
+ *
+ * The throttle level ranges from 0 (full speed) to 1 (stopped) and is the
+ * larger of two signals:
+ * <ul>
+ * <li>heap pressure, from the heap occupancy after the most recent
+ *     garbage collection, which rises linearly from <tt>HEAP_LOW</tt>
+ *     to <tt>HEAP_HIGH</tt></li>
+ * <li>queue pressure, which is raised a step each time the input or
+ *     output queue grows past <tt>QUEUE_FLOOR</tt> and lowered a smaller
+ *     step each time it doesn't, so it settles at the rate the pipeline
+ *     can sustain</li>
+ * </ul>
+ * Bridges are slowed by a per-payload delay proportional to the level;
+ * only a fully saturated level (or a queue past <tt>QUEUE_LIMIT</tt>)
+ * pauses the input altogether.
+ *
+ * Paused input stops allocating, so there may be no further collections
+ * to lower the post-GC heap figure.  Once input is paused, the heap
+ * signal only holds it paused if a collection has happened since the
+ * pause; otherwise input resumes as soon as the queues have drained.
+ */
+class BackpressureController
+{
+    /** Post-GC heap occupancy below which the heap is not a concern */
+    private static final double HEAP_LOW = 0.60;
+    /** Post-GC heap occupancy at which input is stopped */
+    private static final double HEAP_HIGH = 0.90;
+
+    /** Queues smaller than this never add pressure */
+    private static final long QUEUE_FLOOR = 10000;
+    /** Queues larger than this always pause input */
+    private static final long QUEUE_LIMIT = 100000;
+    /** Queue pressure added when a queue grows */
+    private static final double STEP_UP = 0.10;
+    /** Queue pressure removed when queues are stable or shrinking */
+    private static final double STEP_DOWN = 0.04;
+
+    /** Per-payload delay at the highest unsaturated level */
+    private static final long MAX_DELAY_NANOS = 2000000L;
+
+    /** Level above which input is paused */
+    private static final double PAUSE_LEVEL = 0.999;
+    /** Level below which paused input is resumed */
+    private static final double RESUME_LEVEL = 0.80;
+
+    private ArrayList<MemoryPoolMXBean> heapPools =
+        new ArrayList<MemoryPoolMXBean>();
+    private ArrayList<GarbageCollectorMXBean> collectors =
+        new ArrayList<GarbageCollectorMXBean>();
+
+    private long prevQueued;
+    private long prevNanos;
+    private double growthRate;
+
+    private double heapLevel;
+    private double queueLevel;
+    private double level;
+    private boolean saturated;
+    /** Number of collections when input was paused */
+    private long pausedCollections;
+
+    BackpressureController()
+    {
+        for (MemoryPoolMXBean pool :
+                 ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP &&
+                pool.isCollectionUsageThresholdSupported())
+            {
+                heapPools.add(pool);
+            }
+        }
+
+        collectors.addAll(ManagementFactory.getGarbageCollectorMXBeans());
+    }
+
+    private static double clamp(double val)
+    {
+        if (val < 0.0) {
+            return 0.0;
+        } else if (val > 1.0) {
+            return 1.0;
+        }
+
+        return val;
+    }
+
+    /**
+     * Get the total number of garbage collections.
+     *
+     * @return number of collections
+     */
+    private long getCollectionCount()
+    {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : collectors) {
+            final long count = gc.getCollectionCount();
+            if (count > 0) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the per-payload delay for each bridge.
+     *
+     * @return delay in nanoseconds
+     */
+    long getDelayNanos()
+    {
+        return (long) (level * MAX_DELAY_NANOS);
+    }
+
+    /**
+     * Get the fraction of the heap still in use after the last collection.
+     *
+     * @return heap occupancy (0.0 - 1.0)
+     */
+    double getHeapOccupancy()
+    {
+        long used = 0;
+        long max = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) {
+                continue;
+            }
+
+            used += usage.getUsed();
+            if (usage.getMax() > 0) {
+                max += usage.getMax();
+            } else {
+                max += usage.getCommitted();
+            }
+        }
+
+        if (max <= 0) {
+            // no collection data, fall back to the current heap size
+            final Runtime rt = Runtime.getRuntime();
+            return (double) (rt.totalMemory() - rt.freeMemory()) /
+                (double) rt.maxMemory();
+        }
+
+        return (double) used / (double) max;
+    }
+
+    /**
+     * Get the current throttle level.
+     *
+     * @return 0.0 (full speed) to 1.0 (stopped)
+     */
+    double getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Should input be paused completely?
+     *
+     * @return <tt>true</tt> if the pipeline is saturated
+     */
+    boolean isSaturated()
+    {
+        return saturated;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("throttle %.0f%% (heap %.0f%%, queue %.0f%%," +
+                             " growth %.0f/s)", level * 100.0,
+                             heapLevel * 100.0, queueLevel * 100.0,
+                             growthRate);
+    }
+
+    /**
+     * Recompute the throttle level.
+     *
+     * @param queuedIn number of queued inputs
+     * @param queuedOut number of queued outputs
+     *
+     * @return new throttle level
+     */
+    double update(long queuedIn, long queuedOut)
+    {
+        final long now = System.nanoTime();
+        final long queued = Math.max(queuedIn, queuedOut);
+
+        if (prevNanos != 0 && now > prevNanos) {
+            final double secs = (now - prevNanos) / 1000000000.0;
+            final double rate = (double) (queued - prevQueued) / secs;
+
+            // smooth out the bursts from splicer and release batches
+            growthRate = 0.5 * growthRate + 0.5 * rate;
+        }
+        prevQueued = queued;
+        prevNanos = now;
+
+        if (queued > QUEUE_FLOOR && growthRate > 0.0) {
+            queueLevel = clamp(queueLevel + STEP_UP);
+        } else {
+            queueLevel = clamp(queueLevel - STEP_DOWN);
+        }
+
+        heapLevel = clamp((getHeapOccupancy() - HEAP_LOW) /
+                          (HEAP_HIGH - HEAP_LOW));
+
+        level = Math.max(heapLevel, queueLevel);
+
+        if (!saturated) {
+            if (level >= PAUSE_LEVEL || queued > QUEUE_LIMIT) {
+                saturated = true;
+                pausedCollections = getCollectionCount();
+            }
+        } else if (queued <= QUEUE_LIMIT && queueLevel < RESUME_LEVEL) {
+            // ignore a heap figure which predates the pause
+            if (heapLevel < RESUME_LEVEL ||
+                getCollectionCount() == pausedCollections)
+            {
+                saturated = false;
+            }
+        }
+
+        return level;
+    }
+}
@@ -0,0 +1,278 @@
+package icecube.daq.testbed;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-size ring buffer with a single producer and several consumers,
+ * where every consumer sees every entry.  The producer blocks when the
+ * slowest consumer falls a full ring behind.
+ *
+ * If a consumer dies it must call <tt>fail()</tt>, otherwise the
+ * producer and anyone waiting for the ring to drain would wait forever.
+ */
+class BroadcastRing
+{
+    /** Number of times to yield before parking a waiting thread */
+    private static final int MAX_SPINS = 100;
+    /** Nanoseconds to park a waiting thread */
+    private static final long PARK_NANOS = 50000L;
+
+    private final Object[] entries;
+    private final int mask;
+
+    /** Number of entries published by the producer */
+    private volatile long published;
+    /** Number of entries fully processed by each consumer */
+    private final AtomicLongArray consumed;
+    /** Producer's cached copy of the slowest consumer's position */
+    private long cachedMinimum;
+
+    private volatile boolean stopped;
+    /** First exception reported by a consumer */
+    private volatile Throwable failure;
+    private String failedName;
+
+    /**
+     * Create a broadcast ring.
+     *
+     * @param capacity maximum number of unconsumed entries (rounded up to
+     *                 the next power of two)
+     * @param numConsumers number of consumers
+     */
+    BroadcastRing(int capacity, int numConsumers)
+    {
+        if (numConsumers <= 0) {
+            throw new Error("Ring must have at least one consumer");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        entries = new Object[size];
+        mask = size - 1;
+        consumed = new AtomicLongArray(numConsumers);
+    }
+
+    /**
+     * Wait until every consumer has processed every published entry or a
+     * consumer has failed.
+     *
+     * @return <tt>false</tt> if a consumer failed
+     */
+    boolean awaitDrain()
+    {
+        int spins = 0;
+        while (!isDrained()) {
+            if (failure != null) {
+                return false;
+            }
+
+            spins = pause(spins);
+        }
+
+        return failure == null;
+    }
+
+    /**
+     * Get the number of entries which have not been processed by the
+     * slowest consumer.
+     *
+     * @return number of unprocessed entries
+     */
+    long backlog()
+    {
+        return published - getMinimumConsumed();
+    }
+
+    /**
+     * Report that a consumer has died.  All other consumers are stopped,
+     * and the producer and anyone waiting for the ring to drain get an
+     * <tt>Error</tt>.
+     *
+     * @param name consumer name
+     * @param thr cause of the failure
+     */
+    synchronized void fail(String name, Throwable thr)
+    {
+        if (failure == null) {
+            failedName = name;
+            failure = thr;
+        }
+    }
+
+    private synchronized Error getFailureError()
+    {
+        return new Error("Ring consumer " + failedName + " failed", failure);
+    }
+
+    private long getMinimumConsumed()
+    {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < consumed.length(); i++) {
+            final long val = consumed.get(i);
+            if (val < min) {
+                min = val;
+            }
+        }
+
+        return min;
+    }
+
+    /**
+     * Get the number of entries published by the producer.
+     *
+     * @return number of entries published
+     */
+    long getNumberPublished()
+    {
+        return published;
+    }
+
+    /**
+     * Has every consumer processed every published entry?
+     *
+     * @return <tt>true</tt> if all entries have been processed
+     */
+    boolean isDrained()
+    {
+        return backlog() == 0;
+    }
+
+    /**
+     * Has a consumer failed?
+     *
+     * @return <tt>true</tt> if a consumer failed
+     */
+    boolean hasFailed()
+    {
+        return failure != null;
+    }
+
+    /**
+     * Has this ring been stopped?
+     *
+     * @return <tt>true</tt> if the ring has been stopped
+     */
+    boolean isStopped()
+    {
+        return stopped;
+    }
+
+    /**
+     * Peek at the next entry for a consumer, waiting if necessary.  The
+     * consumer must call <tt>release()</tt> after processing the entry.
+     *
+     * @param consumer consumer index
+     *
+     * @return next entry, or <tt>null</tt> if a consumer has failed or
+     *         the ring has been stopped and all entries have been consumed
+     */
+    Object next(int consumer)
+    {
+        if (failure != null) {
+            return null;
+        }
+
+        final long seq = consumed.get(consumer);
+
+        int spins = 0;
+        while (seq >= published) {
+            if (stopped || failure != null) {
+                return null;
+            }
+
+            spins = pause(spins);
+        }
+
+        return entries[(int) (seq & mask)];
+    }
+
+    private static int pause(int spins)
+    {
+        if (spins < MAX_SPINS) {
+            Thread.yield();
+            return spins + 1;
+        }
+
+        LockSupport.parkNanos(PARK_NANOS);
+        return spins;
+    }
+
+    /**
+     * Add an entry to the ring, waiting if the slowest consumer is
+     * a full ring behind.
+     *
+     * @param obj new entry
+     *
+     * @throws Error if a consumer has failed or the ring has been stopped
+     */
+    void publish(Object obj)
+    {
+        if (failure != null) {
+            throw getFailureError();
+        } else if (stopped) {
+            throw new Error("Cannot publish to stopped ring");
+        }
+
+        final long seq = published;
+
+        int spins = 0;
+        while (seq - cachedMinimum >= entries.length) {
+            cachedMinimum = getMinimumConsumed();
+            if (seq - cachedMinimum < entries.length) {
+                break;
+            } else if (failure != null) {
+                throw getFailureError();
+            } else if (stopped) {
+                throw new Error("Ring was stopped while waiting to publish");
+            }
+
+            spins = pause(spins);
+        }
+
+        entries[(int) (seq & mask)] = obj;
+        published = seq + 1;
+    }
+
+    /**
+     * Mark the consumer's current entry as processed.
+     *
+     * @param consumer consumer index
+     */
+    void release(int consumer)
+    {
+        consumed.incrementAndGet(consumer);
+    }
+
+    /**
+     * Stop the ring.  Consumers will finish all published entries
+     * before <tt>next()</tt> returns <tt>null</tt>.
+     */
+    void stop()
+    {
+        stopped = true;
+    }
+
+    /**
+     * Wait until every consumer has processed every published entry.
+     *
+     * @throws Error if a consumer has failed
+     */
+    void waitForDrain()
+    {
+        if (!awaitDrain()) {
+            throw getFailureError();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BroadcastRing[" + published + " published, " + backlog() +
+            " queued" + (stopped ? ", stopped" : "") +
+            (failure == null ? "" : ", failed") + "]";
+    }
+}
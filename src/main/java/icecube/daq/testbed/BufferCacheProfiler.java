@@ -0,0 +1,195 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.IByteBufferCache;
+
+import java.io.PrintStream;
+
+/**
+ * Profile a component's input and output buffer caches.
+ *
+ * The caches are sampled while the run is in progress to find the
+ * high-water marks of outstanding buffers and bytes and the peak acquire
+ * rate.  The caches don't report individual buffer sizes, so the size
+ * distributions are recorded from the payloads going into the component
+ * (each one fills an input buffer) and coming out of it (each one was
+ * built in an output buffer).
+ */
+public abstract class BufferCacheProfiler
+{
+    /** Component input cache */
+    public static final int INPUT = 0;
+    /** Component output cache */
+    public static final int OUTPUT = 1;
+
+    private static final String[] NAMES = { "input", "output" };
+
+    /** Minimum interval used to compute acquire rates */
+    private static final long RATE_INTERVAL_NANOS = 100000000L;
+
+    private static IByteBufferCache[] caches =
+        new IByteBufferCache[NAMES.length];
+
+    private static LatencyHistogram[] sizes;
+    static {
+        sizes = new LatencyHistogram[NAMES.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new LatencyHistogram();
+        }
+    }
+
+    private static long[] maxBuffers = new long[NAMES.length];
+    private static long[] maxBytes = new long[NAMES.length];
+    private static double[] maxRate = new double[NAMES.length];
+    private static long[] firstNanos = new long[NAMES.length];
+    private static long[] firstAcquired = new long[NAMES.length];
+    private static long[] prevNanos = new long[NAMES.length];
+    private static long[] prevAcquired = new long[NAMES.length];
+
+    /**
+     * Write a snapshot of both caches to the monitoring output.
+     *
+     * @param out monitoring output
+     * @param dateStr monitoring timestamp
+     */
+    static void dumpSnapshot(PrintStream out, String dateStr)
+    {
+        out.println("buffercache: " + dateStr + ":");
+        for (int i = 0; i < NAMES.length; i++) {
+            out.println("    " + format(i));
+        }
+        out.println();
+    }
+
+    private static synchronized String format(int which)
+    {
+        IByteBufferCache cache = caches[which];
+
+        StringBuilder buf = new StringBuilder(NAMES[which]).append(": ");
+        if (cache != null) {
+            final long acquired = cache.getTotalBuffersAcquired();
+
+            double avgRate = 0.0;
+            if (prevNanos[which] > firstNanos[which]) {
+                avgRate = (double) (prevAcquired[which] -
+                                    firstAcquired[which]) /
+                    ((prevNanos[which] - firstNanos[which]) / 1000000000.0);
+            }
+
+            buf.append(String.format("outstanding %d bufs/%d bytes" +
+                                     " (max %d bufs/%d bytes)," +
+                                     " acquired %d (avg %.1f/s," +
+                                     " peak %.1f/s), ",
+                                     cache.getCurrentAquiredBuffers(),
+                                     cache.getCurrentAquiredBytes(),
+                                     maxBuffers[which], maxBytes[which],
+                                     acquired, avgRate, maxRate[which]));
+        }
+
+        LatencyHistogram hist = sizes[which];
+        buf.append(String.format("sizes n=%d p50=%d p90=%d p99=%d max=%d",
+                                 hist.getCount(),
+                                 hist.getValueAtPercentile(50.0),
+                                 hist.getValueAtPercentile(90.0),
+                                 hist.getValueAtPercentile(99.0),
+                                 hist.getMax()));
+
+        return buf.toString();
+    }
+
+    /**
+     * Get a summary of both caches.
+     *
+     * @return multi-line summary
+     */
+    public static String getSummary()
+    {
+        StringBuilder buf = new StringBuilder("Buffer caches:");
+        for (int i = 0; i < NAMES.length; i++) {
+            buf.append("\n    ").append(format(i));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Record the size of a buffer taken from a cache.
+     *
+     * @param which <tt>INPUT</tt> or <tt>OUTPUT</tt>
+     * @param len buffer length in bytes
+     */
+    static void recordSize(int which, int len)
+    {
+        sizes[which].record(len);
+    }
+
+    /**
+     * Forget all caches and recorded values.
+     */
+    public static synchronized void reset()
+    {
+        for (int i = 0; i < NAMES.length; i++) {
+            caches[i] = null;
+            sizes[i].reset();
+            maxBuffers[i] = 0;
+            maxBytes[i] = 0;
+            maxRate[i] = 0.0;
+            firstNanos[i] = 0;
+            firstAcquired[i] = 0;
+            prevNanos[i] = 0;
+            prevAcquired[i] = 0;
+        }
+    }
+
+    /**
+     * Update the high-water marks and acquire rates.
+     */
+    static synchronized void sample()
+    {
+        final long now = System.nanoTime();
+
+        for (int i = 0; i < NAMES.length; i++) {
+            IByteBufferCache cache = caches[i];
+            if (cache == null) {
+                continue;
+            }
+
+            final long bufs = cache.getCurrentAquiredBuffers();
+            if (bufs > maxBuffers[i]) {
+                maxBuffers[i] = bufs;
+            }
+
+            final long bytes = cache.getCurrentAquiredBytes();
+            if (bytes > maxBytes[i]) {
+                maxBytes[i] = bytes;
+            }
+
+            final long acquired = cache.getTotalBuffersAcquired();
+            if (firstNanos[i] == 0) {
+                firstNanos[i] = now;
+                firstAcquired[i] = acquired;
+            } else if (now - prevNanos[i] < RATE_INTERVAL_NANOS) {
+                // too soon for a meaningful rate
+                continue;
+            } else {
+                final double secs = (now - prevNanos[i]) / 1000000000.0;
+                final double rate = (acquired - prevAcquired[i]) / secs;
+                if (rate > maxRate[i]) {
+                    maxRate[i] = rate;
+                }
+            }
+
+            prevNanos[i] = now;
+            prevAcquired[i] = acquired;
+        }
+    }
+
+    /**
+     * Set the cache to be profiled.
+     *
+     * @param which <tt>INPUT</tt> or <tt>OUTPUT</tt>
+     * @param cache buffer cache
+     */
+    static synchronized void setCache(int which, IByteBufferCache cache)
+    {
+        caches[which] = cache;
+    }
+}
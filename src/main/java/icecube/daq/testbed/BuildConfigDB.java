@@ -1,8 +1,8 @@
 package icecube.daq.testbed;
 
+import icecube.daq.payload.SourceIdRegistry;
 import icecube.daq.trigger.exceptions.ConfigException;
 import icecube.daq.util.DOMRegistryException;
-import icecube.daq.util.DOMRegistryFactory;
 import icecube.daq.util.IDOMRegistry;
 
 import java.io.File;
@@ -14,6 +14,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
@@ -25,6 +30,20 @@ public class BuildConfigDB
     private static final String SQL_DRIVER = "org.sqlite.JDBC";
     private static final String DB_NAME = "confighash.db";
 
+    /** Maximum number of entries written in a single transaction */
+    private static final int BATCH_SIZE = 256;
+
+    /** Trigger handlers which have content keys */
+    private static final int[] TRIGGER_SOURCES = {
+        SourceIdRegistry.INICE_TRIGGER_SOURCE_ID,
+        SourceIdRegistry.ICETOP_TRIGGER_SOURCE_ID,
+        SourceIdRegistry.GLOBAL_TRIGGER_SOURCE_ID,
+    };
+
+    /** Marks the end of a worker's results */
+    private static final ConfigHashDB.HashEntry WORKER_DONE =
+        new ConfigHashDB.HashEntry(null, null, null, 0L);
+
     static {
         BasicConfigurator.configure();
 
@@ -38,6 +57,8 @@ public class BuildConfigDB
 
     private File cfgDir;
     private File dataDir;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private boolean force;
 
     private PreparedStatement tcSelStmt;
     private PreparedStatement tcInsStmt;
@@ -89,6 +110,22 @@ public class BuildConfigDB
                         dataDir = tmpData;
                     }
                     break;
+                case 'f':
+                    force = true;
+                    break;
+                case 't':
+                    i++;
+                    try {
+                        numThreads = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException nfe) {
+                        numThreads = 0;
+                    }
+                    if (numThreads <= 0) {
+                        System.err.println("Bad number of threads \"" +
+                                           args[i] + "\"");
+                        usage = true;
+                    }
+                    break;
                 default:
                     System.err.println("Unknown option '" + args[i] + "'");
                     usage = true;
@@ -120,12 +157,133 @@ public class BuildConfigDB
             String usageMsg = "java " + getClass().getName() + " " +
                 " [-c configDirectory]" +
                 " [-d dataDirectory]" +
+                " [-f(orceRescan)]" +
+                " [-t numThreads]" +
                 "";
 
             throw new IllegalArgumentException(usageMsg);
         }
     }
 
+    /**
+     * Parse a single run configuration file.
+     *
+     * @param file run configuration file
+     * @param reg DOM registry
+     *
+     * @return <tt>null</tt> if the file is not a valid run configuration
+     */
+    private ConfigHashDB.HashEntry scan(File file, IDOMRegistry reg)
+    {
+        // remove the trailing ".xml"
+        final String name =
+            file.getName().substring(0, file.getName().length() - 4);
+
+        Configuration cfg;
+        try {
+            cfg = new Configuration(file, reg);
+        } catch (ConfigException ce) {
+            if (!ce.getMessage().contains("No hub specified")) {
+                LOG.error("Ignoring " + name, ce);
+            }
+            return null;
+        }
+
+        ConfigHashDB.HashEntry entry =
+            new ConfigHashDB.HashEntry(name, HashedFileName.hashName(name),
+                                       cfg.getTriggerConfigName(),
+                                       file.lastModified());
+
+        File tcFile =
+            Configuration.findTriggerFile(getTriggerDirectory(),
+                                          cfg.getTriggerConfigName());
+        if (tcFile != null) {
+            entry.setTriggerFileTime(tcFile.lastModified());
+        }
+
+        // record content keys so reference files can be shared between
+        // run configurations with identical triggers and hubs
+        HashMap<Integer, String> keys = new HashMap<Integer, String>();
+        for (int i = 0; i < TRIGGER_SOURCES.length; i++) {
+            if (cfg.hasTriggersFor(TRIGGER_SOURCES[i])) {
+                try {
+                    keys.put(TRIGGER_SOURCES[i],
+                             cfg.getContentKey(TRIGGER_SOURCES[i]));
+                } catch (ConfigException ce) {
+                    LOG.error("Cannot build content key for " + name, ce);
+                }
+            }
+        }
+        entry.setContentKeys(keys);
+
+        return entry;
+    }
+
+    /**
+     * Get the directory holding the trigger configuration files.
+     *
+     * @return trigger configuration directory
+     */
+    private File getTriggerDirectory()
+    {
+        return new File(cfgDir, "trigger");
+    }
+
+    /**
+     * Has a run configuration (or the trigger configuration it used)
+     * changed since the last scan?
+     *
+     * @param file run configuration file
+     * @param prev state recorded by the last scan (may be null)
+     * @param trigTimes cache of trigger configuration modification times
+     *
+     * @return <tt>false</tt> if neither file has changed
+     */
+    private boolean isChanged(File file, ConfigHashDB.FileState prev,
+                              HashMap<String, Long> trigTimes)
+    {
+        if (prev == null || prev.getModifiedTime() != file.lastModified() ||
+            prev.getTriggerConfigName() == null ||
+            prev.getTriggerFileTime() == 0)
+        {
+            return true;
+        }
+
+        final String trigCfgName = prev.getTriggerConfigName();
+
+        Long trigTime = trigTimes.get(trigCfgName);
+        if (trigTime == null) {
+            File tcFile =
+                Configuration.findTriggerFile(getTriggerDirectory(),
+                                              trigCfgName);
+            trigTime = (tcFile == null ? 0L : tcFile.lastModified());
+            trigTimes.put(trigCfgName, trigTime);
+        }
+
+        return trigTime.longValue() != prev.getTriggerFileTime();
+    }
+
+    /**
+     * Write a batch of entries to the configuration hash database.
+     *
+     * @param batch list of entries (emptied after the write)
+     */
+    private void flush(ArrayList<ConfigHashDB.HashEntry> batch)
+    {
+        if (batch.size() == 0) {
+            return;
+        }
+
+        try {
+            ConfigHashDB.stashHashes(dataDir, batch);
+        } catch (SQLException sex) {
+            LOG.error("Cannot update " + batch.size() +
+                      " config database entries", sex);
+        }
+
+        batch.clear();
+    }
+
     /**
      * Perform a DAQ run.
      *
@@ -133,15 +291,36 @@ public class BuildConfigDB
      */
     public boolean run()
     {
-        IDOMRegistry reg;
+        final long startTime = System.currentTimeMillis();
+
+        final IDOMRegistry reg;
         try {
-            reg = DOMRegistryFactory.load();
+            reg = DOMRegistryCache.load();
         } catch (DOMRegistryException drex) {
             LOG.error("Failed to load DOMRegistry while updating hashDB",
                       drex);
             return false;
         }
 
+        Map<String, ConfigHashDB.FileState> prevStates;
+        if (force) {
+            prevStates = new HashMap<String, ConfigHashDB.FileState>();
+        } else {
+            try {
+                prevStates = ConfigHashDB.getFileStates(dataDir);
+            } catch (SQLException sex) {
+                LOG.error("Cannot read config file times; rescanning all" +
+                          " files", sex);
+                prevStates = new HashMap<String, ConfigHashDB.FileState>();
+            }
+        }
+
+        // many run configurations share each trigger configuration
+        HashMap<String, Long> trigTimes = new HashMap<String, Long>();
+
+        final ArrayList<File> files = new ArrayList<File>();
+
+        int numSkipped = 0;
         File[] entries = cfgDir.listFiles();
         for (int i = 0; i < entries.length; i++) {
             String name = entries[i].getName();
@@ -157,29 +336,107 @@ public class BuildConfigDB
                 continue;
             }
 
-            Configuration cfg;
-            try {
-                cfg = new Configuration(cfgDir, entries[i].getName(), reg);
-            } catch (ConfigException ce) {
-                if (!ce.getMessage().contains("No hub specified")) {
-                    LOG.error("Ignoring " + name, ce);
-                }
+            // ignore files which haven't changed since the last scan
+            if (!isChanged(entries[i], prevStates.get(name), trigTimes)) {
+                numSkipped++;
                 continue;
             }
 
-            final String hash = HashedFileName.hashName(name);
+            files.add(entries[i]);
+        }
+
+        final int numWorkers = Math.max(1, Math.min(numThreads,
+                                                    files.size()));
+
+        if (numWorkers > 1) {
+            // the streaming parser keeps no shared state, so it's safe to
+            // run from several threads at once
+            Configuration.setStreamingParser(true);
+        }
+
+        final ArrayBlockingQueue<ConfigHashDB.HashEntry> queue =
+            new ArrayBlockingQueue<ConfigHashDB.HashEntry>(BATCH_SIZE * 4);
+        final AtomicInteger nextFile = new AtomicInteger(0);
+
+        for (int w = 0; w < numWorkers; w++) {
+            Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            while (true) {
+                                final int idx = nextFile.getAndIncrement();
+                                if (idx >= files.size()) {
+                                    break;
+                                }
+
+                                ConfigHashDB.HashEntry entry =
+                                    scan(files.get(idx), reg);
+                                if (entry != null) {
+                                    putEntry(queue, entry);
+                                }
+                            }
+                        } finally {
+                            putEntry(queue, WORKER_DONE);
+                        }
+                    }
+                });
+            thread.setName("ConfigScanner#" + w);
+            thread.start();
+        }
+
+        // this thread is the only database writer
+        ArrayList<ConfigHashDB.HashEntry> batch =
+            new ArrayList<ConfigHashDB.HashEntry>(BATCH_SIZE);
+        int numDone = 0;
+        int numStored = 0;
+        while (numDone < numWorkers) {
+            ConfigHashDB.HashEntry entry;
             try {
-                ConfigHashDB.stashHash(dataDir, name, hash,
-                                       cfg.getTriggerConfigName());
-            } catch (SQLException sex) {
-                LOG.error("Cannot update config database entry for \"" +
-                          name + "\"", sex);
+                entry = queue.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+
+            if (entry == WORKER_DONE) {
+                numDone++;
+                continue;
+            }
+
+            batch.add(entry);
+            numStored++;
+            if (batch.size() >= BATCH_SIZE) {
+                flush(batch);
             }
         }
+        flush(batch);
+
+        ConfigurationCache.flush();
+        if (LOG.isInfoEnabled()) {
+            LOG.info(String.format("Scanned %d configurations (%d stored," +
+                                   " %d unchanged) with %d threads in" +
+                                   " %d ms", files.size(), numStored,
+                                   numSkipped, numWorkers,
+                                   System.currentTimeMillis() - startTime));
+            LOG.info(ConfigurationCache.getStatistics());
+        }
 
         return true;
     }
 
+    private static void putEntry(ArrayBlockingQueue<ConfigHashDB.HashEntry> q,
+                                 ConfigHashDB.HashEntry entry)
+    {
+        while (true) {
+            try {
+                q.put(entry);
+                break;
+            } catch (InterruptedException ie) {
+                // try again
+            }
+        }
+    }
+
     /**
      * Main program.
      *
@@ -150,6 +150,8 @@ public class ChannelConsumer
     @Override
     public void run()
     {
+        ThreadAccounting.register(ThreadAccounting.CONSUMER);
+
         ByteBuffer lenBuf = ByteBuffer.allocate(4);
 
         while (true) {
@@ -184,6 +186,16 @@ public class ChannelConsumer
 
             buf.flip();
 
+            PayloadValidation.submit(inputName, numWritten + numFailed + 1,
+                                     buf);
+
+            if (len >= 16 && !Util.isStopMessage(buf)) {
+                LatencyTracker.record(LatencyTracker.CONSUMER,
+                                      buf.getLong(8));
+                BufferCacheProfiler.recordSize(BufferCacheProfiler.OUTPUT,
+                                               len);
+            }
+
             try {
                 handler.handle(buf);
             } catch (IOException ioe) {
@@ -209,6 +221,10 @@ public class ChannelConsumer
         }
 
         thread = null;
+
+        ThreadAccounting.unregister();
+
+        ActivitySignal.signal();
     }
 
     /**
@@ -16,9 +16,20 @@ import org.apache.log4j.spi.LoggingEvent;
 public class ColoredAppender
     implements IDAQAppender
 {
+    /** Default number of formatted events queued in asynchronous mode */
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+
     /** minimum level of log messages which will be print. */
     private Level minLevel;
 
+    /** Asynchronous event queue (<tt>null</tt> if writing synchronously) */
+    private String[] queue;
+    private int queueHead;
+    private int queueCount;
+    private boolean blockWhenFull;
+    private long numDropped;
+    private Thread writer;
+
     /**
      * Create a ColoredAppender which ignores everything below the WARN level.
      */
@@ -58,12 +69,30 @@ public class ColoredAppender
     }
 
     /**
-     * Nothing needs to be done here.
+     * Write any queued events and return to synchronous mode.
      */
     @Override
     public void close()
     {
-        // don't need to do anything
+        Thread thread;
+        synchronized (this) {
+            thread = writer;
+            writer = null;
+            notifyAll();
+        }
+
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                // give up on anything still queued
+            }
+        }
+
+        synchronized (this) {
+            queue = null;
+            queueCount = 0;
+        }
     }
 
     /**
@@ -74,31 +103,76 @@ public class ColoredAppender
     public void doAppend(LoggingEvent evt)
     {
         if (evt.getLevel().toInt() >= minLevel.toInt()) {
-            dumpEvent(evt);
+            final String text = formatEvent(evt);
+
+            if (queue == null || !enqueue(text)) {
+                System.out.println(text);
+            }
         }
     }
 
     /**
-     * Dump a logging event to System.out
+     * Add a formatted event to the asynchronous queue.
+     *
+     * @param text formatted event
+     *
+     * @return <tt>false</tt> if the queue has been shut down
+     */
+    private synchronized boolean enqueue(String text)
+    {
+        while (writer != null && queueCount == queue.length) {
+            if (!blockWhenFull) {
+                numDropped++;
+                return true;
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                numDropped++;
+                return true;
+            }
+        }
+
+        if (writer == null) {
+            return false;
+        }
+
+        queue[(queueHead + queueCount) % queue.length] = text;
+        queueCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Format a logging event, including any stack trace.  This must be
+     * done on the logging thread so the location information is correct.
      *
      * @param evt logging event
+     *
+     * @return formatted text
      */
-    private void dumpEvent(LoggingEvent evt)
+    private static String formatEvent(LoggingEvent evt)
     {
         LocationInfo loc = evt.getLocationInformation();
 
-        System.out.println(ANSIEscapeCode.BG_RED + ANSIEscapeCode.FG_YELLOW +
-                           ANSIEscapeCode.ITALIC_ON + evt.getLoggerName() +
-                           " " + evt.getLevel() + ANSIEscapeCode.ITALIC_OFF +
-                           " [" + loc.fullInfo + "] " + evt.getMessage() +
-                           ANSIEscapeCode.OFF);
+        StringBuilder buf = new StringBuilder();
+        buf.append(ANSIEscapeCode.BG_RED).append(ANSIEscapeCode.FG_YELLOW).
+            append(ANSIEscapeCode.ITALIC_ON).append(evt.getLoggerName()).
+            append(' ').append(evt.getLevel()).
+            append(ANSIEscapeCode.ITALIC_OFF).
+            append(" [").append(loc.fullInfo).append("] ").
+            append(evt.getMessage()).append(ANSIEscapeCode.OFF);
 
         String[] stack = evt.getThrowableStrRep();
         for (int i = 0; stack != null && i < stack.length; i++) {
-            System.out.println(ANSIEscapeCode.BG_RED +
-                               ANSIEscapeCode.FG_YELLOW + "> " + stack[i] +
-                               ANSIEscapeCode.OFF);
+            buf.append('\n').
+                append(ANSIEscapeCode.BG_RED).
+                append(ANSIEscapeCode.FG_YELLOW).append("> ").
+                append(stack[i]).append(ANSIEscapeCode.OFF);
         }
+
+        return buf.toString();
     }
 
     /**
@@ -111,6 +185,17 @@ public class ColoredAppender
         throw new Error("Unimplemented");
     }
 
+    /**
+     * Get the number of events dropped because the asynchronous queue
+     * was full.
+     *
+     * @return number of dropped events
+     */
+    public synchronized long getNumberDropped()
+    {
+        return numDropped;
+    }
+
     /**
      * Unimplemented.
      *
@@ -153,6 +238,16 @@ public class ColoredAppender
         throw new Error("Unimplemented");
     }
 
+    /**
+     * Are events being written by a background thread?
+     *
+     * @return <tt>true</tt> if events are queued
+     */
+    public synchronized boolean isAsynchronous()
+    {
+        return writer != null;
+    }
+
     /**
      * Is this appender sending log messages?
      *
@@ -200,6 +295,47 @@ public class ColoredAppender
         throw new Error("Unimplemented");
     }
 
+    /**
+     * Format events on the logging thread but write them from a background
+     * thread, so slow console I/O doesn't stall the threads being timed.
+     *
+     * @param queueSize maximum number of queued events
+     * @param blockWhenFull if <tt>true</tt>, logging threads wait for
+     *                      space when the queue is full; otherwise the
+     *                      event is dropped and counted
+     *
+     * @return this object (so commands can be chained)
+     */
+    public ColoredAppender setAsynchronous(int queueSize,
+                                           boolean blockWhenFull)
+    {
+        if (queueSize < 1) {
+            throw new Error("Bad queue size " + queueSize);
+        }
+
+        close();
+
+        synchronized (this) {
+            queue = new String[queueSize];
+            queueHead = 0;
+            queueCount = 0;
+            this.blockWhenFull = blockWhenFull;
+
+            writer = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        writeQueued();
+                    }
+                });
+            writer.setName("ColoredAppender");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        return this;
+    }
+
     /**
      * Unimplemented.
      *
@@ -244,4 +380,50 @@ public class ColoredAppender
     {
         throw new Error("Unimplemented");
     }
+
+    /**
+     * Write queued events until the appender is closed.
+     */
+    private void writeQueued()
+    {
+        final Thread me = Thread.currentThread();
+
+        String[] batch = new String[queue.length];
+        while (true) {
+            int num;
+            boolean done;
+            synchronized (this) {
+                while (writer == me && queueCount == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        // keep waiting
+                    }
+                }
+
+                done = writer != me;
+
+                num = queueCount;
+                for (int i = 0; i < num; i++) {
+                    final int idx = (queueHead + i) % queue.length;
+                    batch[i] = queue[idx];
+                    queue[idx] = null;
+                }
+                queueHead = (queueHead + num) % queue.length;
+                queueCount = 0;
+
+                // wake up any threads waiting for space
+                notifyAll();
+            }
+
+            for (int i = 0; i < num; i++) {
+                System.out.println(batch[i]);
+                batch[i] = null;
+            }
+
+            if (done) {
+                break;
+            }
+        }
+    }
 }
@@ -9,7 +9,6 @@ import icecube.daq.trigger.algorithm.ITriggerAlgorithm;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.nio.ByteBuffer;
 
 import org.apache.log4j.Logger;
@@ -36,8 +35,11 @@ public class CompareHandler
     private int numExtra;
     private int numMissed;
 
+    private MismatchReporter reporter;
+    private boolean closeReporter;
+
     /**
-     * Create a comparison handler.
+     * Create a comparison handler which writes mismatches to System.out.
      *
      * @param payloadFile file containing good payloads
      *
@@ -45,8 +47,31 @@ public class CompareHandler
      */
     public CompareHandler(File payloadFile)
         throws IOException
+    {
+        this(payloadFile, null);
+    }
+
+    /**
+     * Create a comparison handler.
+     *
+     * @param payloadFile file containing good payloads
+     * @param reporter mismatch reporter (if <tt>null</tt>, mismatches are
+     *                 written to System.out)
+     *
+     * @throws IOException if there is a problem
+     */
+    public CompareHandler(File payloadFile, MismatchReporter reporter)
+        throws IOException
     {
         rdr = new PayloadByteReader(payloadFile);
+
+        if (reporter != null) {
+            this.reporter = reporter;
+        } else {
+            this.reporter =
+                new MismatchReporter(MismatchReporter.DEFAULT_MAX_DUMP_CHARS);
+            closeReporter = true;
+        }
     }
 
     @Override
@@ -62,15 +87,41 @@ public class CompareHandler
         }
 
         rdr.close();
+
+        if (closeReporter) {
+            reporter.close();
+        } else {
+            reporter.flush();
+        }
     }
 
-    private boolean comparePayloads(PrintStream out, ByteBuffer expBuf,
-                                    ByteBuffer gotBuf)
+    private boolean comparePayloads(ByteBuffer expBuf, ByteBuffer gotBuf)
     {
+        FlightRecording.PayloadCompare evt =
+            new FlightRecording.PayloadCompare();
+        evt.begin();
+
         ITriggerRequestPayload exp = getPayload(expBuf);
         ITriggerRequestPayload got = getPayload(gotBuf);
-        setLastUTCTime(got.getUTCTime());
-        return comparePayloads(out, exp, got);
+
+        // 'got' may be recycled or handed off by the comparison
+        final long gotUTC = (got == null ? 0L : got.getUTCTime());
+        if (got != null) {
+            setLastUTCTime(gotUTC);
+        }
+
+        final boolean matched =
+            comparePayloads(reporter, payloadCount, exp, got);
+
+        evt.end();
+        if (evt.shouldCommit()) {
+            evt.payloadNumber = payloadCount;
+            evt.utcTime = gotUTC;
+            evt.matched = matched;
+            evt.commit();
+        }
+
+        return matched;
     }
 
     @Override
@@ -144,8 +195,6 @@ public class CompareHandler
     public void handle(ByteBuffer buf)
         throws IOException
     {
-        final PrintStream out = System.out;
-
         if (buf == null) {
             throw new IOException("Cannot write null payload");
         }
@@ -173,7 +222,8 @@ public class CompareHandler
             }
 
             sawStop = true;
-        } else if (!comparePayloads(out, expBuf, buf)) {
+            ActivitySignal.signal();
+        } else if (!comparePayloads(expBuf, buf)) {
             throw new IOException("Payload #" + payloadCount +
                                   " comparison failed");
         }
@@ -182,6 +232,15 @@ public class CompareHandler
     @Override
     public void reportTime(double clockSecs)
     {
+        // make sure all mismatches are written before the final report
+        reporter.flush();
+        if (reporter.getNumberReported() > 0) {
+            System.out.println("Wrote " + reporter.getNumberReported() +
+                               " mismatch" +
+                               (reporter.getNumberReported() == 1 ? "" :
+                                "es") + " to " + reporter.getOutputName());
+        }
+
         if (firstTime != Long.MIN_VALUE && lastTime != Long.MIN_VALUE) {
             final double daqTicksPerSec = 10000000000.0;
 
@@ -7,16 +7,10 @@ import icecube.daq.trigger.component.DAQTriggerComponent;
 import icecube.daq.trigger.control.ITriggerManager;
 
 import java.io.PrintStream;
-import java.lang.reflect.Array;
-import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
-import javax.management.DynamicMBean;
-import javax.management.MBeanAttributeInfo;
-import javax.management.MBeanInfo;
-
 import org.apache.log4j.Logger;
 
 /**
@@ -30,6 +24,10 @@ public class ComponentMonitor
     private DAQTriggerComponent comp;
     private String prefix;
 
+    /** MBean sampling plans, in the order they were first seen */
+    private LinkedHashMap<String, MBeanSampler> samplers =
+        new LinkedHashMap<String, MBeanSampler>();
+
     ComponentMonitor(DAQTriggerComponent comp, String prefix,
                      PayloadFileListBridge[] bridges, Consumer consumer,
                      int maxFailures)
@@ -38,6 +36,11 @@ public class ComponentMonitor
 
         this.comp = comp;
         this.prefix = prefix;
+
+        BufferCacheProfiler.setCache(BufferCacheProfiler.INPUT,
+                                     comp.getInputCache());
+        BufferCacheProfiler.setCache(BufferCacheProfiler.OUTPUT,
+                                     comp.getOutputCache());
     }
 
     @Override
@@ -74,100 +77,27 @@ public class ComponentMonitor
                 setNumberSent(comp.getPayloadsSent());
                 changed = true;
             }
-        }
-
-        return changed;
-    }
-
-    private void dumpMBeanData(DumpState state, Object obj, Class cls)
-    {
-        Class[] ifaces = cls.getInterfaces();
-        for (int i = 0; i < ifaces.length; i++) {
-            if (ifaces[i].getName().endsWith("MBean")) {
-                if (ifaces[i].getName().endsWith("DynamicMBean")) {
-                    dumpMBeanDynamic(state, (DynamicMBean) obj);
-                } else {
-                    dumpMBeanInterface(state, obj, ifaces[i]);
-                }
-                break;
-            }
-        }
-
-        Class clsSuper = cls.getSuperclass();
-        if (clsSuper != null) {
-            dumpMBeanData(state, obj, clsSuper);
-        }
-    }
 
-    private void dumpMBeanDynamic(DumpState state, DynamicMBean mbean)
-    {
-        MBeanInfo info = mbean.getMBeanInfo();
-        MBeanAttributeInfo[] attrs = info.getAttributes();
-        for (int i = 0; i < attrs.length; i++) {
-            if (!attrs[i].isReadable()) {
-                final String beanName = mbean.getMBeanInfo().getClassName();
-                System.err.println("ERROR: Unreadable " + beanName + " attr#" +
-                                   i + ": " + attrs[i].getName());
-            } else {
-                Object rtnval;
-                try {
-                    rtnval = mbean.getAttribute(attrs[i].getName());
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    continue;
-                }
-
-                state.add(attrs[i].getName(), rtnval);
-            }
+            BufferCacheProfiler.sample();
         }
-    }
-
-    private void dumpMBeanInterface(DumpState state, Object obj, Class iface)
-    {
-        Method[] methods = iface.getMethods();
-        for (int i = 0; i < methods.length; i++) {
-            Class[] params = methods[i].getParameterTypes();
-            if (params != null && params.length > 0) {
-                System.err.println("ERROR: " + obj.getClass().getName() +
-                                   " MBean method " + iface.getName() +
-                                   " should not have any parameters");
-                continue;
-            }
-
-            String mthdName = methods[i].getName();
-            if (mthdName.startsWith("get")) {
-                mthdName = mthdName.substring(3);
-            } else if (mthdName.startsWith("is")) {
-                mthdName = mthdName.substring(2);
-            } else {
-                System.err.println("ERROR: " + obj.getClass().getName() +
-                                   " MBean method " + iface.getName() +
-                                   " does not start with \"get\" or \"is\"");
-                continue;
-            }
-
-            Object rtnval;
-            try {
-                rtnval = methods[i].invoke(obj);
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                continue;
-            }
 
-            state.add(mthdName, rtnval);
-        }
+        return changed;
     }
 
     public void dumpMonitoring(PrintStream out, int rep)
     {
+        final String dateStr = getFakeDateString(rep);
+        LatencyTracker.dumpSnapshot(out, dateStr);
+        ThreadAccounting.dumpSnapshot(out, dateStr,
+                                      getNumberOfInputPayloads());
+        BufferCacheProfiler.dumpSnapshot(out, dateStr);
+
         Set<String> names = comp.listMBeans();
         if (names == null || names.size() == 0) {
             return;
         }
 
-        DumpState state = new DumpState(out, getFakeDateString(rep));
         for (String name : names) {
-            state.setName(name);
             Object obj;
             try {
                 obj = comp.getMBean(name);
@@ -176,8 +106,13 @@ public class ComponentMonitor
                 continue;
             }
 
-            dumpMBeanData(state, obj, obj.getClass());
-            state.finish();
+            MBeanSampler sampler = samplers.get(name);
+            if (sampler == null || sampler.getMBean() != obj) {
+                sampler = new MBeanSampler(name, obj);
+                samplers.put(name, sampler);
+            }
+
+            sampler.write(out, dateStr);
         }
     }
 
@@ -210,7 +145,7 @@ public class ComponentMonitor
      *
      * @return monitoring date string
      */
-    private String getFakeDateString(int count)
+    static String getFakeDateString(int count)
     {
         int min = count * 5;
 
@@ -314,81 +249,4 @@ public class ComponentMonitor
     {
         comp.getReader().unpause();
     }
-
-    class DumpState
-    {
-        private String indent = "    ";
-
-        private PrintStream out;
-        private String dateStr;
-
-        private String objectName;
-        private boolean printed;
-
-        DumpState(PrintStream out, String dateStr)
-        {
-            this.out = out;
-            this.dateStr = dateStr;
-
-            objectName = "??UNSET??";
-        }
-
-        void add(String name, Object value)
-        {
-            if (!printed) {
-                //out.print(ANSIEscapeCode.FG_YELLOW + ANSIEscapeCode.BG_BLUE);
-                out.println(objectName + ": " + dateStr + ":");
-                printed = true;
-            }
-            //out.print(ANSIEscapeCode.FG_YELLOW + ANSIEscapeCode.BG_BLUE);
-            out.println(indent + name + ": " + formatMBeanValue(value));
-            //out.println(ANSIEscapeCode.OFF);
-        }
-
-        void finish()
-        {
-            if (printed) {
-                out.println();
-            }
-        }
-
-        private String formatMBeanValue(Object obj)
-        {
-            if (obj == null) {
-                return "null";
-            } else if (obj.getClass().isArray()) {
-                StringBuilder strBuf = new StringBuilder("[");
-                final int len = Array.getLength(obj);
-                for (int i = 0; i < len; i++) {
-                    if (strBuf.length() > 1) {
-                        strBuf.append(", ");
-                    }
-                    strBuf.append(formatMBeanValue(Array.get(obj, i)));
-                }
-                strBuf.append("]");
-                return strBuf.toString();
-            } else if (obj.getClass().equals(HashMap.class)) {
-                StringBuilder strBuf = new StringBuilder("{");
-                HashMap map = (HashMap) obj;
-                for (Object key : map.keySet()) {
-                    if (strBuf.length() > 1) {
-                        strBuf.append(", ");
-                    }
-                    final Object value = map.get(key);
-                    strBuf.append('\'').append(formatMBeanValue(key));
-                    strBuf.append("': ").append(formatMBeanValue(value));
-                }
-                strBuf.append("}");
-                return strBuf.toString();
-            } else {
-                return obj.toString();
-            }
-        }
-
-        void setName(String name)
-        {
-            objectName = name;
-            printed = false;
-        }
-    }
 }
@@ -8,6 +8,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
@@ -26,6 +30,28 @@ public class ConfigHashDB
     private static PreparedStatement SELECT_TRIGCFG;
     private static PreparedStatement INSERT_TRIGCFG;
 
+    /** Cached trigger configuration IDs */
+    private static final HashMap<String, Integer> TRIGCFG_IDS =
+        new HashMap<String, Integer>();
+
+    /** Maximum number of pending entries before an early flush */
+    private static final int FLUSH_BATCH_SIZE = 256;
+    /** Maximum time between flushes of pending entries */
+    private static final long FLUSH_INTERVAL_MILLIS = 5000L;
+
+    /** Lock for the write-behind cache */
+    private static final Object PENDING_LOCK = new Object();
+    /** Entries already stored or queued, mapped to their hash and trigger
+     *  configuration (or to their content key) */
+    private static HashMap<String, String> known =
+        new HashMap<String, String>();
+    /** Entries waiting to be written */
+    private static ArrayList<HashEntry> pending = new ArrayList<HashEntry>();
+    /** Database directory for pending entries */
+    private static File pendingDir;
+    /** Thread which writes pending entries */
+    private static Thread flushThread;
+
     static {
         BasicConfigurator.configure();
 
@@ -39,6 +65,8 @@ public class ConfigHashDB
         Runtime.getRuntime().addShutdownHook(new Thread() {
                 public void run()
                 {
+                    flush();
+
                     synchronized (DB_LOCK) {
                         if (DB_CONN != null) {
                             try {
@@ -80,6 +108,13 @@ public class ConfigHashDB
             throw new SQLException(DB_NAME + " database has not been opened");
         }
 
+        synchronized (TRIGCFG_IDS) {
+            Integer cached = TRIGCFG_IDS.get(trigCfgName);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         if (SELECT_TRIGCFG == null) {
             synchronized (DB_CONN) {
                 SELECT_TRIGCFG =
@@ -106,6 +141,9 @@ public class ConfigHashDB
 
         // if we found the name, return the ID
         if (id > Integer.MIN_VALUE) {
+            synchronized (TRIGCFG_IDS) {
+                TRIGCFG_IDS.put(trigCfgName, id);
+            }
             return id;
         }
 
@@ -203,6 +241,45 @@ public class ConfigHashDB
                               DB_NAME, sex);
                 }
             }
+
+            try {
+                stmt.executeUpdate("create table if not exists" +
+                                   " contentkey(" +
+                                   "name string," +
+                                   "srcid integer," +
+                                   "key string," +
+                                   "primary key(name, srcid))");
+                stmt.executeUpdate("create index if not exists" +
+                                   " ck_keyindex on contentkey(key, srcid)");
+            } catch (SQLException sex) {
+                LOG.error("Cannot create contentkey database in " +
+                          DB_NAME, sex);
+            }
+
+            try {
+                stmt.executeUpdate("create table if not exists" +
+                                   " filestate(" +
+                                   "name string primary key," +
+                                   "mtime integer," +
+                                   "trigconfig string," +
+                                   "trigmtime integer)");
+            } catch (SQLException sex) {
+                LOG.error("Cannot create filestate database in " +
+                          DB_NAME, sex);
+            }
+
+            // older databases only recorded the run configuration time
+            final String[] newCols = {
+                "trigconfig string", "trigmtime integer",
+            };
+            for (int i = 0; i < newCols.length; i++) {
+                try {
+                    stmt.executeUpdate("alter table filestate add column " +
+                                       newCols[i]);
+                } catch (SQLException sex) {
+                    // column already exists
+                }
+            }
         } finally {
             try {
                 stmt.close();
@@ -233,35 +310,470 @@ public class ConfigHashDB
                 } catch (SQLException sex) {
                     throw new SQLException("Cannot open " + DB_NAME, sex);
                 }
+
+                try {
+                    enableWAL();
+                } catch (SQLException sex) {
+                    LOG.error("Cannot enable write-ahead logging for " +
+                              DB_NAME, sex);
+                }
             }
 
             initializeDatabase();
         }
     }
 
-    public static final void stashHash(File dataDir, String runCfgName,
-                                       String hash, String trigCfgName)
+    /**
+     * Switch the database to write-ahead logging, so bulk updates don't
+     * rewrite the rollback journal for every transaction.
+     */
+    private static final void enableWAL()
+        throws SQLException
+    {
+        Statement stmt = getStatement();
+        try {
+            stmt.execute("pragma journal_mode = WAL");
+            stmt.execute("pragma synchronous = NORMAL");
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Find all run configurations which share a content key.
+     *
+     * @param dataDir directory holding the database
+     * @param key content key
+     * @param srcId trigger handler source ID
+     *
+     * @return list of run configuration names
+     *
+     * @throws SQLException if the database cannot be read
+     */
+    public static final List<String> findRunConfigs(File dataDir, String key,
+                                                    int srcId)
+        throws SQLException
+    {
+        // make sure keys queued by this process are visible
+        flush();
+
+        if (DB_CONN == null) {
+            openDatabase(dataDir);
+        }
+
+        ArrayList<String> list = new ArrayList<String>();
+        synchronized (DB_LOCK) {
+            PreparedStatement pstmt =
+                DB_CONN.prepareStatement("select name from contentkey" +
+                                         " where key=? and srcid=?");
+            try {
+                pstmt.setString(1, key);
+                pstmt.setInt(2, srcId);
+
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    list.add(rs.getString(1));
+                }
+                rs.close();
+            } finally {
+                pstmt.close();
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Get the file state recorded for each run configuration by the last
+     * <tt>stashHashes()</tt> call.
+     *
+     * @param dataDir directory holding the database
+     *
+     * @return map of run configuration names to file states
+     *
+     * @throws SQLException if the database cannot be read
+     */
+    public static final Map<String, FileState> getFileStates(File dataDir)
         throws SQLException
     {
         if (DB_CONN == null) {
             openDatabase(dataDir);
         }
 
-        PreparedStatement pstmt =
-            DB_CONN.prepareStatement("insert or ignore into runconfig" +
-                                     "(name, hash, trigconfig_id)" +
-                                     " values (?, ?, ?)");
-
-        pstmt.setString(1, runCfgName);
-        pstmt.setString(2, hash);
-        if (trigCfgName == null) {
-            pstmt.setNull(3, java.sql.Types.INTEGER);
-        } else {
-            final int tcid = getTriggerConfigID(trigCfgName);
-            pstmt.setInt(3, tcid);
+        HashMap<String, FileState> map = new HashMap<String, FileState>();
+
+        Statement stmt = getStatement();
+        try {
+            ResultSet rs =
+                stmt.executeQuery("select name, mtime, trigconfig," +
+                                  " trigmtime from filestate");
+            while (rs.next()) {
+                map.put(rs.getString(1),
+                        new FileState(rs.getLong(2), rs.getString(3),
+                                      rs.getLong(4)));
+            }
+            rs.close();
+        } finally {
+            stmt.close();
         }
 
-        pstmt.execute();
-        pstmt.close();
+        return map;
+    }
+
+    /**
+     * Add a batch of run configurations in a single transaction.
+     *
+     * @param dataDir directory holding the database
+     * @param entries run configuration entries
+     *
+     * @throws SQLException if the batch cannot be written
+     */
+    public static final void stashHashes(File dataDir,
+                                         List<HashEntry> entries)
+        throws SQLException
+    {
+        if (DB_CONN == null) {
+            openDatabase(dataDir);
+        }
+
+        synchronized (DB_LOCK) {
+            DB_CONN.setAutoCommit(false);
+            try {
+                PreparedStatement rcStmt =
+                    DB_CONN.prepareStatement("insert or ignore into" +
+                                             " runconfig(name, hash," +
+                                             " trigconfig_id)" +
+                                             " values (?, ?, ?)");
+                PreparedStatement fsStmt =
+                    DB_CONN.prepareStatement("insert or replace into" +
+                                             " filestate(name, mtime," +
+                                             " trigconfig, trigmtime)" +
+                                             " values (?, ?, ?, ?)");
+                PreparedStatement ckStmt =
+                    DB_CONN.prepareStatement("insert or replace into" +
+                                             " contentkey(name, srcid, key)" +
+                                             " values (?, ?, ?)");
+                try {
+                    for (HashEntry entry : entries) {
+                        // content-key-only entries have no hash
+                        if (entry.hash != null) {
+                            rcStmt.setString(1, entry.runCfgName);
+                            rcStmt.setString(2, entry.hash);
+                            if (entry.trigCfgName == null) {
+                                rcStmt.setNull(3, java.sql.Types.INTEGER);
+                            } else {
+                                final int tcId =
+                                    getTriggerConfigID(entry.trigCfgName);
+                                rcStmt.setInt(3, tcId);
+                            }
+                            rcStmt.addBatch();
+                        }
+
+                        if (entry.mtime > 0) {
+                            fsStmt.setString(1, entry.runCfgName);
+                            fsStmt.setLong(2, entry.mtime);
+                            fsStmt.setString(3, entry.trigCfgName);
+                            fsStmt.setLong(4, entry.trigMtime);
+                            fsStmt.addBatch();
+                        }
+
+                        if (entry.contentKeys != null) {
+                            for (Map.Entry<Integer, String> ck :
+                                     entry.contentKeys.entrySet())
+                            {
+                                ckStmt.setString(1, entry.runCfgName);
+                                ckStmt.setInt(2, ck.getKey());
+                                ckStmt.setString(3, ck.getValue());
+                                ckStmt.addBatch();
+                            }
+                        }
+                    }
+
+                    rcStmt.executeBatch();
+                    fsStmt.executeBatch();
+                    ckStmt.executeBatch();
+                } finally {
+                    rcStmt.close();
+                    fsStmt.close();
+                    ckStmt.close();
+                }
+
+                DB_CONN.commit();
+            } catch (SQLException sex) {
+                try {
+                    DB_CONN.rollback();
+                } catch (SQLException rex) {
+                    LOG.error("Cannot roll back " + DB_NAME, rex);
+                }
+
+                // any trigger configurations added by this batch are gone
+                synchronized (TRIGCFG_IDS) {
+                    TRIGCFG_IDS.clear();
+                }
+                throw sex;
+            } finally {
+                DB_CONN.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Write all pending entries to the database.
+     */
+    public static final synchronized void flush()
+    {
+        File dataDir;
+        ArrayList<HashEntry> batch;
+        synchronized (PENDING_LOCK) {
+            if (pending.size() == 0) {
+                return;
+            }
+
+            dataDir = pendingDir;
+            batch = pending;
+            pending = new ArrayList<HashEntry>();
+        }
+
+        try {
+            stashHashes(dataDir, batch);
+        } catch (SQLException sex) {
+            LOG.error("Cannot write " + batch.size() + " entries to " +
+                      DB_NAME, sex);
+
+            // forget the failed entries so they can be retried
+            synchronized (PENDING_LOCK) {
+                for (HashEntry entry : batch) {
+                    if (entry.hash != null) {
+                        known.remove(entry.runCfgName);
+                    }
+                    if (entry.contentKeys != null) {
+                        for (Integer srcId : entry.contentKeys.keySet()) {
+                            known.remove(getContentKnownKey(entry.runCfgName,
+                                                            srcId));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write pending entries whenever the batch fills up or the flush
+     * interval expires.
+     */
+    private static final void runFlusher()
+    {
+        while (true) {
+            synchronized (PENDING_LOCK) {
+                if (pending.size() < FLUSH_BATCH_SIZE) {
+                    try {
+                        PENDING_LOCK.wait(FLUSH_INTERVAL_MILLIS);
+                    } catch (InterruptedException ie) {
+                        // flush now
+                    }
+                }
+            }
+
+            flush();
+        }
+    }
+
+    /**
+     * Add a run configuration to the database.  Entries which have already
+     * been seen by this process are ignored, and new entries are written
+     * in batches by a background thread (and when the process exits).
+     *
+     * @param dataDir directory holding the database
+     * @param runCfgName run configuration name
+     * @param hash hashed run configuration name
+     * @param trigCfgName trigger configuration name (may be null)
+     *
+     * @throws SQLException if there is a problem
+     */
+    public static final void stashHash(File dataDir, String runCfgName,
+                                       String hash, String trigCfgName)
+        throws SQLException
+    {
+        final String value = hash + "|" + trigCfgName;
+
+        queue(dataDir, runCfgName, value,
+              new HashEntry(runCfgName, hash, trigCfgName, 0L));
+    }
+
+    /**
+     * Add an entry to the write-behind cache unless an identical entry
+     * has already been stored or queued.
+     *
+     * @param dataDir directory holding the database
+     * @param knownKey key identifying the entry in the <tt>known</tt> map
+     * @param value description of the entry's contents
+     * @param entry entry to write
+     */
+    private static final void queue(File dataDir, String knownKey,
+                                    String value, HashEntry entry)
+    {
+        synchronized (PENDING_LOCK) {
+            if (value.equals(known.get(knownKey))) {
+                return;
+            }
+            known.put(knownKey, value);
+
+            if (pendingDir == null) {
+                pendingDir = dataDir;
+            }
+            pending.add(entry);
+
+            if (flushThread == null) {
+                flushThread = new Thread(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            runFlusher();
+                        }
+                    });
+                flushThread.setName("ConfigHashDB-flush");
+                flushThread.setDaemon(true);
+                flushThread.start();
+            } else if (pending.size() >= FLUSH_BATCH_SIZE) {
+                PENDING_LOCK.notify();
+            }
+        }
+    }
+
+    /**
+     * Record the content key for a run configuration's trigger handler.
+     * Like <tt>stashHash()</tt>, keys are written in batches by a
+     * background thread.
+     *
+     * @param dataDir directory holding the database
+     * @param runCfgName run configuration name
+     * @param srcId trigger handler source ID
+     * @param key content key
+     *
+     * @throws SQLException if there is a problem
+     */
+    public static final void stashContentKey(File dataDir, String runCfgName,
+                                             int srcId, String key)
+        throws SQLException
+    {
+        HashMap<Integer, String> keys = new HashMap<Integer, String>();
+        keys.put(srcId, key);
+
+        HashEntry entry = new HashEntry(runCfgName, null, null, 0L);
+        entry.setContentKeys(keys);
+
+        queue(dataDir, getContentKnownKey(runCfgName, srcId), key, entry);
+    }
+
+    /**
+     * Build the <tt>known</tt> map key for a content key.
+     *
+     * @param runCfgName run configuration name
+     * @param srcId trigger handler source ID
+     *
+     * @return map key
+     */
+    private static final String getContentKnownKey(String runCfgName,
+                                                   int srcId)
+    {
+        return runCfgName + "#" + srcId;
+    }
+
+    /**
+     * A run configuration to be added by <tt>stashHashes()</tt>.
+     */
+    public static class HashEntry
+    {
+        private String runCfgName;
+        private String hash;
+        private String trigCfgName;
+        private long mtime;
+        private long trigMtime;
+        private Map<Integer, String> contentKeys;
+
+        /**
+         * Create an entry.
+         *
+         * @param runCfgName run configuration name
+         * @param hash hashed run configuration name
+         * @param trigCfgName trigger configuration name (may be null)
+         * @param mtime run configuration file modification time
+         */
+        public HashEntry(String runCfgName, String hash, String trigCfgName,
+                         long mtime)
+        {
+            this.runCfgName = runCfgName;
+            this.hash = hash;
+            this.trigCfgName = trigCfgName;
+            this.mtime = mtime;
+        }
+
+        /**
+         * Set the content key for each of the configuration's trigger
+         * handlers.
+         *
+         * @param keys map of source IDs to content keys
+         */
+        public void setContentKeys(Map<Integer, String> keys)
+        {
+            contentKeys = keys;
+        }
+
+        /**
+         * Set the trigger configuration file's modification time.
+         *
+         * @param trigMtime trigger configuration file modification time
+         */
+        public void setTriggerFileTime(long trigMtime)
+        {
+            this.trigMtime = trigMtime;
+        }
+    }
+
+    /**
+     * File state recorded for a run configuration.
+     */
+    public static class FileState
+    {
+        private long mtime;
+        private String trigCfgName;
+        private long trigMtime;
+
+        FileState(long mtime, String trigCfgName, long trigMtime)
+        {
+            this.mtime = mtime;
+            this.trigCfgName = trigCfgName;
+            this.trigMtime = trigMtime;
+        }
+
+        /**
+         * Get the run configuration file's modification time.
+         *
+         * @return modification time
+         */
+        public long getModifiedTime()
+        {
+            return mtime;
+        }
+
+        /**
+         * Get the trigger configuration name.
+         *
+         * @return trigger configuration name (may be null)
+         */
+        public String getTriggerConfigName()
+        {
+            return trigCfgName;
+        }
+
+        /**
+         * Get the trigger configuration file's modification time.
+         *
+         * @return modification time (0 if unknown)
+         */
+        public long getTriggerFileTime()
+        {
+            return trigMtime;
+        }
     }
 }
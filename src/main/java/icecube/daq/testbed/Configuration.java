@@ -6,17 +6,22 @@ import icecube.daq.trigger.algorithm.ITriggerAlgorithm;
 import icecube.daq.trigger.config.DomSetFactory;
 import icecube.daq.trigger.exceptions.ConfigException;
 import icecube.daq.trigger.exceptions.TriggerException;
-import icecube.daq.util.DOMRegistryFactory;
 import icecube.daq.util.IDOMRegistry;
 import icecube.daq.util.JAXPUtil;
 import icecube.daq.util.JAXPUtilException;
 
 import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -92,10 +97,28 @@ class AlgorithmData
         parameters.put(name, value);
     }
 
+    /**
+     * Make an independent copy of this algorithm description.
+     *
+     * @return new copy
+     */
+    AlgorithmData copy()
+    {
+        AlgorithmData ad = new AlgorithmData(name, cfgId, srcId);
+        ad.parameters.putAll(parameters);
+        ad.readouts.addAll(readouts);
+        return ad;
+    }
+
     public void addReadout(int type, int offset, int minus, int plus)
         throws ConfigException
     {
-        readouts.add(new TriggerReadout(type, offset, minus, plus));
+        addReadoutData(new TriggerReadout(type, offset, minus, plus));
+    }
+
+    void addReadoutData(TriggerReadout rdout)
+    {
+        readouts.add(rdout);
     }
 
     /**
@@ -240,6 +263,16 @@ class AlgorithmData
         return name;
     }
 
+    Map<String, String> getParameters()
+    {
+        return parameters;
+    }
+
+    List<TriggerReadout> getReadouts()
+    {
+        return readouts;
+    }
+
     public int getSourceId()
     {
         return srcId;
@@ -291,6 +324,9 @@ public class Configuration
     // maximum trigger type in 2019 is 24
     private static final int MAX_TRIGGER_TYPES = 100;
 
+    /** If <tt>true</tt>, parse XML files with StreamingConfigParser */
+    private static boolean useStreamingParser;
+
     private File file;
     private String trigCfgName;
     private List<Integer> stringHubs;
@@ -309,31 +345,40 @@ public class Configuration
     {
         this.file = file;
 
-        loadRunConfig();
-
         File trigDir = new File(file.getParentFile(), "trigger");
-        if (!trigDir.exists() || !trigDir.isDirectory()) {
-            throw new ConfigException("Cannot find trigger configuration" +
-                                      " directory in " + file.getParentFile());
-        }
 
-        File tcFile = new File(trigDir, trigCfgName);
-        if (!tcFile.exists()) {
-            tcFile = new File(trigDir, trigCfgName + ".xml");
-            if (!tcFile.exists()) {
-                throw new ConfigException("Cannot find trigger" +
-                                          " configuration \"" + trigCfgName +
-                                          "\" in " + trigDir);
-            }
+        ConfigurationCache.Entry entry = null;
+        if (trigDir.isDirectory()) {
+            entry = ConfigurationCache.lookup(file, trigDir);
         }
 
-        loadTrigConfig(tcFile);
+        if (entry != null) {
+            trigCfgName = entry.getTriggerConfigName();
+            stringHubs = entry.getStringHubs();
+            icetopHubs = entry.getIcetopHubs();
+            algorithmData = entry.getAlgorithmData();
+        } else {
+            File tcFile = parse(useStreamingParser);
+
+            ConfigurationCache.store(file, tcFile, trigCfgName, stringHubs,
+                                     icetopHubs, algorithmData);
+        }
 
         final String cfgPath = trigDir.getParentFile().getPath();
         DomSetFactory.setConfigurationDirectory(cfgPath);
         DomSetFactory.setDomRegistry(registry);
     }
 
+    /**
+     * Create an empty configuration to be filled in by <tt>parse()</tt>.
+     *
+     * @param file run configuration file
+     */
+    private Configuration(File file)
+    {
+        this.file = file;
+    }
+
     private static File buildFileName(File configDir, String runCfgName)
         throws ConfigException
     {
@@ -349,6 +394,28 @@ public class Configuration
         return tmp;
     }
 
+    /**
+     * Find the trigger configuration file.
+     *
+     * @param trigDir trigger configuration directory
+     * @param trigCfgName trigger configuration name, with or without
+     *                    the trailing ".xml"
+     *
+     * @return <tt>null</tt> if the file does not exist
+     */
+    static File findTriggerFile(File trigDir, String trigCfgName)
+    {
+        File tcFile = new File(trigDir, trigCfgName);
+        if (!tcFile.exists()) {
+            tcFile = new File(trigDir, trigCfgName + ".xml");
+            if (!tcFile.exists()) {
+                return null;
+            }
+        }
+
+        return tcFile;
+    }
+
     /**
      * Get the number of hubs for the specified trigger handler.
      *
@@ -440,6 +507,19 @@ public class Configuration
             throw new ConfigException(jex);
         }
 
+        return parseInteger(intStr);
+    }
+
+    /**
+     * Convert a string to an integer.
+     *
+     * @param intStr integer string
+     *
+     * @return integer value
+     */
+    static int parseInteger(String intStr)
+        throws ConfigException
+    {
         if (intStr != null && intStr.length() > 0) {
             try {
                 return Integer.parseInt(intStr);
@@ -484,6 +564,111 @@ public class Configuration
         return str.toString().trim();
     }
 
+    /**
+     * Build a key which identifies everything in this configuration that
+     * affects the output of a trigger handler: its algorithms (with their
+     * parameters and readouts), the algorithms feeding it, and the hubs
+     * supplying its input.  Run configurations which differ only in
+     * things like DOM configurations share the same key.
+     *
+     * @param srcId trigger handler source ID
+     *
+     * @return hex string
+     *
+     * @throws ConfigException if the source ID is not a trigger handler
+     */
+    public String getContentKey(int srcId)
+        throws ConfigException
+    {
+        int[] srcIds;
+        switch (srcId) {
+        case SourceIdRegistry.INICE_TRIGGER_SOURCE_ID:
+        case SourceIdRegistry.ICETOP_TRIGGER_SOURCE_ID:
+            srcIds = new int[] { srcId };
+            break;
+        case SourceIdRegistry.GLOBAL_TRIGGER_SOURCE_ID:
+            srcIds = new int[] {
+                SourceIdRegistry.INICE_TRIGGER_SOURCE_ID,
+                SourceIdRegistry.ICETOP_TRIGGER_SOURCE_ID,
+                SourceIdRegistry.GLOBAL_TRIGGER_SOURCE_ID,
+            };
+            break;
+        default:
+            String name = SourceIdRegistry.getDAQNameFromSourceID(srcId);
+            throw new ConfigException("Cannot build content key for " +
+                                      name);
+        }
+
+        StringBuilder buf = new StringBuilder("src ").append(srcId);
+        for (int i = 0; i < srcIds.length; i++) {
+            if (srcIds[i] == SourceIdRegistry.GLOBAL_TRIGGER_SOURCE_ID) {
+                // global trigger input is the other handlers' output
+            } else if (srcIds[i] ==
+                       SourceIdRegistry.INICE_TRIGGER_SOURCE_ID)
+            {
+                buf.append("\nstringHubs ").append(stringHubs);
+            } else {
+                buf.append("\nicetopHubs ").append(icetopHubs);
+            }
+
+            ArrayList<AlgorithmData> list = new ArrayList<AlgorithmData>();
+            for (AlgorithmData ad : algorithmData) {
+                if (ad.getSourceId() == srcIds[i]) {
+                    list.add(ad);
+                }
+            }
+            Collections.sort(list, new Comparator<AlgorithmData>() {
+                    @Override
+                    public int compare(AlgorithmData a1, AlgorithmData a2)
+                    {
+                        if (a1.getConfigId() != a2.getConfigId()) {
+                            return a1.getConfigId() < a2.getConfigId() ?
+                                -1 : 1;
+                        }
+                        return a1.getName().compareTo(a2.getName());
+                    }
+                });
+
+            for (AlgorithmData ad : list) {
+                buf.append("\nalgorithm ").append(ad);
+
+                TreeMap<String, String> params =
+                    new TreeMap<String, String>();
+                for (Map.Entry<String, String> entry :
+                         ad.getParameters().entrySet())
+                {
+                    // TreeMap can't hold a null key
+                    params.put(String.valueOf(entry.getKey()),
+                               entry.getValue());
+                }
+                for (Map.Entry<String, String> entry : params.entrySet()) {
+                    buf.append("\n  param ").append(entry.getKey()).
+                        append('=').append(entry.getValue());
+                }
+
+                for (TriggerReadout rdout : ad.getReadouts()) {
+                    buf.append("\n  ").append(rdout);
+                }
+            }
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new Error("MD5 is not available", nsae);
+        }
+
+        byte[] bytes;
+        try {
+            bytes = buf.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new Error("UTF-8 is not available", uee);
+        }
+
+        return new BigInteger(1, md.digest(bytes)).toString(16);
+    }
+
     /**
      * Get run configuration directory name.
      *
@@ -553,6 +738,56 @@ public class Configuration
         return false;
     }
 
+    /**
+     * Parse the run configuration file and its trigger configuration file.
+     *
+     * @param streaming if <tt>true</tt>, use the streaming parser
+     *
+     * @return trigger configuration file
+     *
+     * @throws ConfigException if either file is missing or invalid
+     */
+    private File parse(boolean streaming)
+        throws ConfigException
+    {
+        if (streaming) {
+            streamRunConfig();
+        } else {
+            loadRunConfig();
+        }
+
+        File trigDir = new File(file.getParentFile(), "trigger");
+        if (!trigDir.exists() || !trigDir.isDirectory()) {
+            throw new ConfigException("Cannot find trigger configuration" +
+                                      " directory in " + file.getParentFile());
+        }
+
+        File tcFile = findTriggerFile(trigDir, trigCfgName);
+        if (tcFile == null) {
+            throw new ConfigException("Cannot find trigger configuration \"" +
+                                      trigCfgName + "\" in " + trigDir);
+        }
+
+        if (streaming) {
+            streamTrigConfig(tcFile);
+        } else {
+            loadTrigConfig(tcFile);
+        }
+
+        return tcFile;
+    }
+
+    /**
+     * Choose the parser used when a configuration is not in the cache.
+     *
+     * @param val if <tt>true</tt>, use the single-pass streaming parser
+     *            instead of the DOM/XPath parser
+     */
+    public static void setStreamingParser(boolean val)
+    {
+        useStreamingParser = val;
+    }
+
     private void loadRunConfig()
         throws ConfigException
     {
@@ -574,13 +809,82 @@ public class Configuration
         try {
             doc = JAXPUtil.loadXMLDocument(file);
         } catch (JAXPUtilException de) {
-            throw new ConfigException("Cannot read run configuration" +
+            throw new ConfigException("Cannot read trigger configuration" +
                                       " file \"" + file + "\"", de);
         }
 
         parseTriggerConfig(doc);
     }
 
+    /**
+     * Load the run configuration file with the streaming parser.
+     */
+    private void streamRunConfig()
+        throws ConfigException
+    {
+        StreamingConfigParser.RunConfigData data =
+            StreamingConfigParser.parseRunConfig(file);
+        if (data.trigCfgName == null) {
+            throw new ConfigException("Run configuration file \"" +
+                                      file + " does not contain" +
+                                      " <triggerConfig>");
+        }
+
+        trigCfgName = data.trigCfgName;
+
+        stringHubs = new ArrayList<Integer>();
+        icetopHubs = new ArrayList<Integer>();
+
+        for (String[] entry : data.domConfigs) {
+            addHub("domConfigList", "hub", entry[0], entry[1], stringHubs,
+                   icetopHubs);
+        }
+        for (String[] entry : data.stringHubs) {
+            addHub("stringHub", "hubId", entry[0], entry[1], stringHubs,
+                   icetopHubs);
+        }
+
+        Collections.sort(stringHubs);
+        Collections.sort(icetopHubs);
+    }
+
+    /**
+     * Load the trigger configuration file with the streaming parser.
+     *
+     * @param file trigger configuration file
+     */
+    private void streamTrigConfig(File file)
+        throws ConfigException
+    {
+        algorithmData = new ArrayList<AlgorithmData>();
+
+        for (StreamingConfigParser.TriggerData td :
+                 StreamingConfigParser.parseTriggerConfig(file))
+        {
+            AlgorithmData ad =
+                createAlgorithmData(td.name, td.type, td.cfgId, td.srcId);
+
+            for (String[] param : td.parameters) {
+                ad.addParameter(param[0], param[1]);
+            }
+
+            for (String[] rdout : td.readouts) {
+                int[] vals = new int[rdout.length];
+                try {
+                    for (int i = 0; i < rdout.length; i++) {
+                        vals[i] = parseInteger(rdout[i]);
+                    }
+                } catch (ConfigException ce) {
+                    continue;
+                }
+
+                ad.addReadout(vals[0], vals[1], vals[2], vals[3]);
+            }
+
+            algorithmData.add(ad);
+        }
+    }
+
     private void addHubs(Document doc, String listName, String name,
                          List<Integer> stringHubs, List<Integer> icetopHubs)
         throws ConfigException
@@ -594,43 +898,47 @@ public class Configuration
 
         for (int i = 0; i < nodes.getLength(); i++) {
             Node n = nodes.item(i);
-            String hubStr = ((Element) n).getAttribute(name);
-            if (hubStr == null || hubStr.trim().length() == 0) {
-                throw new ConfigException("No " + name + " specified for " +
-                                          listName + " entry " +
-                                          n.getTextContent() +
-                                          " in run configuration file " +
-                                          file);
-            }
+            addHub(listName, name, ((Element) n).getAttribute(name),
+                   n.getTextContent(), stringHubs, icetopHubs);
+        }
+    }
 
-            try {
-                int hub = Integer.parseInt(hubStr);
+    private void addHub(String listName, String name, String hubStr,
+                        String text, List<Integer> stringHubs,
+                        List<Integer> icetopHubs)
+        throws ConfigException
+    {
+        if (hubStr == null || hubStr.trim().length() == 0) {
+            throw new ConfigException("No " + name + " specified for " +
+                                      listName + " entry " + text +
+                                      " in run configuration file " + file);
+        }
 
-                int srcHub;
-                if (hub > 1000) {
-                    srcHub = hub;
-                } else {
-                    srcHub = hub + SourceIdRegistry.STRING_HUB_SOURCE_ID;
-                }
+        try {
+            int hub = Integer.parseInt(hubStr);
 
-                if (SourceIdRegistry.isIniceHubSourceID(srcHub)) {
-                    stringHubs.add(hub);
-                } else if (SourceIdRegistry.isIcetopHubSourceID(srcHub)) {
-                    icetopHubs.add(hub);
-                } else {
-                    throw new ConfigException("Bad " + name + " " + hub +
-                                              " for " + listName + " entry " +
-                                              n.getTextContent() +
-                                              " in run configuration file " +
-                                              file);
-                }
-            } catch (NumberFormatException nfe) {
-                throw new ConfigException("Bad hub \"" + hubStr +
-                                          "\" for domConfigList entry " +
-                                          n.getTextContent() +
+            int srcHub;
+            if (hub > 1000) {
+                srcHub = hub;
+            } else {
+                srcHub = hub + SourceIdRegistry.STRING_HUB_SOURCE_ID;
+            }
+
+            if (SourceIdRegistry.isIniceHubSourceID(srcHub)) {
+                stringHubs.add(hub);
+            } else if (SourceIdRegistry.isIcetopHubSourceID(srcHub)) {
+                icetopHubs.add(hub);
+            } else {
+                throw new ConfigException("Bad " + name + " " + hub +
+                                          " for " + listName + " entry " +
+                                          text +
                                           " in run configuration file " +
                                           file);
             }
+        } catch (NumberFormatException nfe) {
+            throw new ConfigException("Bad hub \"" + hubStr +
+                                      "\" for domConfigList entry " + text +
+                                      " in run configuration file " + file);
         }
     }
 
@@ -677,51 +985,76 @@ public class Configuration
         for (int i = 0; i < tcNodes.getLength(); i++) {
             Node n = tcNodes.item(i);
 
-            String name;
-            try {
-                name = JAXPUtil.extractText(n, "triggerName");
-            } catch (JAXPUtilException jex) {
-                name = null;
-            }
+            AlgorithmData ad =
+                createAlgorithmData(extractTextOrNull(n, "triggerName"),
+                                    extractTextOrNull(n, "triggerType"),
+                                    extractTextOrNull(n, "triggerConfigId"),
+                                    extractTextOrNull(n, "sourceId"));
+            parseTriggerParameters(ad, n);
+            parseTriggerReadout(ad, n);
 
-            if (name == null || name.length() == 0) {
-                throw new ConfigException("Trigger configuration does not" +
-                                          " specify a name in " + trigCfgName +
-                                          " from run configuration " + file);
-            }
+            algorithmData.add(ad);
+        }
+    }
 
-            int type;
-            try {
-                type = extractInteger(n, "triggerType");
-            } catch (ConfigException ce) {
-                throw new ConfigException("Bad trigger type for " + name +
-                                          " in " + trigCfgName +
-                                          " from run configuration " + file);
-            }
+    /**
+     * Validate the fields of a trigger configuration entry.
+     *
+     * @param name trigger name
+     * @param typeStr trigger type
+     * @param cfgIdStr trigger configuration ID
+     * @param srcIdStr source ID
+     *
+     * @return new algorithm description
+     *
+     * @throws ConfigException if a field is missing or invalid
+     */
+    private AlgorithmData createAlgorithmData(String name, String typeStr,
+                                              String cfgIdStr,
+                                              String srcIdStr)
+        throws ConfigException
+    {
+        if (name == null || name.length() == 0) {
+            throw new ConfigException("Trigger configuration does not" +
+                                      " specify a name in " + trigCfgName +
+                                      " from run configuration " + file);
+        }
 
-            int cfgId;
-            try {
-                cfgId = extractInteger(n, "triggerConfigId");
-            } catch (ConfigException ce) {
-                throw new ConfigException("Bad config ID for " + name +
-                                          " in " + trigCfgName +
-                                          " from run configuration " + file);
-            }
+        try {
+            parseInteger(typeStr);
+        } catch (ConfigException ce) {
+            throw new ConfigException("Bad trigger type for " + name +
+                                      " in " + trigCfgName +
+                                      " from run configuration " + file);
+        }
 
-            int srcId;
-            try {
-                srcId = extractInteger(n, "sourceId");
-            } catch (ConfigException ce) {
-                throw new ConfigException("Bad source ID for " + name +
-                                          " in " + trigCfgName +
-                                          " from run configuration " + file);
-            }
+        int cfgId;
+        try {
+            cfgId = parseInteger(cfgIdStr);
+        } catch (ConfigException ce) {
+            throw new ConfigException("Bad config ID for " + name +
+                                      " in " + trigCfgName +
+                                      " from run configuration " + file);
+        }
 
-            AlgorithmData ad = new AlgorithmData(name, cfgId, srcId);
-            parseTriggerParameters(ad, n);
-            parseTriggerReadout(ad, n);
+        int srcId;
+        try {
+            srcId = parseInteger(srcIdStr);
+        } catch (ConfigException ce) {
+            throw new ConfigException("Bad source ID for " + name +
+                                      " in " + trigCfgName +
+                                      " from run configuration " + file);
+        }
 
-            algorithmData.add(ad);
+        return new AlgorithmData(name, cfgId, srcId);
+    }
+
+    private static String extractTextOrNull(Node topNode, String pathExpr)
+    {
+        try {
+            return JAXPUtil.extractText(topNode, pathExpr);
+        } catch (JAXPUtilException jex) {
+            return null;
         }
     }
 
@@ -841,15 +1174,145 @@ public class Configuration
             "]";
     }
 
+    /**
+     * Parse a run configuration with both parsers and compare the results.
+     *
+     * @param runFile run configuration file
+     *
+     * @return <tt>null</tt> if the results are identical, otherwise a
+     *         description of the first difference
+     */
+    static String compareParsers(File runFile)
+    {
+        Configuration domCfg = new Configuration(runFile);
+        String domErr = null;
+        try {
+            domCfg.parse(false);
+        } catch (ConfigException ce) {
+            domErr = ce.getMessage();
+        }
+
+        Configuration staxCfg = new Configuration(runFile);
+        String staxErr = null;
+        try {
+            staxCfg.parse(true);
+        } catch (ConfigException ce) {
+            staxErr = ce.getMessage();
+        }
+
+        if (domErr != null || staxErr != null) {
+            if (domErr == null || !domErr.equals(staxErr)) {
+                return "DOM error \"" + domErr + "\", streaming error \"" +
+                    staxErr + "\"";
+            }
+
+            return null;
+        }
+
+        if (!domCfg.trigCfgName.equals(staxCfg.trigCfgName)) {
+            return "Trigger config " + domCfg.trigCfgName + " != " +
+                staxCfg.trigCfgName;
+        }
+        if (!domCfg.stringHubs.equals(staxCfg.stringHubs)) {
+            return "String hubs " + domCfg.stringHubs + " != " +
+                staxCfg.stringHubs;
+        }
+        if (!domCfg.icetopHubs.equals(staxCfg.icetopHubs)) {
+            return "Icetop hubs " + domCfg.icetopHubs + " != " +
+                staxCfg.icetopHubs;
+        }
+        if (domCfg.algorithmData.size() != staxCfg.algorithmData.size()) {
+            return "Found " + domCfg.algorithmData.size() + " DOM and " +
+                staxCfg.algorithmData.size() + " streaming algorithms";
+        }
+
+        for (int i = 0; i < domCfg.algorithmData.size(); i++) {
+            AlgorithmData dad = domCfg.algorithmData.get(i);
+            AlgorithmData sad = staxCfg.algorithmData.get(i);
+
+            if (!dad.toString().equals(sad.toString())) {
+                return "Algorithm #" + i + " " + dad + " != " + sad;
+            }
+            if (!dad.getParameters().equals(sad.getParameters())) {
+                return dad + " parameters " + dad.getParameters() + " != " +
+                    sad.getParameters();
+            }
+            if (!dad.getReadouts().toString().equals(sad.getReadouts().
+                                                     toString()))
+            {
+                return dad + " readouts " + dad.getReadouts() + " != " +
+                    sad.getReadouts();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Compare both parsers on every run configuration in a directory.
+     *
+     * @param configDir configuration directory
+     *
+     * @return number of configurations with different results
+     */
+    private static int compareAll(File configDir)
+    {
+        int numChecked = 0;
+        int numDiffs = 0;
+
+        File[] entries = configDir.listFiles();
+        for (int i = 0; i < entries.length; i++) {
+            String name = entries[i].getName();
+            if (!name.endsWith(".xml") ||
+                name.equals(DOMRegistryCache.GEOMETRY_FILE))
+            {
+                continue;
+            }
+
+            final String diff = compareParsers(entries[i]);
+            if (diff != null) {
+                System.out.println(name + ": " + diff);
+                numDiffs++;
+            }
+
+            numChecked++;
+        }
+
+        System.out.println("Compared " + numChecked + " configurations, " +
+                           numDiffs + " differed");
+        return numDiffs;
+    }
+
     public static final void main(String[] args)
         throws Exception
     {
         File configDir = new File("/Users/dglo/config");
+        boolean compare = false;
 
-        IDOMRegistry reg = DOMRegistryFactory.load();
+        ArrayList<String> names = new ArrayList<String>();
         for (int i = 0; i < args.length; i++) {
-            Configuration cfg = new Configuration(configDir, args[i], reg);
-            System.out.println("\"" + args[i] + "\" -> " + cfg);
+            if (args[i].equals("-c") && i + 1 < args.length) {
+                configDir = new File(args[++i]);
+            } else if (args[i].equals("-x")) {
+                compare = true;
+            } else if (args[i].equals("-X")) {
+                setStreamingParser(true);
+            } else {
+                names.add(args[i]);
+            }
+        }
+
+        if (compare) {
+            if (compareAll(configDir) > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        IDOMRegistry reg = DOMRegistryCache.load();
+        for (String name : names) {
+            Configuration cfg = new Configuration(configDir, name, reg);
+            System.out.println("\"" + name + "\" -> " + cfg);
         }
     }
 }
@@ -0,0 +1,416 @@
+package icecube.daq.testbed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of parsed run and trigger configurations.
+ *
+ * Each entry holds everything <tt>Configuration</tt> extracts from a run
+ * configuration file and its trigger configuration file, along with the
+ * content hashes of both files.  An entry is only used while both hashes
+ * still match, so editing either file (or pointing the run configuration
+ * at a different trigger configuration) forces a fresh XML parse.
+ *
+ * Entries for a configuration directory are kept in a single file inside
+ * that directory.  Any process may read the file, but it is only
+ * rewritten by an explicit <tt>flush()</tt> (as done by
+ * <tt>BuildConfigDB</tt>), so ordinary test runs never write into a
+ * shared configuration directory.
+ *
+ * Content hashes are computed without holding the cache lock, and
+ * cached algorithm descriptions are copied on the way in and out so
+ * callers never share mutable data.
+ */
+public abstract class ConfigurationCache
+{
+    private static final Logger LOG =
+        Logger.getLogger(ConfigurationCache.class);
+
+    /** Name of the cache file inside the configuration directory */
+    public static final String CACHE_FILE = ".configcache.dat";
+
+    /** Cache file format version */
+    private static final int CACHE_VERSION = 1;
+
+    /** Cached entries, keyed by canonical configuration directory */
+    private static HashMap<File, DirCache> dirs =
+        new HashMap<File, DirCache>();
+
+    private static int numHits;
+    private static int numMisses;
+    private static long lookupNanos;
+
+    /**
+     * Compute the content hash of a file.
+     *
+     * @param file file
+     *
+     * @return hex string
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private static String contentHash(File file)
+        throws IOException
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new Error("MD5 is not available", nsae);
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[16384];
+            while (true) {
+                final int num = in.read(buf);
+                if (num < 0) {
+                    break;
+                }
+                md.update(buf, 0, num);
+            }
+        } finally {
+            in.close();
+        }
+
+        return new BigInteger(1, md.digest()).toString(16);
+    }
+
+    /**
+     * Write all modified caches to disk.
+     */
+    public static synchronized void flush()
+    {
+        for (DirCache dc : dirs.values()) {
+            if (dc.isDirty()) {
+                dc.write();
+            }
+        }
+    }
+
+    /**
+     * Get the cache for a configuration directory, loading it from disk
+     * if necessary.
+     *
+     * @param cfgDir configuration directory
+     *
+     * @return directory cache
+     */
+    private static DirCache getDirCache(File cfgDir)
+    {
+        final File key = DirectoryCache.getKey(cfgDir);
+
+        DirCache dc = dirs.get(key);
+        if (dc == null) {
+            dc = new DirCache(key);
+            dirs.put(key, dc);
+        }
+
+        return dc;
+    }
+
+    /**
+     * Get a summary of the cache lookups performed by this process.
+     *
+     * @return summary string
+     */
+    public static synchronized String getStatistics()
+    {
+        return String.format("Configuration cache: %d hits, %d misses" +
+                             " in %.1f ms", numHits, numMisses,
+                             (double) lookupNanos / 1000000.0);
+    }
+
+    /**
+     * Look up a parsed configuration.
+     *
+     * @param runFile run configuration file
+     * @param trigDir trigger configuration directory
+     *
+     * @return <tt>null</tt> if there is no entry or either file has changed
+     */
+    static Entry lookup(File runFile, File trigDir)
+    {
+        final long start = System.nanoTime();
+
+        Entry entry;
+        synchronized (ConfigurationCache.class) {
+            DirCache dc = getDirCache(runFile.getParentFile());
+            entry = dc.get(runFile.getName());
+        }
+
+        // entries are never modified, so check the hashes without the lock
+        if (entry != null) {
+            try {
+                File tcFile =
+                    Configuration.findTriggerFile(trigDir, entry.trigCfgName);
+                if (tcFile == null ||
+                    !tcFile.getName().equals(entry.trigFileName) ||
+                    !contentHash(runFile).equals(entry.runHash) ||
+                    !contentHash(tcFile).equals(entry.trigHash))
+                {
+                    entry = null;
+                }
+            } catch (IOException ioe) {
+                LOG.warn("Cannot check cached configuration for " + runFile,
+                         ioe);
+                entry = null;
+            }
+        }
+
+        synchronized (ConfigurationCache.class) {
+            if (entry == null) {
+                numMisses++;
+            } else {
+                numHits++;
+            }
+            lookupNanos += System.nanoTime() - start;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Save a parsed configuration.
+     *
+     * @param runFile run configuration file
+     * @param tcFile trigger configuration file
+     * @param trigCfgName trigger configuration name
+     * @param stringHubs in-ice hubs
+     * @param icetopHubs icetop hubs
+     * @param algorithmData trigger algorithm descriptions
+     */
+    static void store(File runFile, File tcFile, String trigCfgName,
+                      List<Integer> stringHubs, List<Integer> icetopHubs,
+                      List<AlgorithmData> algorithmData)
+    {
+        Entry entry;
+        try {
+            entry = new Entry(contentHash(runFile), trigCfgName,
+                              tcFile.getName(), contentHash(tcFile),
+                              stringHubs, icetopHubs, algorithmData);
+        } catch (IOException ioe) {
+            LOG.warn("Cannot cache configuration " + runFile, ioe);
+            return;
+        }
+
+        synchronized (ConfigurationCache.class) {
+            DirCache dc = getDirCache(runFile.getParentFile());
+            dc.put(runFile.getName(), entry);
+        }
+    }
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        return in.readUTF();
+    }
+
+    private static void writeString(DataOutputStream out, String str)
+        throws IOException
+    {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    /**
+     * Parsed configuration data.
+     */
+    static class Entry
+    {
+        private String runHash;
+        private String trigCfgName;
+        private String trigFileName;
+        private String trigHash;
+        private List<Integer> stringHubs;
+        private List<Integer> icetopHubs;
+        private List<AlgorithmData> algorithmData;
+
+        Entry(String runHash, String trigCfgName, String trigFileName,
+              String trigHash, List<Integer> stringHubs,
+              List<Integer> icetopHubs, List<AlgorithmData> algorithmData)
+        {
+            this.runHash = runHash;
+            this.trigCfgName = trigCfgName;
+            this.trigFileName = trigFileName;
+            this.trigHash = trigHash;
+            this.stringHubs = new ArrayList<Integer>(stringHubs);
+            this.icetopHubs = new ArrayList<Integer>(icetopHubs);
+            this.algorithmData = copyAlgorithms(algorithmData);
+        }
+
+        private static List<AlgorithmData> copyAlgorithms(List<AlgorithmData>
+                                                          list)
+        {
+            ArrayList<AlgorithmData> copy =
+                new ArrayList<AlgorithmData>(list.size());
+            for (AlgorithmData ad : list) {
+                copy.add(ad.copy());
+            }
+            return copy;
+        }
+
+        List<AlgorithmData> getAlgorithmData()
+        {
+            return copyAlgorithms(algorithmData);
+        }
+
+        List<Integer> getIcetopHubs()
+        {
+            return new ArrayList<Integer>(icetopHubs);
+        }
+
+        List<Integer> getStringHubs()
+        {
+            return new ArrayList<Integer>(stringHubs);
+        }
+
+        String getTriggerConfigName()
+        {
+            return trigCfgName;
+        }
+
+        private static List<Integer> readHubs(DataInputStream in)
+            throws IOException
+        {
+            final int num = in.readInt();
+
+            ArrayList<Integer> list = new ArrayList<Integer>(num);
+            for (int i = 0; i < num; i++) {
+                list.add(in.readInt());
+            }
+            return list;
+        }
+
+        static Entry read(DataInputStream in)
+            throws IOException
+        {
+            final String runHash = in.readUTF();
+            final String trigCfgName = in.readUTF();
+            final String trigFileName = in.readUTF();
+            final String trigHash = in.readUTF();
+
+            List<Integer> stringHubs = readHubs(in);
+            List<Integer> icetopHubs = readHubs(in);
+
+            final int numAlgs = in.readInt();
+            ArrayList<AlgorithmData> algs =
+                new ArrayList<AlgorithmData>(numAlgs);
+            for (int i = 0; i < numAlgs; i++) {
+                AlgorithmData ad = new AlgorithmData(in.readUTF(),
+                                                     in.readInt(),
+                                                     in.readInt());
+
+                final int numParams = in.readInt();
+                for (int p = 0; p < numParams; p++) {
+                    ad.addParameter(readString(in), readString(in));
+                }
+
+                final int numRdouts = in.readInt();
+                for (int r = 0; r < numRdouts; r++) {
+                    ad.addReadoutData(new TriggerReadout(in.readInt(),
+                                                         in.readInt(),
+                                                         in.readInt(),
+                                                         in.readInt()));
+                }
+
+                algs.add(ad);
+            }
+
+            return new Entry(runHash, trigCfgName, trigFileName, trigHash,
+                             stringHubs, icetopHubs, algs);
+        }
+
+        private static void writeHubs(DataOutputStream out,
+                                      List<Integer> hubs)
+            throws IOException
+        {
+            out.writeInt(hubs.size());
+            for (Integer hub : hubs) {
+                out.writeInt(hub);
+            }
+        }
+
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeUTF(runHash);
+            out.writeUTF(trigCfgName);
+            out.writeUTF(trigFileName);
+            out.writeUTF(trigHash);
+
+            writeHubs(out, stringHubs);
+            writeHubs(out, icetopHubs);
+
+            out.writeInt(algorithmData.size());
+            for (AlgorithmData ad : algorithmData) {
+                out.writeUTF(ad.getName());
+                out.writeInt(ad.getConfigId());
+                out.writeInt(ad.getSourceId());
+
+                Map<String, String> params = ad.getParameters();
+                out.writeInt(params.size());
+                for (Map.Entry<String, String> entry : params.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+
+                List<TriggerReadout> rdouts = ad.getReadouts();
+                out.writeInt(rdouts.size());
+                for (TriggerReadout rdout : rdouts) {
+                    out.writeInt(rdout.getType());
+                    out.writeInt(rdout.getOffset());
+                    out.writeInt(rdout.getMinus());
+                    out.writeInt(rdout.getPlus());
+                }
+            }
+        }
+    }
+
+    /**
+     * All cached entries for a single configuration directory.
+     */
+    private static class DirCache
+        extends DirectoryCache<Entry>
+    {
+        DirCache(File dir)
+        {
+            super(new File(dir, CACHE_FILE), CACHE_VERSION,
+                  "configuration cache");
+        }
+
+        @Override
+        Entry readEntry(DataInputStream in)
+            throws IOException
+        {
+            return Entry.read(in);
+        }
+
+        @Override
+        void writeEntry(DataOutputStream out, Entry entry)
+            throws IOException
+        {
+            entry.write(out);
+        }
+    }
+}
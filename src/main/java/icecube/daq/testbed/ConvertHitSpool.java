@@ -12,18 +12,31 @@ import icecube.daq.payload.SourceIdRegistry;
 import icecube.daq.payload.impl.PayloadFactory;
 import icecube.daq.payload.impl.DOMHit;
 import icecube.daq.payload.impl.SimpleHit;
-import icecube.daq.util.DOMRegistryFactory;
 import icecube.daq.util.DOMInfo;
 import icecube.daq.util.IDOMRegistry;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Level;
@@ -208,6 +221,19 @@ public class ConvertHitSpool
     // allow 0.1 second between the end of one file and start of the next
     private static final long MAX_UTC_DIFFERENCE = TICKS_PER_SECOND / 10L;
 
+    // milliseconds between progress reports when converting all hubs
+    private static final long PROGRESS_INTERVAL = 10000L;
+
+    // lowest and highest hub numbers
+    private static final int FIRST_HUB = 1;
+    private static final int LAST_HUB = 211;
+
+    // maximum number of payloads read ahead of the hit writer
+    private static final int PIPELINE_DEPTH = 8192;
+
+    // milliseconds to wait for directory changes in tail mode
+    private static final long TAIL_POLL_INTERVAL = 1000L;
+
     private File srcDir;
     private File destDir;
     private int hubNumber = Integer.MAX_VALUE;
@@ -220,41 +246,144 @@ public class ConvertHitSpool
     private boolean printIntervals;
     private String hubName;
     private File[] files;
+    private boolean allHubs;
+    private boolean useTranscoder = true;
+    private boolean tail;
+    private int tailIdleSeconds;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
 
     private IDOMRegistry registry;
     private PayloadFactory factory;
+    private DOMChannelTable channelTable;
 
     private void finishSourceDirectory()
         throws IllegalArgumentException
     {
-        File newDir = srcDir;
+        File newDir = findRunDirectory(srcDir, runNumber);
 
-        // if there's a run subdirectory under the source directory, add that
-        final String runStr = Integer.toString(runNumber);
-        File subDir = new File(srcDir, runStr);
-        if (subDir.isDirectory()) {
-            newDir = subDir;
-        } else {
-            subDir = new File(srcDir, "run" + runStr);
-            if (subDir.isDirectory()) {
-                newDir = subDir;
-            }
+        // if there's a hub subdirectory under the source directory, add that
+        File hubDir = findHubDirectory(newDir, hubNumber);
+        if (hubDir != null) {
+            newDir = hubDir;
         }
 
-        // if there's a hub subdirectory under the source directory, add that
+        // reassign the source directory in case we modified it
+        srcDir = newDir;
+    }
+
+    /**
+     * Find the subdirectory for a single hub.
+     *
+     * @param runDir run directory
+     * @param hubNumber hub number
+     *
+     * @return <tt>null</tt> if there is no hub subdirectory
+     */
+    private static File findHubDirectory(File runDir, int hubNumber)
+    {
         final String hubName = MiscUtil.formatHubID(hubNumber);
-        subDir = new File(newDir, hubName);
+        File subDir = new File(runDir, hubName);
         if (subDir.isDirectory()) {
-            newDir = subDir;
+            return subDir;
         } else if (hubName.startsWith("ic")) {
-            subDir = new File(newDir, hubName.substring(2));
+            subDir = new File(runDir, hubName.substring(2));
             if (subDir.isDirectory()) {
-                newDir = subDir;
+                return subDir;
             }
         }
 
-        // reassign the source directory in case we modified it
-        srcDir = newDir;
+        return null;
+    }
+
+    /**
+     * If there's a run subdirectory under the source directory, return it.
+     *
+     * @param srcDir source directory
+     * @param runNumber run number
+     *
+     * @return run subdirectory or <tt>srcDir</tt>
+     */
+    private static File findRunDirectory(File srcDir, int runNumber)
+    {
+        final String runStr = Integer.toString(runNumber);
+        File subDir = new File(srcDir, runStr);
+        if (subDir.isDirectory()) {
+            return subDir;
+        }
+
+        subDir = new File(srcDir, "run" + runStr);
+        if (subDir.isDirectory()) {
+            return subDir;
+        }
+
+        return srcDir;
+    }
+
+    /**
+     * Find all hubs with HitSpool files under the source directory.
+     *
+     * @return list of per-hub conversion jobs
+     */
+    private List<HubJob> findHubJobs()
+    {
+        final File runDir = findRunDirectory(srcDir, runNumber);
+
+        ArrayList<HubJob> jobs = new ArrayList<HubJob>();
+        for (int hub = FIRST_HUB; hub <= LAST_HUB; hub++) {
+            final String name = getHubName(hub);
+            if (name == null) {
+                continue;
+            }
+
+            File[] hubFiles;
+            try {
+                File hubDir = findHubDirectory(runDir, hub);
+                if (hubDir != null) {
+                    hubFiles = HubPayloadFilter.listFiles(hubDir, hub);
+                } else {
+                    // generic HitSpool files only belong to a hub
+                    // if they're in that hub's subdirectory
+                    ArrayList<File> list = new ArrayList<File>();
+                    for (File f : HubPayloadFilter.listFiles(runDir, hub)) {
+                        if (!f.getName().startsWith("HitSpool-") &&
+                            f.isFile())
+                        {
+                            list.add(f);
+                        }
+                    }
+                    hubFiles = list.toArray(new File[list.size()]);
+                }
+            } catch (IOException ioe) {
+                System.err.println("Cannot find files for hub #" + hub);
+                ioe.printStackTrace();
+                continue;
+            }
+
+            if (hubFiles.length > 0) {
+                jobs.add(new HubJob(hub, name, hubFiles, name + ": "));
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Get the name used in output files for a hub.
+     *
+     * @param hubNumber hub number
+     *
+     * @return <tt>null</tt> if the hub number is not valid
+     */
+    private static String getHubName(int hubNumber)
+    {
+        final int tmpNum = hubNumber % 1000;
+        if (tmpNum >= 200 && tmpNum <= 211) {
+            return String.format("ithub%02d", tmpNum - 200);
+        } else if (tmpNum > 0 && tmpNum <= 86) {
+            return String.format("ichub%02d", tmpNum);
+        }
+
+        return null;
     }
 
     private void dumpSettings()
@@ -262,7 +391,12 @@ public class ConvertHitSpool
         System.out.println("Source: " + srcDir);
         System.out.println("Destination: " + destDir);
         System.out.println("Run: " + runNumber);
-        System.out.println("Hub#" + hubNumber + ": " + hubName);
+        if (allHubs) {
+            System.out.println("Hubs: ALL (" + numThreads + " threads)");
+        } else {
+            System.out.println("Hub#" + hubNumber + ": " + hubName +
+                               " (" + numThreads + " decoder threads)");
+        }
 
         if (printIntervals) {
             System.out.println("Print intervals");
@@ -284,12 +418,21 @@ public class ConvertHitSpool
             }
             System.out.println("Include LC0 hits: " +
                                (includeLC0Hits ? "yes" : "NO"));
+            System.out.println("Transcode hits: " +
+                               (useTranscoder ? "yes" : "NO"));
+            if (tail) {
+                System.out.println("Tail: " + (tailIdleSeconds == 0 ?
+                                               "forever" : "until idle for " +
+                                               tailIdleSeconds + " secs"));
+            }
         }
 
         System.out.println("Verbose: " + (verbose ? "yes" : "NO"));
-        System.out.println("Files:");
-        for (File file : files) {
-            System.out.println("\t" + file.getName());
+        if (files != null) {
+            System.out.println("Files:");
+            for (File file : files) {
+                System.out.println("\t" + file.getName());
+            }
         }
         System.out.flush();
     }
@@ -299,7 +442,7 @@ public class ConvertHitSpool
     {
         // load default DOM geometry file
         try {
-            registry = DOMRegistryFactory.load();
+            registry = DOMRegistryCache.load();
         } catch (Throwable thr) {
             LOG.error("Cannot load DOM registry");
             thr.printStackTrace();
@@ -308,6 +451,100 @@ public class ConvertHitSpool
 
         // create a factory which will be used to build hit payloads
         factory = new PayloadFactory(null);
+
+        // build the lookup table used to transcode hits
+        if (useTranscoder) {
+            channelTable = DOMChannelTable.getTable(registry);
+        }
+    }
+
+    /**
+     * Warn about a significant gap between two files.
+     *
+     * @param lastFile previous file
+     * @param lastUTC time of the previous file's last hit
+     * @param file current file
+     * @param firstUTC time of the current file's first hit
+     */
+    private static void checkGap(File lastFile, long lastUTC, File file,
+                                 long firstUTC)
+    {
+        // if we have the last time from a previous file...
+        if (lastUTC != Long.MIN_VALUE) {
+            final long diff = firstUTC - lastUTC;
+            if (diff > MAX_UTC_DIFFERENCE) {
+                final String diffStr = MiscUtil.formatDurationTicks(diff);
+                final String msg = "WARNING: Significant gap (" +
+                    diffStr + ") between the end of " +
+                    lastFile.getName() + " and the start of " +
+                    file.getName();
+                System.err.println(msg);
+            }
+        }
+    }
+
+    /**
+     * Find a file's first and last hit times without decoding every
+     * payload, using the saved summary if there is one.  Newly scanned
+     * files are only trusted if their first and last records decode to
+     * hits with the same times.
+     *
+     * @param file HitSpool file
+     *
+     * @return <tt>null</tt> if the file must be decoded
+     */
+    private HitSpoolIntervals.Interval findInterval(File file)
+    {
+        HitSpoolIntervals.Interval iv = HitSpoolIntervals.find(file);
+        if (iv != null) {
+            return iv;
+        }
+
+        try {
+            iv = HitSpoolIntervals.scan(file);
+            if (iv == null) {
+                return null;
+            }
+
+            if (iv.numRecords > 0) {
+                if (getHitTime(file, iv.firstPos, iv.firstLen) !=
+                    iv.firstUTC ||
+                    getHitTime(file, iv.lastPos, iv.lastLen) != iv.lastUTC)
+                {
+                    return null;
+                }
+            }
+        } catch (IOException ioe) {
+            return null;
+        } catch (PayloadException pex) {
+            return null;
+        }
+
+        HitSpoolIntervals.store(file, iv);
+        return iv;
+    }
+
+    /**
+     * Decode a single record.
+     *
+     * @param file HitSpool file
+     * @param pos record offset
+     * @param len record length
+     *
+     * @return hit time or <tt>Long.MIN_VALUE</tt> if it's not a hit
+     */
+    private long getHitTime(File file, long pos, int len)
+        throws IOException, PayloadException
+    {
+        ByteBuffer buf = HitSpoolIntervals.readRecord(file, pos, len);
+
+        IPayload pay = (IPayload) factory.getPayload(buf, 0);
+        if (!(pay instanceof DOMHit)) {
+            return Long.MIN_VALUE;
+        }
+
+        pay.loadPayload();
+        return pay.getUTCTime();
     }
 
     private void printIntervals()
@@ -323,66 +560,64 @@ public class ConvertHitSpool
                 System.out.flush();
             }
 
-            PayloadByteReader rdr;
-            try {
-                rdr = new PayloadByteReader(file);
-            } catch (IOException ioe) {
-                System.err.println("Cannot read \"" + file.getName() + "\":");
-                ioe.printStackTrace();
-                continue;
-            }
-
             long firstUTC = Long.MIN_VALUE;
 
-            long numPayloads = 0;
-            for (ByteBuffer buf : rdr) {
-                IPayload pay;
+            HitSpoolIntervals.Interval iv = findInterval(file);
+            if (iv != null) {
+                if (iv.numRecords > 0) {
+                    firstUTC = iv.firstUTC;
+                    checkGap(lastFile, lastUTC, file, firstUTC);
+                    lastUTC = iv.lastUTC;
+                }
+            } else {
+                PayloadByteReader rdr;
                 try {
-                    pay = (IPayload) factory.getPayload(buf, 0);
-                    if (!(pay instanceof DOMHit)) {
-                        System.err.println("Payload #" + numPayloads +
-                                           " is not a hit: " +
-                                           pay.getClass().getName());
-                        continue;
-                    }
+                    rdr = new PayloadByteReader(file);
+                } catch (IOException ioe) {
+                    System.err.println("Cannot read \"" + file.getName() +
+                                       "\":");
+                    ioe.printStackTrace();
+                    continue;
+                }
 
+                long numPayloads = 0;
+                for (ByteBuffer buf : rdr) {
+                    IPayload pay;
                     try {
-                        pay.loadPayload();
-                    } catch (IOException ioe) {
-                        System.err.println("Cannot load payload#" +
-                                           numPayloads);
-                        ioe.printStackTrace();
+                        pay = (IPayload) factory.getPayload(buf, 0);
+                        if (!(pay instanceof DOMHit)) {
+                            System.err.println("Payload #" + numPayloads +
+                                               " is not a hit: " +
+                                               pay.getClass().getName());
+                            continue;
+                        }
+
+                        try {
+                            pay.loadPayload();
+                        } catch (IOException ioe) {
+                            System.err.println("Cannot load payload#" +
+                                               numPayloads);
+                            ioe.printStackTrace();
+                            continue;
+                        }
+                    } catch (PayloadException pex) {
+                        System.err.println("For payload #" + numPayloads +
+                                           ":");
+                        pex.printStackTrace();
                         continue;
                     }
-                } catch (PayloadException pex) {
-                    System.err.println("For payload #" + numPayloads + ":");
-                    pex.printStackTrace();
-                    continue;
-                }
-
-                DOMHit hit = (DOMHit) pay;
 
-                // check for gaps between files
-                if (firstUTC == Long.MIN_VALUE) {
-                    firstUTC = hit.getUTCTime();
+                    DOMHit hit = (DOMHit) pay;
 
-                    // if we have the last time from a previous file...
-                    if (lastUTC != Long.MIN_VALUE) {
-                        final long diff = firstUTC - lastUTC;
-                        if (diff > MAX_UTC_DIFFERENCE) {
-                            final String diffStr =
-                                MiscUtil.formatDurationTicks(diff);
-                            final String msg = "WARNING: Significant gap (" +
-                                diffStr + ") between the end of " +
-                                lastFile.getName() + " and the start of " +
-                                file.getName();
-                            System.err.println(msg);
-                        }
+                    // check for gaps between files
+                    if (firstUTC == Long.MIN_VALUE) {
+                        firstUTC = hit.getUTCTime();
+                        checkGap(lastFile, lastUTC, file, firstUTC);
                     }
-                }
 
-                // save this hit's UTC time in case it's the last payload
-                lastUTC = hit.getUTCTime();
+                    // save this hit's UTC time in case it's the last payload
+                    lastUTC = hit.getUTCTime();
+                }
             }
 
             final String durStr =
@@ -393,6 +628,11 @@ public class ConvertHitSpool
             // remember this file in case we need it for error messages
             lastFile = file;
         }
+
+        HitSpoolIntervals.flush();
+        if (verbose) {
+            System.out.println(HitSpoolIntervals.getStatistics());
+        }
     }
 
     private void processArgs(String[] args)
@@ -410,6 +650,8 @@ public class ConvertHitSpool
         boolean getRun = false;
         boolean getSrcDir = false;
         boolean getStartTime = false;
+        boolean getThreads = false;
+        boolean getIdle = false;
 
         boolean usage = false;
 
@@ -493,8 +735,39 @@ public class ConvertHitSpool
                 continue;
             }
 
+            if (getThreads) {
+                try {
+                    int tmp = Integer.parseInt(args[i]);
+                    numThreads = tmp;
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Bad number of threads \"" + args[i] +
+                                       "\"");
+                    usage = true;
+                }
+
+                getThreads = false;
+                continue;
+            }
+
+            if (getIdle) {
+                try {
+                    int tmp = Integer.parseInt(args[i]);
+                    tailIdleSeconds = tmp;
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Bad number of idle seconds \"" +
+                                       args[i] + "\"");
+                    usage = true;
+                }
+
+                getIdle = false;
+                continue;
+            }
+
             if (args[i].length() > 1 && args[i].charAt(0) == '-') {
                 switch(args[i].charAt(1)) {
+                case 'A':
+                    allHubs = true;
+                    break;
                 case 'D':
                     if (args[i].length() == 2) {
                         getDestDir = true;
@@ -526,6 +799,9 @@ public class ConvertHitSpool
                         srcStr = args[i].substring(2);
                     }
                     break;
+                case 'T':
+                    useTranscoder = false;
+                    break;
                 case 'd':
                     if (args[i].length() == 2) {
                         getDuration = true;
@@ -543,6 +819,20 @@ public class ConvertHitSpool
                 case 'f':
                     includeLC0Hits = true;
                     break;
+                case 'j':
+                    if (args[i].length() == 2) {
+                        getThreads = true;
+                    } else {
+                        try {
+                            int tmp = Integer.parseInt(args[i].substring(2));
+                            numThreads = tmp;
+                        } catch (NumberFormatException nfe) {
+                            System.err.println("Bad number of threads \"" +
+                                               args[i].substring(2) + "\"");
+                            usage = true;
+                        }
+                    }
+                    break;
                 case 'n':
                     if (args[i].length() == 2) {
                         getMax = true;
@@ -585,9 +875,27 @@ public class ConvertHitSpool
                         }
                     }
                     break;
+                case 't':
+                    tail = true;
+                    break;
                 case 'v':
                     verbose = true;
                     break;
+                case 'w':
+                    if (args[i].length() == 2) {
+                        getIdle = true;
+                    } else {
+                        try {
+                            int tmp = Integer.parseInt(args[i].substring(2));
+                            tailIdleSeconds = tmp;
+                        } catch (NumberFormatException nfe) {
+                            System.err.println("Bad number of idle seconds" +
+                                               " \"" + args[i].substring(2) +
+                                               "\"");
+                            usage = true;
+                        }
+                    }
+                    break;
                 default:
                     System.err.println("Bad option \"" + args[i] + "\"");
                     usage = true;
@@ -606,16 +914,27 @@ public class ConvertHitSpool
             }
         }
 
-        if (hubNumber == Integer.MAX_VALUE) {
+        if (allHubs) {
+            if (hubNumber != Integer.MAX_VALUE || fileList.size() > 0) {
+                System.err.println("Cannot specify a hub or payload files" +
+                                   " when converting all hubs");
+                usage = true;
+            }
+            if (printIntervals) {
+                System.err.println("Cannot print intervals when converting" +
+                                   " all hubs");
+                usage = true;
+            }
+            if (tail) {
+                System.err.println("Cannot tail more than one hub");
+                usage = true;
+            }
+        } else if (hubNumber == Integer.MAX_VALUE) {
             System.err.println("Please specify the hub number for these hits");
             usage = true;
         } else {
-            final int tmpNum = hubNumber % 1000;
-            if (tmpNum >= 200 && tmpNum <= 211) {
-                hubName = String.format("ithub%02d", tmpNum - 200);
-            } else if (tmpNum > 0 && tmpNum <= 86) {
-                hubName = String.format("ichub%02d", tmpNum);
-            } else {
+            hubName = getHubName(hubNumber);
+            if (hubName == null) {
                 System.err.println("Bad hub number " + hubNumber);
                 usage = true;
             }
@@ -668,7 +987,7 @@ public class ConvertHitSpool
         }
 
         // add run/hub subdirectories to srcDir
-        if (!usage) {
+        if (!usage && !allHubs) {
             finishSourceDirectory();
 
             if (fileList.size() > 0) {
@@ -690,19 +1009,41 @@ public class ConvertHitSpool
             }
         }
 
+        if (tail && (printIntervals || fileList.size() > 0)) {
+            System.err.println("Cannot tail a HitSpool directory while" +
+                               " printing intervals or converting" +
+                               " individual files");
+            usage = true;
+        }
+
+        if (tailIdleSeconds < 0) {
+            System.err.println("Number of idle seconds cannot be negative");
+            usage = true;
+        }
+
+        if (numThreads <= 0) {
+            System.err.println("Number of threads must be positive");
+            usage = true;
+        }
+
         if (usage) {
             System.err.print("Usage: ");
             System.err.print("java ConvertHitSpool");
+            System.err.print(" [-A(llHubs)]");
             System.err.print(" -D destinationDirectory");
             System.err.print(" -H hubNumber");
             System.err.print(" [-I(ntervalsOnly)]");
             System.err.print(" -S sourceDirectory");
+            System.err.print(" [-T(ranscoderOff)]");
             System.err.print(" [-d duration]");
             System.err.print(" -f(orwardLC0Hits)");
+            System.err.print(" [-j numThreads]");
             System.err.print(" [-n numToDump]");
             System.err.print(" -r runNumber");
             System.err.print(" [-s startingTick]");
+            System.err.print(" [-t(ailDirectory)]");
             System.err.print(" [-v(erbose)]");
+            System.err.print(" [-w tailIdleSeconds]");
             System.err.print(" [payloadFile ...]");
             System.err.println();
             System.exit(1);
@@ -724,89 +1065,819 @@ public class ConvertHitSpool
 
         if (printIntervals) {
             printIntervals();
+        } else if (allHubs) {
+            convertAll();
+        } else if (tail) {
+            tail();
         } else {
-            String filename = String.format("%s_simplehits_%06d_0_999999.dat",
-                                            hubName, runNumber);
-            File path = new File(destDir, filename);
-            BufferWriter out;
-            try {
-                out = new BufferWriter(path, false);
-            } catch (IOException ioe) {
-                System.err.println("Cannot open output file \"" + path +
-                                   "\":");
-                ioe.printStackTrace();
-                return;
-            }
+            convert(new HubJob(hubNumber, hubName, files, ""), factory,
+                    false);
+        }
+    }
+
+    /**
+     * Convert a single hub's HitSpool files to a simple hit file.
+     *
+     * @param job hub description
+     * @param factory payload factory
+     * @param append if <tt>true</tt>, add hits to the end of the file
+     *
+     * @return <tt>false</tt> if the output file could not be written
+     */
+    private boolean convert(HubJob job, PayloadFactory factory,
+                            boolean append)
+    {
+        File path = getOutputFile(job.hubName);
+        BufferWriter out;
+        try {
+            out = new BufferWriter(path, append);
+        } catch (IOException ioe) {
+            System.err.println(job.label + "Cannot open output file \"" +
+                               path + "\":");
+            ioe.printStackTrace();
+            return false;
+        }
 
+        boolean success = true;
+        try {
+            simplifyHits(job, out, factory);
+        } catch (IOException ioe) {
+            System.err.println(job.label + "Cannot write all hits:");
+            ioe.printStackTrace();
+            success = false;
+        } finally {
             try {
-                simplifyHits(out);
-            } catch (IOException ioe) {
-                System.err.println("Cannot write all hits:");
-                ioe.printStackTrace();
-            } finally {
-                try {
-                    out.close();
-                } catch (Throwable thr) {
-                    thr.printStackTrace();
-                }
+                out.close();
+            } catch (Throwable thr) {
+                thr.printStackTrace();
             }
         }
+
+        return success;
     }
 
-    private void simplifyHits(BufferWriter out)
+    /**
+     * Find the HitSpool files which are ready to be converted.  The most
+     * recently modified file is still being written, so it's only
+     * included when the directory has gone quiet.
+     *
+     * @param converted modification times of files which have already
+     *                  been converted, keyed by file name
+     * @param includeNewest if <tt>true</tt>, include the newest file
+     *
+     * @return files in the order they were written
+     *
+     * @throws IOException if the directory cannot be read
+     */
+    private List<File> findCompletedFiles(HashMap<String, Long> converted,
+                                          boolean includeNewest)
         throws IOException
     {
-        long firstWrittenUTC = Long.MIN_VALUE;
-        long lastWrittenUTC = Long.MIN_VALUE;
-        long numWritten = 0;
-
-        File lastFile = null;
-        long lastUTC = Long.MIN_VALUE;
-
-        int numFiles = 0;
-        for (File file : files) {
-            if (verbose) {
-                System.out.printf("File %d of %d: %s\n", ++numFiles,
-                                  files.length, file.getName());
-                System.out.flush();
+        ArrayList<File> list = new ArrayList<File>();
+        for (File f : HubPayloadFilter.listFiles(srcDir, hubNumber)) {
+            if (f.isFile()) {
+                list.add(f);
             }
+        }
 
-            long firstUTC = Long.MIN_VALUE;
-            long numPayloads = 0;
-            PayloadByteReader rdr = new PayloadByteReader(file);
-            for (ByteBuffer buf : rdr) {
-                if (numPayloads++ >= maxPayloads) {
-                    break;
+        // HitSpool reuses file names, so order by modification time
+        File[] sorted = list.toArray(new File[list.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2)
+                {
+                    final long m1 = f1.lastModified();
+                    final long m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
                 }
+            });
 
-                IPayload pay;
-                try {
-                    pay = (IPayload) factory.getPayload(buf, 0);
-                    if (!(pay instanceof DOMHit)) {
-                        System.err.println("Payload #" + numPayloads +
-                                           " is not a hit: " +
-                                           pay.getClass().getName());
-                        continue;
-                    }
+        ArrayList<File> ready = new ArrayList<File>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == sorted.length - 1 && !includeNewest) {
+                break;
+            }
 
-                    pay.loadPayload();
-                } catch (PayloadException pex) {
-                    System.err.println("For payload #" + numPayloads + ":");
-                    pex.printStackTrace();
-                    continue;
-                }
+            Long prevModified = converted.get(sorted[i].getName());
+            if (prevModified == null ||
+                prevModified.longValue() != sorted[i].lastModified())
+            {
+                ready.add(sorted[i]);
+            }
+        }
+
+        return ready;
+    }
+
+    /**
+     * Find the time of the last hit in an existing output file, trimming
+     * any partial payload left by an interrupted conversion.
+     *
+     * @param path output file
+     *
+     * @return time of the last hit and the number of hits written at that
+     *         time (<tt>Long.MIN_VALUE</tt> and 0 if the file is missing or
+     *         empty)
+     *
+     * @throws IOException if the file cannot be read or trimmed
+     */
+    private static ResumePoint findResumePoint(File path)
+        throws IOException
+    {
+        if (!path.exists()) {
+            return new ResumePoint(Long.MIN_VALUE, 0);
+        }
+
+        long lastUTC = Long.MIN_VALUE;
+        long numAtLast = 0;
+        long goodLength = 0;
+        boolean partial = false;
+
+        FileInputStream fin = new FileInputStream(path);
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(fin));
+        try {
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException eof) {
+                    break;
+                }
+
+                try {
+                    if (len < 16) {
+                        throw new IOException("Bad length " + len + " at " +
+                                              goodLength + " in " + path);
+                    }
 
-                DOMHit hit = (DOMHit) pay;
+                    in.readInt();
+                    final long utc = in.readLong();
+                    in.readFully(new byte[len - 16]);
+
+                    if (utc == lastUTC) {
+                        numAtLast++;
+                    } else {
+                        lastUTC = utc;
+                        numAtLast = 1;
+                    }
+                    goodLength += len;
+                } catch (EOFException eof) {
+                    partial = true;
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (partial) {
+            System.err.println("Trimming partial payload from end of " +
+                               path);
+            RandomAccessFile raf = new RandomAccessFile(path, "rw");
+            try {
+                raf.setLength(goodLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        return new ResumePoint(lastUTC, numAtLast);
+    }
+
+    /**
+     * Get the simple hit file for a hub.
+     *
+     * @param hubName hub name
+     *
+     * @return output file
+     */
+    private File getOutputFile(String hubName)
+    {
+        String filename = String.format("%s_simplehits_%06d_0_999999.dat",
+                                        hubName, runNumber);
+        return new File(destDir, filename);
+    }
+
+    /**
+     * Convert HitSpool files as they are completed, appending the hits to
+     * the hub's simple hit file.  Conversion resumes after the last hit
+     * already in the output file, so a tail can be restarted at any time.
+     * Several DOMs may report hits in the same tick, so the resume point
+     * is the last tick plus the number of hits already written for it.
+     * When the directory has been quiet for <tt>tailIdleSeconds</tt> (if
+     * non-zero) or the end time is reached, the remaining files are
+     * converted and the output's "done" marker is created so replay
+     * bridges following the file know it's complete.
+     */
+    private void tail()
+    {
+        final File path = getOutputFile(hubName);
+        final File doneFile = SimpleHitFilter.getDoneMarker(path);
+
+        ResumePoint resume;
+        try {
+            resume = findResumePoint(path);
+
+            // create the file now so replay bridges can open it
+            doneFile.delete();
+            new BufferWriter(path, true).close();
+        } catch (IOException ioe) {
+            System.err.println("Cannot prepare output file \"" + path +
+                               "\":");
+            ioe.printStackTrace();
+            return;
+        }
+
+        if (resume.utc != Long.MIN_VALUE) {
+            System.out.println("Resuming after hit #" + resume.numAtUTC +
+                               " at " + resume.utc);
+        }
+
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            srcDir.toPath().register(watcher,
+                                     StandardWatchEventKinds.ENTRY_CREATE,
+                                     StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ioe) {
+            System.err.println("Cannot watch " + srcDir + ":");
+            ioe.printStackTrace();
+            return;
+        }
+
+        HashMap<String, Long> converted = new HashMap<String, Long>();
+
+        final long origStartUTC = startUTC;
+        final long idleLimit = tailIdleSeconds * 1000L;
+
+        long idleMillis = 0;
+        try {
+            while (true) {
+                final boolean quiet = idleLimit > 0 && idleMillis >= idleLimit;
+
+                List<File> ready;
+                try {
+                    ready = findCompletedFiles(converted, quiet);
+                } catch (IOException ioe) {
+                    System.err.println("Cannot list files in " + srcDir +
+                                       ":");
+                    ioe.printStackTrace();
+                    break;
+                }
+
+                if (ready.size() > 0) {
+                    HubJob job = new HubJob(hubNumber, hubName,
+                                            ready.toArray(new File[0]), "");
+                    job.incremental = true;
+
+                    // skip everything which has already been written
+                    if (resume.utc != Long.MIN_VALUE &&
+                        resume.utc >= origStartUTC)
+                    {
+                        startUTC = resume.utc;
+                        job.numToSkip = resume.numAtUTC;
+                    } else {
+                        startUTC = origStartUTC;
+                    }
+
+                    if (!convert(job, factory, true)) {
+                        break;
+                    }
+
+                    for (File f : ready) {
+                        converted.put(f.getName(), f.lastModified());
+                    }
+                    if (job.numWritten > 0) {
+                        if (job.lastWrittenUTC == resume.utc) {
+                            resume.numAtUTC += job.numAtLastUTC;
+                        } else {
+                            resume.utc = job.lastWrittenUTC;
+                            resume.numAtUTC = job.numAtLastUTC;
+                        }
+                    }
+
+                    if (job.pastEnd) {
+                        break;
+                    }
+                }
+
+                if (quiet) {
+                    break;
+                }
+
+                WatchKey key;
+                try {
+                    key = watcher.poll(TAIL_POLL_INTERVAL,
+                                       TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+
+                if (key == null) {
+                    idleMillis += TAIL_POLL_INTERVAL;
+                } else {
+                    // the events don't matter, the directory is rescanned
+                    key.pollEvents();
+                    idleMillis = 0;
+
+                    if (!key.reset()) {
+                        System.err.println("Lost watch on " + srcDir);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            startUTC = origStartUTC;
+
+            try {
+                watcher.close();
+            } catch (IOException ioe) {
+                // ignore errors on close
+            }
+        }
+
+        try {
+            if (!doneFile.createNewFile()) {
+                System.err.println("Cannot create " + doneFile);
+            }
+        } catch (IOException ioe) {
+            System.err.println("Cannot create " + doneFile + ":");
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Convert every hub found under the source directory, using a fixed
+     * number of worker threads.  All workers share the DOM registry; each
+     * has its own identically configured payload factory.
+     */
+    private void convertAll()
+    {
+        final List<HubJob> jobs = findHubJobs();
+        if (jobs.size() == 0) {
+            System.err.println("Cannot find any hubs in " + srcDir);
+            return;
+        }
+
+        final int numWorkers = Math.min(numThreads, jobs.size());
+        System.out.println("Converting " + jobs.size() + " hubs with " +
+                           numWorkers + " threads");
+
+        final AtomicInteger nextJob = new AtomicInteger(0);
+
+        final long startNanos = System.nanoTime();
+
+        Thread[] workers = new Thread[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            workers[w] = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        final PayloadFactory wFactory =
+                            new PayloadFactory(null);
+                        while (true) {
+                            final int idx = nextJob.getAndIncrement();
+                            if (idx >= jobs.size()) {
+                                break;
+                            }
+
+                            HubJob job = jobs.get(idx);
+                            job.startNanos = System.nanoTime();
+                            job.failed = !convert(job, wFactory, false);
+                            job.endNanos = System.nanoTime();
+                        }
+                    }
+                });
+            workers[w].setName("ConvertHitSpool#" + w);
+            workers[w].start();
+        }
+
+        for (int w = 0; w < numWorkers; w++) {
+            while (workers[w].isAlive()) {
+                try {
+                    workers[w].join(PROGRESS_INTERVAL);
+                } catch (InterruptedException ie) {
+                    // ignore interrupts
+                }
+
+                if (workers[w].isAlive()) {
+                    reportProgress(jobs, false);
+                }
+            }
+        }
+
+        reportProgress(jobs, true);
+
+        final double secs = (System.nanoTime() - startNanos) / 1000000000.0;
+        long totalWritten = 0;
+        int numFailed = 0;
+        for (HubJob job : jobs) {
+            totalWritten += job.numWritten;
+            if (job.failed) {
+                numFailed++;
+            }
+        }
+        System.out.printf("Converted %d hubs (%d failed), %d hits in" +
+                          " %.1f secs (%.0f hits/sec)\n", jobs.size(),
+                          numFailed, totalWritten, secs,
+                          secs == 0.0 ? 0.0 : (double) totalWritten / secs);
+    }
+
+    /**
+     * Print per-hub progress and throughput.
+     *
+     * @param jobs list of hub jobs
+     * @param finished <tt>true</tt> if all jobs have finished
+     */
+    private static void reportProgress(List<HubJob> jobs, boolean finished)
+    {
+        final long now = System.nanoTime();
+
+        StringBuilder buf = new StringBuilder();
+        for (HubJob job : jobs) {
+            final long start = job.startNanos;
+            if (start == 0 && !finished) {
+                // don't report hubs which haven't been started
+                continue;
+            }
+
+            final long end = job.endNanos;
+            final String state;
+            if (end != 0) {
+                state = job.failed ? "FAILED" : "done";
+            } else if (start == 0) {
+                state = "waiting";
+            } else {
+                state = "running";
+            }
+
+            final long stop = end != 0 ? end : now;
+            final double secs =
+                start == 0 ? 0.0 : (stop - start) / 1000000000.0;
+            final double rate =
+                secs == 0.0 ? 0.0 : (double) job.numRead / secs;
+
+            buf.append(String.format("%s%s file %d/%d, read %d, wrote %d" +
+                                     " (%.0f hits/sec)\n", job.label, state,
+                                     job.filesDone, job.files.length,
+                                     job.numRead, job.numWritten, rate));
+        }
+
+        System.out.print(buf);
+        System.out.flush();
+    }
+
+    /**
+     * Copy a payload so the reader can reuse its buffer.
+     *
+     * @param buf payload read from a HitSpool file
+     *
+     * @return copy of the payload starting at position 0
+     */
+    private static ByteBuffer copyPayload(ByteBuffer buf)
+    {
+        ByteBuffer src = buf.duplicate();
+        src.position(0);
+
+        ByteBuffer copy = ByteBuffer.allocate(src.limit());
+        copy.order(buf.order());
+        copy.put(src);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Decode pipeline payloads until the reader is finished.
+     *
+     * @param pipe hit conversion pipeline
+     * @param factory payload factory used only by this decoder
+     * @param transcoder hit transcoder used only by this decoder
+     *                   (may be <tt>null</tt>)
+     */
+    private void decodePayloads(HitPipeline pipe, PayloadFactory factory,
+                                HitTranscoder transcoder)
+    {
+        while (true) {
+            PipelineItem item = pipe.takeWork();
+            if (item.type == PipelineItem.DONE) {
+                break;
+            }
+
+            try {
+                if (transcoder == null || !transcoder.isVerified() ||
+                    !transcodePayload(item, transcoder))
+                {
+                    decodePayload(item, factory, transcoder);
+                }
+            } catch (Throwable thr) {
+                item.fatal = thr;
+            } finally {
+                item.setDecoded();
+            }
+        }
+    }
+
+    /**
+     * Decode a single payload.  Hits which the writer will never write
+     * are not converted.
+     *
+     * @param item pipeline entry
+     * @param factory payload factory
+     * @param transcoder if not <tt>null</tt>, hit transcoder which is
+     *                   checked against the payload classes
+     *
+     * @throws IOException if the payload cannot be loaded
+     */
+    private void decodePayload(PipelineItem item, PayloadFactory factory,
+                               HitTranscoder transcoder)
+        throws IOException
+    {
+        IPayload pay;
+        try {
+            pay = (IPayload) factory.getPayload(item.buf, 0);
+            if (!(pay instanceof DOMHit)) {
+                item.notHitClass = pay.getClass().getName();
+                return;
+            }
+
+            pay.loadPayload();
+        } catch (PayloadException pex) {
+            item.decodeError = pex;
+            return;
+        }
+
+        DOMHit hit = (DOMHit) pay;
+
+        item.utcTime = hit.getUTCTime();
+        if (item.utcTime < startUTC ||
+            (endUTC != Long.MIN_VALUE && item.utcTime >= endUTC))
+        {
+            if (transcoder != null) {
+                transcoder.check(item.buf, hit, null);
+            }
+            return;
+        }
+
+        item.isBeacon = !includeLC0Hits &&
+            hit.getLocalCoincidenceMode() == 0 && hit.getTriggerMode() != 4;
+        if (item.isBeacon) {
+            if (transcoder != null) {
+                transcoder.check(item.buf, hit, null);
+            }
+            return;
+        }
+
+        try {
+            item.simple = hit.getHitBuffer(null, registry);
+        } catch (PayloadException pex) {
+            item.bufferError = pex;
+        }
+
+        if (transcoder != null) {
+            transcoder.check(item.buf, hit, item.simple);
+        }
+    }
+
+    /**
+     * Build a payload's simple hit straight from the record bytes.
+     *
+     * @param item pipeline entry
+     * @param transcoder verified hit transcoder
+     *
+     * @return <tt>false</tt> if the payload must be decoded by the
+     *         payload classes
+     */
+    private boolean transcodePayload(PipelineItem item,
+                                     HitTranscoder transcoder)
+    {
+        if (!HitTranscoder.isSupported(item.buf)) {
+            return false;
+        }
+
+        final long utcTime = HitTranscoder.getUTCTime(item.buf);
+        if (utcTime < startUTC ||
+            (endUTC != Long.MIN_VALUE && utcTime >= endUTC))
+        {
+            item.utcTime = utcTime;
+            return true;
+        }
+
+        ByteBuffer simple =
+            ByteBuffer.allocate(HitTranscoder.SIMPLE_HIT_LENGTH);
+        final int rtnval =
+            transcoder.transcode(item.buf, simple, 0, !includeLC0Hits);
+        if (rtnval == HitTranscoder.UNSUPPORTED) {
+            return false;
+        }
+
+        item.utcTime = utcTime;
+        if (rtnval == HitTranscoder.BEACON) {
+            item.isBeacon = true;
+        } else {
+            item.simple = simple;
+        }
+        return true;
+    }
+
+    /**
+     * Read all files, feeding the payloads to the writer (in order) and to
+     * the decoders (in any order).  The reader stays up to
+     * <tt>PIPELINE_DEPTH</tt> payloads ahead of the writer, moving on to
+     * the next file while the current one is being converted.
+     *
+     * @param files HitSpool files
+     * @param pipe hit conversion pipeline
+     * @param numDecoders number of decoder threads
+     */
+    private void readFiles(File[] files, HitPipeline pipe, int numDecoders)
+    {
+        try {
+            for (int i = 0; i < files.length && !pipe.stopped; i++) {
+                pipe.putOrdered(new PipelineItem(PipelineItem.FILE_START, i,
+                                                 0));
+
+                long numPayloads = 0;
+                PayloadByteReader rdr = new PayloadByteReader(files[i]);
+                for (ByteBuffer buf : rdr) {
+                    if (pipe.stopped || numPayloads++ >= maxPayloads) {
+                        break;
+                    }
+
+                    PipelineItem item =
+                        new PipelineItem(PipelineItem.PAYLOAD, i,
+                                         numPayloads);
+                    item.buf = copyPayload(buf);
+
+                    pipe.putOrdered(item);
+                    pipe.putWork(item);
+                }
+
+                pipe.putOrdered(new PipelineItem(PipelineItem.FILE_END, i,
+                                                 0));
+            }
+        } catch (Throwable thr) {
+            PipelineItem item =
+                new PipelineItem(PipelineItem.READ_ERROR, -1, 0);
+            item.fatal = thr;
+            pipe.putOrdered(item);
+        } finally {
+            pipe.putOrdered(PipelineItem.DONE_ITEM);
+            for (int d = 0; d < numDecoders; d++) {
+                pipe.putWork(PipelineItem.DONE_ITEM);
+            }
+        }
+    }
+
+    /**
+     * Rethrow an exception caught by one of the pipeline threads.
+     *
+     * @param thr exception
+     *
+     * @throws IOException if <tt>thr</tt> is an I/O exception
+     */
+    private static void rethrow(Throwable thr)
+        throws IOException
+    {
+        if (thr instanceof IOException) {
+            throw (IOException) thr;
+        } else if (thr instanceof RuntimeException) {
+            throw (RuntimeException) thr;
+        } else if (thr instanceof Error) {
+            throw (Error) thr;
+        }
+
+        throw new Error("Unexpected exception", thr);
+    }
+
+    /**
+     * Convert a hub's HitSpool files to simple hits.
+     *
+     * A reader thread prefetches payloads, decoder threads convert them,
+     * and this thread writes them in the order they were read, applying
+     * all the order-dependent checks (file gaps, start/end times, giving
+     * up after the end time) exactly as a single-threaded loop would.
+     *
+     * @param job hub description
+     * @param out output file
+     * @param factory payload factory for the first decoder
+     *
+     * @throws IOException if a file cannot be read or a payload cannot be
+     *                     loaded
+     */
+    private void simplifyHits(HubJob job, BufferWriter out,
+                              PayloadFactory factory)
+        throws IOException
+    {
+        final File[] files = job.files;
+
+        // hubs converted in parallel already keep all processors busy
+        final int numDecoders = allHubs ? 1 : numThreads;
+
+        final HitPipeline pipe = new HitPipeline(PIPELINE_DEPTH);
+
+        final String threadName = "ConvertHitSpool-" + job.hubName;
+
+        Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    readFiles(files, pipe, numDecoders);
+                }
+            });
+        reader.setName(threadName + "-reader");
+        reader.start();
+
+        Thread[] decoders = new Thread[numDecoders];
+        HitTranscoder[] transcoders = new HitTranscoder[numDecoders];
+        for (int d = 0; d < numDecoders; d++) {
+            final PayloadFactory dFactory =
+                d == 0 ? factory : new PayloadFactory(null);
+            if (channelTable != null) {
+                transcoders[d] = new HitTranscoder(channelTable, job.label);
+            }
+            final HitTranscoder dTranscoder = transcoders[d];
+            decoders[d] = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        decodePayloads(pipe, dFactory, dTranscoder);
+                    }
+                });
+            decoders[d].setName(threadName + "-decoder#" + d);
+            decoders[d].start();
+        }
+
+        long firstWrittenUTC = Long.MIN_VALUE;
+        long lastWrittenUTC = Long.MIN_VALUE;
+        long numWritten = 0;
+
+        File file = null;
+        File lastFile = null;
+        long firstUTC = Long.MIN_VALUE;
+        long lastUTC = Long.MIN_VALUE;
+
+        boolean sawDone = false;
+        try {
+            while (true) {
+                PipelineItem item = pipe.takeOrdered();
+                if (item.type == PipelineItem.DONE) {
+                    sawDone = true;
+                    break;
+                } else if (item.type == PipelineItem.READ_ERROR) {
+                    rethrow(item.fatal);
+                } else if (item.type == PipelineItem.FILE_START) {
+                    file = files[item.fileIndex];
+                    if (verbose) {
+                        System.out.printf("%sFile %d of %d: %s\n", job.label,
+                                          item.fileIndex + 1, files.length,
+                                          file.getName());
+                        System.out.flush();
+                    }
+
+                    firstUTC = Long.MIN_VALUE;
+                    continue;
+                } else if (item.type == PipelineItem.FILE_END) {
+                    job.filesDone++;
+
+                    // give up if last payload was past the end time
+                    if (endUTC != Long.MIN_VALUE && lastUTC >= endUTC) {
+                        job.pastEnd = true;
+                        break;
+                    }
+
+                    // remember this file for the next iteration
+                    lastFile = file;
+                    continue;
+                }
+
+                job.numRead++;
+
+                item.waitForDecoder();
+                if (item.fatal != null) {
+                    rethrow(item.fatal);
+                } else if (item.notHitClass != null) {
+                    System.err.println(job.label + "Payload #" +
+                                       item.payloadNum + " is not a hit: " +
+                                       item.notHitClass);
+                    continue;
+                } else if (item.decodeError != null) {
+                    System.err.println(job.label + "For payload #" +
+                                       item.payloadNum + ":");
+                    item.decodeError.printStackTrace();
+                    continue;
+                }
 
                 // check for gaps between files
                 if (firstUTC == Long.MIN_VALUE) {
-                    firstUTC = hit.getUTCTime();
+                    firstUTC = item.utcTime;
 
                     // if we have the last time from a previous file...
                     if (firstUTC >= startUTC && lastUTC != Long.MIN_VALUE) {
                         final long diff = firstUTC - lastUTC;
                         if (diff > MAX_UTC_DIFFERENCE) {
-                            final String msg = "WARNING: Significant gap (" +
+                            final String msg = job.label +
+                                "WARNING: Significant gap (" +
                                 diff + " ticks) between the end of " +
                                 lastFile.getName() + " and the start of " +
                                 file.getName();
@@ -816,69 +1887,113 @@ public class ConvertHitSpool
                 }
 
                 // save this hit's UTC time in case it's the last payload
-                lastUTC = hit.getUTCTime();
+                lastUTC = item.utcTime;
 
                 // reject hits outside the start/duration range
                 if (lastUTC < startUTC) {
                     // too soon
                     continue;
                 } else if (endUTC != Long.MIN_VALUE && lastUTC >= endUTC) {
-                    // too late
+                    // too late, so don't look at any more files
+                    job.filesDone++;
+                    job.pastEnd = true;
                     break;
                 }
 
                 // reject beacon hits
-                if (!includeLC0Hits && hit.getLocalCoincidenceMode() == 0 &&
-                    hit.getTriggerMode() != 4)
-                {
+                if (item.isBeacon) {
                     continue;
                 }
 
-                ByteBuffer simple;
-                try {
-                    simple = hit.getHitBuffer(null, registry);
-                } catch (PayloadException pex) {
-                    System.err.println("For payload #" + numPayloads + ":");
-                    pex.printStackTrace();
+                if (item.bufferError != null) {
+                    System.err.println(job.label + "For payload #" +
+                                       item.payloadNum + ":");
+                    item.bufferError.printStackTrace();
+                    continue;
+                }
+
+                // skip hits from the start tick which were written earlier
+                if (job.numToSkip > 0 && item.utcTime == startUTC) {
+                    job.numToSkip--;
                     continue;
                 }
 
                 try {
-                    out.write(simple);
+                    out.write(item.simple);
                 } catch (IOException ioe) {
-                    System.err.println("For payload #" + numPayloads + ":");
+                    System.err.println(job.label + "For payload #" +
+                                       item.payloadNum + ":");
                     ioe.printStackTrace();
                     continue;
                 }
 
                 // update times and count for final summary
                 if (firstWrittenUTC == Long.MIN_VALUE) {
-                    firstWrittenUTC = hit.getUTCTime();
+                    firstWrittenUTC = item.utcTime;
                 }
-                lastWrittenUTC = hit.getUTCTime();
+                if (item.utcTime == lastWrittenUTC) {
+                    job.numAtLastUTC++;
+                } else {
+                    job.numAtLastUTC = 1;
+                }
+                lastWrittenUTC = item.utcTime;
                 numWritten++;
+                job.numWritten = numWritten;
+                job.lastWrittenUTC = lastWrittenUTC;
             }
+        } finally {
+            pipe.stop(sawDone);
 
-            // give up if last payload was past the end time
-            if (endUTC != Long.MIN_VALUE && lastUTC >= endUTC) {
-                break;
+            joinThread(reader);
+            for (int d = 0; d < numDecoders; d++) {
+                joinThread(decoders[d]);
             }
+        }
 
-            // remember this file for the next iteration
-            lastFile = file;
+        if (verbose && channelTable != null) {
+            long numTranscoded = 0;
+            long numBeacons = 0;
+            for (int d = 0; d < numDecoders; d++) {
+                numTranscoded += transcoders[d].getNumberTranscoded();
+                numBeacons += transcoders[d].getNumberOfBeacons();
+            }
+            System.out.println(job.label + "Transcoded " + numTranscoded +
+                               " hits, dropped " + numBeacons +
+                               " beacons without decoding");
         }
 
         if (numWritten == 0) {
-            System.err.println("ERROR: No hits written!");
+            if (!job.incremental) {
+                System.err.println(job.label + "ERROR: No hits written!");
+            } else if (verbose) {
+                System.out.println(job.label + "No new hits written");
+            }
         } else {
             final String durStr =
                 MiscUtil.formatDurationTicks(lastWrittenUTC - firstWrittenUTC);
-            System.out.println("Wrote " + numWritten + " hits covering " +
+            System.out.println(job.label + "Wrote " + numWritten +
+                               " hits covering " +
                                durStr + " [" + firstWrittenUTC + "-" +
                                lastWrittenUTC + "]");
         }
     }
 
+    /**
+     * Wait for a thread to finish, ignoring interrupts.
+     *
+     * @param thread thread
+     */
+    private static void joinThread(Thread thread)
+    {
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+    }
+
     public static final void main(String[] args)
     {
         BasicConfigurator.configure();
@@ -889,4 +2004,204 @@ public class ConvertHitSpool
 
         cvtHS.run();
     }
+
+    /**
+     * Conversion state for a single hub.
+     */
+    private static class HubJob
+    {
+        private int hubNumber;
+        private String hubName;
+        private File[] files;
+        /** Prefix for messages about this hub */
+        private String label;
+
+        private volatile int filesDone;
+        private volatile long numRead;
+        private volatile long numWritten;
+        private volatile long lastWrittenUTC = Long.MIN_VALUE;
+        /** Number of hits written at <tt>lastWrittenUTC</tt> */
+        private volatile long numAtLastUTC;
+        /** Number of hits at the start time which were already written */
+        private long numToSkip;
+        /** Set if this job appends a batch of files to a tailed output */
+        private boolean incremental;
+        /** Set if conversion stopped at the end time */
+        private volatile boolean pastEnd;
+        private volatile long startNanos;
+        private volatile long endNanos;
+        private volatile boolean failed;
+
+        HubJob(int hubNumber, String hubName, File[] files, String label)
+        {
+            this.hubNumber = hubNumber;
+            this.hubName = hubName;
+            this.files = files;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Position in a tailed output file after which conversion resumes.
+     */
+    private static class ResumePoint
+    {
+        /** Time of the last hit written */
+        private long utc;
+        /** Number of hits written at that time */
+        private long numAtUTC;
+
+        ResumePoint(long utc, long numAtUTC)
+        {
+            this.utc = utc;
+            this.numAtUTC = numAtUTC;
+        }
+    }
+
+    /**
+     * Queues connecting the hit conversion pipeline's reader, decoders,
+     * and writer.  Every entry goes onto the bounded ordered queue (which
+     * limits how far the reader runs ahead) and payload entries also go
+     * onto the work queue for the decoders.
+     */
+    private static class HitPipeline
+    {
+        private ArrayBlockingQueue<PipelineItem> ordered;
+        private LinkedBlockingQueue<PipelineItem> work =
+            new LinkedBlockingQueue<PipelineItem>();
+
+        /** Set when the writer has stopped taking entries */
+        private volatile boolean stopped;
+
+        HitPipeline(int depth)
+        {
+            ordered = new ArrayBlockingQueue<PipelineItem>(depth);
+        }
+
+        void putOrdered(PipelineItem item)
+        {
+            while (true) {
+                try {
+                    ordered.put(item);
+                    break;
+                } catch (InterruptedException ie) {
+                    // try again
+                }
+            }
+        }
+
+        void putWork(PipelineItem item)
+        {
+            while (true) {
+                try {
+                    work.put(item);
+                    break;
+                } catch (InterruptedException ie) {
+                    // try again
+                }
+            }
+        }
+
+        /**
+         * Stop the reader and discard everything it has queued.
+         *
+         * @param sawDone <tt>true</tt> if the writer has already seen the
+         *                reader's final entry
+         */
+        void stop(boolean sawDone)
+        {
+            stopped = true;
+            if (!sawDone) {
+                while (takeOrdered().type != PipelineItem.DONE) {
+                    // discard entries until the reader is finished
+                }
+            }
+        }
+
+        PipelineItem takeOrdered()
+        {
+            while (true) {
+                try {
+                    return ordered.take();
+                } catch (InterruptedException ie) {
+                    // try again
+                }
+            }
+        }
+
+        PipelineItem takeWork()
+        {
+            while (true) {
+                try {
+                    return work.take();
+                } catch (InterruptedException ie) {
+                    // try again
+                }
+            }
+        }
+    }
+
+    /**
+     * A single entry in the hit conversion pipeline.  The reader creates
+     * one for the start and end of every file and one for every payload;
+     * decoders fill in the payload entries.
+     */
+    private static class PipelineItem
+    {
+        static final int FILE_START = 0;
+        static final int PAYLOAD = 1;
+        static final int FILE_END = 2;
+        static final int READ_ERROR = 3;
+        static final int DONE = 4;
+
+        /** Marks the end of the reader's output */
+        static final PipelineItem DONE_ITEM = new PipelineItem(DONE, -1, 0);
+
+        private final int type;
+        private final int fileIndex;
+        /** Payload number within the file, starting at 1 */
+        private final long payloadNum;
+
+        private ByteBuffer buf;
+
+        private boolean decoded;
+        private String notHitClass;
+        private PayloadException decodeError;
+        private PayloadException bufferError;
+        private Throwable fatal;
+        private long utcTime;
+        private boolean isBeacon;
+        private ByteBuffer simple;
+
+        PipelineItem(int type, int fileIndex, long payloadNum)
+        {
+            this.type = type;
+            this.fileIndex = fileIndex;
+            this.payloadNum = payloadNum;
+        }
+
+        /**
+         * Mark this payload as decoded and wake the writer.
+         */
+        synchronized void setDecoded()
+        {
+            buf = null;
+            decoded = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait until a decoder has finished with this payload.
+         */
+        synchronized void waitForDecoder()
+        {
+            while (!decoded) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    // try again
+                }
+            }
+        }
+    }
 }
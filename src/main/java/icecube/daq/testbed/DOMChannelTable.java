@@ -0,0 +1,151 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.SourceIdRegistry;
+import icecube.daq.util.DOMInfo;
+import icecube.daq.util.IDOMRegistry;
+
+/**
+ * Primitive open-addressed map from DOM mainboard IDs to hub source IDs,
+ * built once from a DOM registry so per-hit lookups don't box keys or
+ * walk the registry's maps.
+ *
+ * The table is never modified after it's built, so it can be shared by
+ * any number of threads.
+ */
+class DOMChannelTable
+{
+    /** Golden ratio multiplier used to spread mainboard IDs */
+    private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    /** Most recently built table */
+    private static DOMChannelTable cached;
+    private static IDOMRegistry cachedRegistry;
+
+    /** Mainboard IDs (0 marks an empty slot) */
+    private long[] keys;
+    private int[] sourceIds;
+    private int shift;
+    private int numDOMs;
+
+    /**
+     * Build the table.
+     *
+     * @param registry DOM registry
+     */
+    DOMChannelTable(IDOMRegistry registry)
+    {
+        int num = 0;
+        for (DOMInfo dom : registry.allDoms()) {
+            num++;
+        }
+
+        // keep the table no more than half full
+        int bits = 4;
+        while ((1 << bits) < num * 2) {
+            bits++;
+        }
+
+        keys = new long[1 << bits];
+        sourceIds = new int[keys.length];
+        shift = 64 - bits;
+
+        for (DOMInfo dom : registry.allDoms()) {
+            final long mbId = dom.getNumericMainboardId();
+            if (mbId == 0L) {
+                continue;
+            }
+
+            int idx = slot(mbId);
+            while (keys[idx] != 0L && keys[idx] != mbId) {
+                idx = (idx + 1) & (keys.length - 1);
+            }
+
+            if (keys[idx] == 0L) {
+                numDOMs++;
+            }
+
+            keys[idx] = mbId;
+            sourceIds[idx] =
+                SourceIdRegistry.STRING_HUB_SOURCE_ID + dom.getHubId();
+        }
+    }
+
+    /**
+     * Find the slot holding a mainboard ID.
+     *
+     * @return slot index or -1 if the DOM is unknown
+     */
+    private int find(long mbId)
+    {
+        if (mbId == 0L) {
+            return -1;
+        }
+
+        int idx = slot(mbId);
+        while (keys[idx] != mbId) {
+            if (keys[idx] == 0L) {
+                return -1;
+            }
+            idx = (idx + 1) & (keys.length - 1);
+        }
+
+        return idx;
+    }
+
+    /**
+     * Get the table for a registry, building it only if the registry
+     * differs from the one used for the previous table.
+     *
+     * @param registry DOM registry
+     *
+     * @return lookup table
+     */
+    static synchronized DOMChannelTable getTable(IDOMRegistry registry)
+    {
+        if (cached == null || cachedRegistry != registry) {
+            cached = new DOMChannelTable(registry);
+            cachedRegistry = registry;
+        }
+
+        return cached;
+    }
+
+    /**
+     * Get the source ID of the hub which reads out a DOM.
+     *
+     * @param mbId mainboard ID
+     *
+     * @return source ID or -1 if the DOM is unknown
+     */
+    int getSourceId(long mbId)
+    {
+        final int idx = find(mbId);
+        if (idx < 0) {
+            return -1;
+        }
+
+        return sourceIds[idx];
+    }
+
+    /**
+     * Get the number of DOMs in the table.
+     *
+     * @return number of DOMs
+     */
+    int size()
+    {
+        return numDOMs;
+    }
+
+    private int slot(long mbId)
+    {
+        return (int) ((mbId * HASH_MULTIPLIER) >>> shift);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DOMChannelTable[" + numDOMs + " DOMs/" + keys.length +
+            " slots]";
+    }
+}
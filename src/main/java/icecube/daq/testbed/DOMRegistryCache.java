@@ -0,0 +1,131 @@
+package icecube.daq.testbed;
+
+import icecube.daq.util.DOMRegistryException;
+import icecube.daq.util.DOMRegistryFactory;
+import icecube.daq.util.IDOMRegistry;
+import icecube.daq.util.LocatePDAQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide cache of DOM registries.  A configuration directory's
+ * geometry file is only parsed again when its length or modification
+ * time changes, so checking for a cached registry never reads the file.
+ * Registries are not saved between processes, so each process still
+ * parses the geometry file once.
+ */
+public abstract class DOMRegistryCache
+{
+    private static final Logger LOG = Logger.getLogger(DOMRegistryCache.class);
+
+    /** Name of the DOM geometry file inside the configuration directory */
+    public static final String GEOMETRY_FILE = "default-dom-geometry.xml";
+
+    /** Cached registries, keyed by canonical configuration directory */
+    private static HashMap<File, Entry> cache = new HashMap<File, Entry>();
+
+    /** Time spent loading registries */
+    private static long loadNanos;
+    private static int numXML;
+    private static int numMemory;
+
+    /**
+     * Get a summary of the registry loads performed by this process.
+     *
+     * @return summary string
+     */
+    public static synchronized String getStatistics()
+    {
+        return String.format("DOM registry: %d XML, %d cached loads in" +
+                             " %.1f ms", numXML, numMemory,
+                             (double) loadNanos / 1000000.0);
+    }
+
+    /**
+     * Load the DOM registry from the default configuration directory.
+     *
+     * @return DOM registry
+     *
+     * @throws DOMRegistryException if the registry cannot be loaded
+     */
+    public static IDOMRegistry load()
+        throws DOMRegistryException
+    {
+        return load(LocatePDAQ.findConfigDirectory());
+    }
+
+    /**
+     * Load the DOM registry from a configuration directory, reusing the
+     * in-memory copy if the geometry file has not changed.
+     *
+     * @param cfgDir configuration directory
+     *
+     * @return DOM registry
+     *
+     * @throws DOMRegistryException if the registry cannot be loaded
+     */
+    public static synchronized IDOMRegistry load(File cfgDir)
+        throws DOMRegistryException
+    {
+        final long start = System.nanoTime();
+
+        File key;
+        try {
+            key = cfgDir.getCanonicalFile();
+        } catch (IOException ioe) {
+            key = cfgDir.getAbsoluteFile();
+        }
+
+        final File geomFile = new File(key, GEOMETRY_FILE);
+        final long length = geomFile.length();
+        final long modified = geomFile.lastModified();
+
+        if (modified == 0L) {
+            // let the factory report the missing file
+            LOG.warn("Cannot find " + geomFile + "; not caching");
+
+            IDOMRegistry reg = DOMRegistryFactory.load(cfgDir);
+            loadNanos += System.nanoTime() - start;
+            numXML++;
+            return reg;
+        }
+
+        Entry entry = cache.get(key);
+        if (entry != null && entry.length == length &&
+            entry.modified == modified)
+        {
+            loadNanos += System.nanoTime() - start;
+            numMemory++;
+            return entry.registry;
+        }
+
+        IDOMRegistry reg = DOMRegistryFactory.load(key);
+
+        loadNanos += System.nanoTime() - start;
+        numXML++;
+
+        cache.put(key, new Entry(reg, length, modified));
+        return reg;
+    }
+
+    /**
+     * Cached registry data.
+     */
+    private static class Entry
+    {
+        private IDOMRegistry registry;
+        private long length;
+        private long modified;
+
+        Entry(IDOMRegistry registry, long length, long modified)
+        {
+            this.registry = registry;
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.PayloadRegistry;
+import icecube.daq.util.IDOMRegistry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Check that every hit comes from a DOM in the registry.
+ */
+class DOMRegistryValidator
+    implements PayloadValidator
+{
+    /** Offset of the mainboard ID in a SimpleHit */
+    private static final int SIMPLE_HIT_DOM_OFFSET = 28;
+    /** Offset of the channel ID in a SimplerHit */
+    private static final int SIMPLER_HIT_CHAN_OFFSET = 16;
+
+    private IDOMRegistry registry;
+
+    DOMRegistryValidator(IDOMRegistry registry)
+    {
+        if (registry == null) {
+            throw new Error("DOM registry has not been set");
+        }
+
+        this.registry = registry;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "domId";
+    }
+
+    @Override
+    public String validate(String source, ByteBuffer buf)
+    {
+        final int type = buf.getInt(4);
+        if (type == PayloadRegistry.PAYLOAD_ID_SIMPLE_HIT) {
+            final long mbId = buf.getLong(SIMPLE_HIT_DOM_OFFSET);
+            if (registry.getDom(mbId) == null) {
+                return String.format("Unknown DOM %012x", mbId);
+            }
+        } else if (type == PayloadRegistry.PAYLOAD_ID_SIMPLER_HIT) {
+            final short chanId = buf.getShort(SIMPLER_HIT_CHAN_OFFSET);
+            if (registry.getDom(chanId) == null) {
+                return "Unknown DOM channel " + chanId;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,259 @@
+package icecube.daq.testbed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Named entries saved in a single versioned file inside a directory.
+ *
+ * The file holds the format version, the number of entries, and each
+ * entry's name followed by the data written by <tt>writeEntry()</tt>.
+ * Several processes may share a directory, so <tt>write()</tt> locks a
+ * sidecar <tt>.lock</tt> file, merges in any entries added to the file
+ * since it was read, and replaces the file through a temporary file
+ * before releasing the lock.  A missing, stale or
+ * corrupt file is treated as empty, and write failures (usually a
+ * read-only directory) are only logged, since these files just speed
+ * up later work.
+ *
+ * @param <E> entry type
+ */
+abstract class DirectoryCache<E>
+{
+    private static final Logger LOG = Logger.getLogger(DirectoryCache.class);
+
+    /** File locks are held per process, so threads must take turns */
+    private static final Object WRITE_LOCK = new Object();
+
+    private File cacheFile;
+    private int version;
+    private String description;
+
+    private HashMap<String, E> entries = new HashMap<String, E>();
+    private boolean dirty;
+
+    /**
+     * Create a cache and load any entries saved in the file.
+     *
+     * @param cacheFile cache file
+     * @param version file format version
+     * @param description description used in log messages
+     */
+    DirectoryCache(File cacheFile, int version, String description)
+    {
+        this.cacheFile = cacheFile;
+        this.version = version;
+        this.description = description;
+
+        HashMap<String, E> map = readFile();
+        if (map != null) {
+            entries.putAll(map);
+        }
+    }
+
+    /**
+     * Get the canonical form of a directory, for use as a map key.
+     *
+     * @param dir directory
+     *
+     * @return canonical (or, failing that, absolute) directory
+     */
+    static File getKey(File dir)
+    {
+        try {
+            return dir.getCanonicalFile();
+        } catch (IOException ioe) {
+            return dir.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Get an entry.
+     *
+     * @param name entry name
+     *
+     * @return <tt>null</tt> if there is no entry
+     */
+    E get(String name)
+    {
+        return entries.get(name);
+    }
+
+    /**
+     * Have entries been added since the file was last written?
+     *
+     * @return <tt>true</tt> if the cache has unsaved entries
+     */
+    boolean isDirty()
+    {
+        return dirty;
+    }
+
+    /**
+     * Add or replace an entry.
+     *
+     * @param name entry name
+     * @param entry entry
+     */
+    void put(String name, E entry)
+    {
+        entries.put(name, entry);
+        dirty = true;
+    }
+
+    /**
+     * Read a single entry.
+     *
+     * @param in input stream
+     *
+     * @return entry
+     *
+     * @throws IOException if the entry cannot be read
+     */
+    abstract E readEntry(DataInputStream in)
+        throws IOException;
+
+    /**
+     * Read all entries from the file.
+     *
+     * @return <tt>null</tt> if the file is missing, stale or corrupt
+     */
+    private HashMap<String, E> readFile()
+    {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        HashMap<String, E> map = new HashMap<String, E>();
+        try {
+            FileInputStream fin = new FileInputStream(cacheFile);
+            DataInputStream in =
+                new DataInputStream(new BufferedInputStream(fin));
+            try {
+                if (in.readInt() != version) {
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info("Ignoring old " + description + " " +
+                                 cacheFile);
+                    }
+                    return null;
+                }
+
+                final int num = in.readInt();
+                for (int i = 0; i < num; i++) {
+                    final String name = in.readUTF();
+                    map.put(name, readEntry(in));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            LOG.warn("Ignoring unreadable " + description + " " + cacheFile,
+                     ioe);
+            return null;
+        }
+
+        return map;
+    }
+
+    /**
+     * Write all entries to the file, keeping any entries added to the
+     * file by other processes since it was read.
+     */
+    void write()
+    {
+        final File lockFile = new File(cacheFile.getParentFile(),
+                                       cacheFile.getName() + ".lock");
+
+        synchronized (WRITE_LOCK) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+                try {
+                    FileChannel chan = raf.getChannel();
+                    FileLock lock = chan.lock();
+                    try {
+                        writeLocked();
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException ioe) {
+                LOG.warn("Cannot lock " + description + " " + cacheFile,
+                         ioe);
+            }
+        }
+    }
+
+    /**
+     * Merge and write all entries.  The caller must hold the lock on the
+     * sidecar lock file.
+     */
+    private void writeLocked()
+    {
+        HashMap<String, E> merged = readFile();
+        if (merged == null) {
+            merged = new HashMap<String, E>();
+        }
+        merged.putAll(entries);
+
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(cacheFile.getName() + ".", ".tmp",
+                                          cacheFile.getParentFile());
+
+            FileOutputStream fout = new FileOutputStream(tmpFile);
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(fout));
+            try {
+                out.writeInt(version);
+                out.writeInt(merged.size());
+                for (Map.Entry<String, E> entry : merged.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    writeEntry(out, entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(cacheFile)) {
+                LOG.warn("Cannot rename " + tmpFile + " to " + cacheFile);
+                tmpFile.delete();
+                return;
+            }
+        } catch (IOException ioe) {
+            LOG.warn("Cannot write " + description + " " + cacheFile, ioe);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            return;
+        }
+
+        entries = merged;
+        dirty = false;
+    }
+
+    /**
+     * Write a single entry.
+     *
+     * @param out output stream
+     * @param entry entry
+     *
+     * @throws IOException if the entry cannot be written
+     */
+    abstract void writeEntry(DataOutputStream out, E entry)
+        throws IOException;
+}
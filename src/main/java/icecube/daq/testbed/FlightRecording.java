@@ -0,0 +1,222 @@
+package icecube.daq.testbed;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Java Flight Recorder support.  The nested classes are the custom events
+ * emitted by the testbed; <tt>start()</tt> begins a recording which
+ * includes them along with the JDK's standard "profile" events (GC,
+ * locks, I/O) and <tt>stop()</tt> writes it to a file which can be
+ * opened in Java Mission Control.
+ *
+ * Events which aren't being recorded cost almost nothing, so the hooks
+ * are always in place.
+ */
+public abstract class FlightRecording
+{
+    private static final Logger LOG = Logger.getLogger(FlightRecording.class);
+
+    private static final String CATEGORY = "IceCube Trigger Testbed";
+
+    private static Recording recording;
+
+    /** An input bridge opened a data file */
+    @Name("icecube.testbed.BridgeOpen")
+    @Label("Bridge File Open")
+    @Category({ CATEGORY, "Bridge" })
+    @StackTrace(false)
+    static class BridgeOpen
+        extends Event
+    {
+        @Label("Bridge")
+        String bridge;
+        @Label("File")
+        String file;
+        @Label("Compressed")
+        boolean compressed;
+    }
+
+    /** An input bridge wrote a batch of payloads */
+    @Name("icecube.testbed.BridgeBatch")
+    @Label("Bridge Batch Write")
+    @Category({ CATEGORY, "Bridge" })
+    @StackTrace(false)
+    static class BridgeBatch
+        extends Event
+    {
+        @Label("Bridge")
+        String bridge;
+        @Label("Payloads")
+        int payloads;
+        @Label("Bytes")
+        long bytes;
+        @Label("Last Payload Time")
+        long lastTime;
+    }
+
+    /** The activity monitor paused or resumed an input bridge */
+    @Name("icecube.testbed.BridgeThrottle")
+    @Label("Bridge Pause/Resume")
+    @Category({ CATEGORY, "Bridge" })
+    @Description("Input bridge paused or resumed because it got too far" +
+                 " ahead of (or caught up with) the other bridges")
+    @StackTrace(false)
+    static class BridgeThrottle
+        extends Event
+    {
+        @Label("Bridge")
+        String bridge;
+        @Label("Paused")
+        boolean paused;
+        @Label("Payload Time")
+        long payloadTime;
+        @Label("Skew")
+        @Description("Payload time minus the earliest (when pausing) or" +
+                     " latest (when resuming) bridge time, in DAQ ticks")
+        long skew;
+    }
+
+    /** A payload was pushed into a splicer strand */
+    @Name("icecube.testbed.SplicerPush")
+    @Label("Splicer Push")
+    @Category({ CATEGORY, "Splicer" })
+    @StackTrace(false)
+    static class SplicerPush
+        extends Event
+    {
+        @Label("Bridge")
+        String bridge;
+        @Label("Payload Type")
+        int payloadType;
+        @Label("Payload Time")
+        long utcTime;
+    }
+
+    /** The trigger consumer released requests from an algorithm */
+    @Name("icecube.testbed.TriggerRelease")
+    @Label("Trigger Release")
+    @Category({ CATEGORY, "Trigger" })
+    @StackTrace(false)
+    static class TriggerRelease
+        extends Event
+    {
+        @Label("Algorithm")
+        String algorithm;
+        @Label("Cycles")
+        @Description("Number of getInterval()/release() calls")
+        int cycles;
+        @Label("Released")
+        int released;
+    }
+
+    /** An output payload was compared with the expected payload */
+    @Name("icecube.testbed.PayloadCompare")
+    @Label("Payload Comparison")
+    @Category({ CATEGORY, "Output" })
+    @StackTrace(false)
+    static class PayloadCompare
+        extends Event
+    {
+        @Label("Payload Number")
+        int payloadNumber;
+        @Label("Payload Time")
+        long utcTime;
+        @Label("Matched")
+        boolean matched;
+    }
+
+    /** Two algorithm implementations released different requests */
+    @Name("icecube.testbed.AlgorithmMismatch")
+    @Label("Algorithm Mismatch")
+    @Category({ CATEGORY, "Trigger" })
+    @StackTrace(false)
+    static class AlgorithmMismatch
+        extends Event
+    {
+        @Label("Algorithm")
+        String algorithm;
+        @Label("Expected")
+        String expected;
+        @Label("Received")
+        String received;
+    }
+
+    /**
+     * Is a recording in progress?
+     *
+     * @return <tt>true</tt> if events are being recorded
+     */
+    public static synchronized boolean isRecording()
+    {
+        return recording != null;
+    }
+
+    /**
+     * Start recording.
+     *
+     * @param file file which will receive the recording
+     *
+     * @throws IOException if the recording cannot be started
+     */
+    public static synchronized void start(File file)
+        throws IOException
+    {
+        if (recording != null) {
+            throw new Error("Flight recording has already been started");
+        }
+
+        jdk.jfr.Configuration cfg;
+        try {
+            cfg = jdk.jfr.Configuration.getConfiguration("profile");
+        } catch (ParseException pe) {
+            throw new IOException("Cannot load JFR profile settings", pe);
+        }
+
+        Recording rec = new Recording(cfg);
+        rec.setName("testbed");
+        rec.setToDisk(true);
+        rec.setDestination(file.toPath());
+        rec.enable(BridgeOpen.class);
+        rec.enable(BridgeBatch.class);
+        rec.enable(BridgeThrottle.class);
+        rec.enable(SplicerPush.class);
+        rec.enable(TriggerRelease.class);
+        rec.enable(PayloadCompare.class);
+        rec.enable(AlgorithmMismatch.class);
+        rec.start();
+
+        recording = rec;
+    }
+
+    /**
+     * Stop recording and write the results to the file passed to
+     * <tt>start()</tt>.
+     */
+    public static synchronized void stop()
+    {
+        if (recording == null) {
+            return;
+        }
+
+        try {
+            recording.stop();
+        } catch (IllegalStateException ise) {
+            LOG.error("Cannot stop flight recording", ise);
+        } finally {
+            recording.close();
+            recording = null;
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package icecube.daq.testbed;
 
 import icecube.daq.payload.SourceIdRegistry;
+import icecube.daq.trigger.exceptions.ConfigException;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.sql.SQLException;
+import java.util.ArrayList;
 
 /**
  * Build a compact filename representation of the relevant run quantities.
@@ -121,6 +126,27 @@ public abstract class HashedFileName
             }
         }
 
+        return buildName("rc" + cfgHash, srcId, runNumber, trigId, numSrcs,
+                         numToSkip, numToProcess);
+    }
+
+    /**
+     * Build a filename from a configuration key and the run quantities.
+     *
+     * @param prefix configuration key
+     * @param srcId component source ID
+     * @param runNumber run number
+     * @param trigId if greater than 0, ID of single trigger algorithm
+     * @param numSrcs number of sources used in the run
+     * @param numToSkip number of initial payloads skipped in the run
+     * @param numToProcess number of payloads processed in the run
+     *
+     * @return filename
+     */
+    private static String buildName(String prefix, int srcId, int runNumber,
+                                    int trigId, int numSrcs, int numToSkip,
+                                    int numToProcess)
+    {
         String compType = getShortComponent(srcId);
 
         String trigStr;
@@ -137,11 +163,150 @@ public abstract class HashedFileName
             skipStr = "-s" + numToSkip;
         }
 
-        return "rc" + cfgHash + "-" + compType + "-r" + runNumber + trigStr +
+        return prefix + "-" + compType + "-r" + runNumber + trigStr +
             "-h" + numSrcs + skipStr + "-p" + numToProcess +
             ".dat";
     }
 
+    /**
+     * Build a content-addressed filename.  The name is derived from the
+     * parts of the configuration which affect the trigger handler's
+     * output, so every run configuration sharing the same triggers and
+     * hubs maps to the same file.
+     *
+     * @param cfg run configuration
+     * @param srcId component source ID
+     * @param runNumber run number
+     * @param trigId if greater than 0, ID of single trigger algorithm
+     * @param numSrcs number of sources used in the run
+     * @param numToSkip number of initial payloads skipped in the run
+     * @param numToProcess number of payloads processed in the run
+     * @param ignoreDB if <tt>true</tt> do not update the configuration hash DB
+     *
+     * @return content-addressed filename
+     *
+     * @throws ConfigException if the configuration has no key for
+     *                         <tt>srcId</tt>
+     */
+    public static final String getContentName(Configuration cfg, int srcId,
+                                              int runNumber, int trigId,
+                                              int numSrcs, int numToSkip,
+                                              int numToProcess,
+                                              boolean ignoreDB)
+        throws ConfigException
+    {
+        final String key = cfg.getContentKey(srcId);
+
+        if (!ignoreDB) {
+            try {
+                ConfigHashDB.stashContentKey(SimpleHitFilter.DEFAULT_HIT_DIR,
+                                             cfg.getName(), srcId, key);
+            } catch (SQLException sex) {
+                throw new Error("Cannot save content key for \"" +
+                                cfg.getName() + "\" to database", sex);
+            }
+        }
+
+        return buildName("cc" + key, srcId, runNumber, trigId, numSrcs,
+                         numToSkip, numToProcess);
+    }
+
+    /**
+     * Get the content-addressed file for a run.  If that file doesn't
+     * exist yet but an older file named after this run configuration (or
+     * any other run configuration with the same content key) does, the
+     * older file is linked to the content-addressed name so it can be
+     * reused instead of regenerated.
+     *
+     * @param dir data directory
+     * @param cfg run configuration
+     * @param srcId component source ID
+     * @param runNumber run number
+     * @param trigId if greater than 0, ID of single trigger algorithm
+     * @param numSrcs number of sources used in the run
+     * @param numToSkip number of initial payloads skipped in the run
+     * @param numToProcess number of payloads processed in the run
+     * @param ignoreDB if <tt>true</tt> do not use the configuration hash DB
+     *
+     * @return content-addressed file (which may not exist)
+     *
+     * @throws ConfigException if the configuration has no key for
+     *                         <tt>srcId</tt>
+     */
+    public static final File getContentFile(File dir, Configuration cfg,
+                                            int srcId, int runNumber,
+                                            int trigId, int numSrcs,
+                                            int numToSkip, int numToProcess,
+                                            boolean ignoreDB)
+        throws ConfigException
+    {
+        final String name = getContentName(cfg, srcId, runNumber, trigId,
+                                           numSrcs, numToSkip, numToProcess,
+                                           ignoreDB);
+        File file = new File(dir, name);
+        if (file.exists()) {
+            return file;
+        }
+
+        ArrayList<String> names = new ArrayList<String>();
+        names.add(cfg.getName());
+        if (!ignoreDB) {
+            try {
+                for (String other :
+                         ConfigHashDB.findRunConfigs(SimpleHitFilter.
+                                                     DEFAULT_HIT_DIR,
+                                                     cfg.getContentKey(srcId),
+                                                     srcId))
+                {
+                    if (!names.contains(other)) {
+                        names.add(other);
+                    }
+                }
+            } catch (SQLException sex) {
+                // only the current run configuration can be checked
+            }
+        }
+
+        for (String runCfgName : names) {
+            File old = new File(dir, getName(runCfgName, srcId, runNumber,
+                                             trigId, numSrcs, numToSkip,
+                                             numToProcess, true));
+            if (old.exists() && linkOrCopy(old, file)) {
+                System.err.println("*** Reusing " + old + " as " + file);
+                break;
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Hard-link a file to a new name, or copy it if links aren't supported.
+     *
+     * @param src existing file
+     * @param dst new name
+     *
+     * @return <tt>false</tt> if the file could not be linked or copied
+     */
+    private static boolean linkOrCopy(File src, File dst)
+    {
+        try {
+            Files.createLink(dst.toPath(), src.toPath());
+            return true;
+        } catch (IOException ioe) {
+            // fall through to copy
+        } catch (UnsupportedOperationException uoe) {
+            // fall through to copy
+        }
+
+        try {
+            Files.copy(src.toPath(), dst.toPath());
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
     /**
      * Build a less unique hash code from the run configuration file name.
      *
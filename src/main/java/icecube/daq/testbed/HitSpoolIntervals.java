@@ -0,0 +1,334 @@
+package icecube.daq.testbed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Find the first and last hit times in HitSpool files without decoding
+ * every payload.
+ *
+ * <tt>scan()</tt> walks a file's length prefixes, only looking at each
+ * record's header, and gives up (so the caller can fall back to decoding
+ * the file) as soon as it finds anything other than a complete
+ * delta-compressed hit.  Verified results are saved in a summary file in
+ * each HitSpool directory and reused until a file's size or modification
+ * time changes.
+ */
+abstract class HitSpoolIntervals
+{
+    private static final Logger LOG =
+        Logger.getLogger(HitSpoolIntervals.class);
+
+    /** Name of the summary file inside each HitSpool directory */
+    public static final String CACHE_FILE = ".hsintervals.dat";
+
+    /** Summary file format version */
+    private static final int CACHE_VERSION = 1;
+
+    /** Size of the buffer used to walk through a file */
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    /** Length of the record header, through the UTC time */
+    private static final int HEADER_LENGTH = HitTranscoder.REC_UTC_OFFSET + 8;
+
+    /** Cached summaries, keyed by canonical HitSpool directory */
+    private static HashMap<File, DirCache> dirs =
+        new HashMap<File, DirCache>();
+
+    private static int numCached;
+    private static int numScanned;
+
+    /**
+     * First and last times for a single file.
+     */
+    static class Interval
+    {
+        long numRecords;
+        long firstUTC = Long.MIN_VALUE;
+        long lastUTC = Long.MIN_VALUE;
+
+        // file state when it was scanned
+        long length;
+        long modified;
+
+        // record locations, only set by scan()
+        long firstPos = -1L;
+        int firstLen;
+        long lastPos = -1L;
+        int lastLen;
+    }
+
+    /**
+     * Cached summary of a file.
+     */
+    private static class Entry
+    {
+        long length;
+        long modified;
+        Interval interval;
+
+        static Entry read(DataInputStream in)
+            throws IOException
+        {
+            Entry entry = new Entry();
+            entry.length = in.readLong();
+            entry.modified = in.readLong();
+            entry.interval = new Interval();
+            entry.interval.length = entry.length;
+            entry.interval.modified = entry.modified;
+            entry.interval.numRecords = in.readLong();
+            entry.interval.firstUTC = in.readLong();
+            entry.interval.lastUTC = in.readLong();
+            return entry;
+        }
+
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeLong(interval.numRecords);
+            out.writeLong(interval.firstUTC);
+            out.writeLong(interval.lastUTC);
+        }
+    }
+
+    /**
+     * Look up the saved summary for a file.
+     *
+     * @param file HitSpool file
+     *
+     * @return <tt>null</tt> if there is no summary or the file has changed
+     */
+    static synchronized Interval find(File file)
+    {
+        DirCache dc = getDirCache(file.getParentFile());
+
+        Entry entry = dc.get(file.getName());
+        if (entry == null || entry.length != file.length() ||
+            entry.modified != file.lastModified())
+        {
+            return null;
+        }
+
+        numCached++;
+        return entry.interval;
+    }
+
+    /**
+     * Write all modified summaries to disk.
+     */
+    static synchronized void flush()
+    {
+        for (DirCache dc : dirs.values()) {
+            if (dc.isDirty()) {
+                dc.write();
+            }
+        }
+    }
+
+    /**
+     * Get the summaries for a directory, loading them if necessary.
+     *
+     * @param dir HitSpool directory
+     *
+     * @return directory cache
+     */
+    private static DirCache getDirCache(File dir)
+    {
+        final File key = DirectoryCache.getKey(dir);
+
+        DirCache dc = dirs.get(key);
+        if (dc == null) {
+            dc = new DirCache(key);
+            dirs.put(key, dc);
+        }
+
+        return dc;
+    }
+
+    /**
+     * Get a summary of the lookups performed by this process.
+     *
+     * @return summary string
+     */
+    static synchronized String getStatistics()
+    {
+        return String.format("HitSpool intervals: %d cached, %d scanned",
+                             numCached, numScanned);
+    }
+
+    /**
+     * Read a single record.
+     *
+     * @param file HitSpool file
+     * @param pos record offset
+     * @param len record length
+     *
+     * @return record
+     *
+     * @throws IOException if the record cannot be read
+     */
+    static ByteBuffer readRecord(File file, long pos, int len)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            FileChannel chan = fin.getChannel();
+            while (buf.hasRemaining()) {
+                if (chan.read(buf, pos + buf.position()) < 0) {
+                    throw new IOException("Short read for " + len +
+                                          "-byte record at " + pos +
+                                          " in " + file);
+                }
+            }
+        } finally {
+            fin.close();
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Find a file's first and last records by walking its length
+     * prefixes.
+     *
+     * @param file HitSpool file
+     *
+     * @return <tt>null</tt> if the file contains anything other than
+     *         complete delta-compressed hits
+     *
+     * @throws IOException if the file cannot be read
+     */
+    static Interval scan(File file)
+        throws IOException
+    {
+        synchronized (HitSpoolIntervals.class) {
+            numScanned++;
+        }
+
+        Interval iv = new Interval();
+        iv.modified = file.lastModified();
+
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            FileChannel chan = fin.getChannel();
+            final long size = chan.size();
+            iv.length = size;
+
+            ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            buf.flip();
+
+            // file offset of the first byte in 'buf'
+            long bufStart = 0;
+
+            long pos = 0;
+            while (pos < size) {
+                if (size - pos < HEADER_LENGTH) {
+                    // truncated record
+                    return null;
+                }
+
+                // refill the buffer if it doesn't hold this header
+                if (pos < bufStart ||
+                    pos + HEADER_LENGTH > bufStart + buf.limit())
+                {
+                    buf.clear();
+                    bufStart = pos;
+                    while (buf.position() < HEADER_LENGTH) {
+                        if (chan.read(buf, bufStart + buf.position()) < 0) {
+                            return null;
+                        }
+                    }
+                    buf.flip();
+                }
+
+                final int off = (int) (pos - bufStart);
+                final int len = buf.getInt(off);
+                if (len < HitTranscoder.MIN_DELTA_LENGTH ||
+                    pos + len > size ||
+                    buf.getInt(off + HitTranscoder.REC_TYPE_OFFSET) !=
+                    HitTranscoder.DELTA_HIT_TYPE)
+                {
+                    return null;
+                }
+
+                final long utc =
+                    buf.getLong(off + HitTranscoder.REC_UTC_OFFSET);
+                if (iv.numRecords == 0) {
+                    iv.firstUTC = utc;
+                    iv.firstPos = pos;
+                    iv.firstLen = len;
+                }
+                iv.lastUTC = utc;
+                iv.lastPos = pos;
+                iv.lastLen = len;
+                iv.numRecords++;
+
+                pos += len;
+            }
+        } finally {
+            fin.close();
+        }
+
+        return iv;
+    }
+
+    /**
+     * Save a verified summary.  The summary is keyed by the file's size
+     * and modification time when it was scanned, so a file which has
+     * grown since then will be scanned again.
+     *
+     * @param file HitSpool file
+     * @param iv file summary
+     */
+    static synchronized void store(File file, Interval iv)
+    {
+        DirCache dc = getDirCache(file.getParentFile());
+
+        Entry entry = new Entry();
+        entry.length = iv.length;
+        entry.modified = iv.modified;
+        entry.interval = iv;
+
+        dc.put(file.getName(), entry);
+    }
+
+    /**
+     * Summaries for a single directory.
+     */
+    private static class DirCache
+        extends DirectoryCache<Entry>
+    {
+        DirCache(File dir)
+        {
+            super(new File(dir, CACHE_FILE), CACHE_VERSION,
+                  "HitSpool summary");
+        }
+
+        @Override
+        Entry readEntry(DataInputStream in)
+            throws IOException
+        {
+            return Entry.read(in);
+        }
+
+        @Override
+        void writeEntry(DataOutputStream out, Entry entry)
+            throws IOException
+        {
+            entry.write(out);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.PayloadRegistry;
+import icecube.daq.payload.impl.DOMHit;
+
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Build SimpleHit payloads directly from the bytes of delta-compressed
+ * DOM hit records, without creating <tt>DOMHit</tt> objects.
+ *
+ * The output matches <tt>DOMHit.getHitBuffer()</tt>, but since the two
+ * are maintained separately each transcoder compares its first
+ * <tt>CHECK_COUNT</tt> hits against the payload classes.  Callers use
+ * the payload classes until <tt>isVerified()</tt> returns <tt>true</tt>;
+ * after a mismatch the transcoder disables itself and the payload
+ * classes are used for everything.
+ *
+ * A transcoder is not thread-safe; each thread should have its own.
+ */
+class HitTranscoder
+{
+    private static final Logger LOG = Logger.getLogger(HitTranscoder.class);
+
+    /** Length of a SimpleHit payload */
+    static final int SIMPLE_HIT_LENGTH = 38;
+
+    /** <tt>transcode()</tt> result for a record which should be dropped */
+    static final int BEACON = 0;
+    /** <tt>transcode()</tt> result for a record it cannot handle */
+    static final int UNSUPPORTED = -1;
+
+    /** Number of hits checked before the transcoder is trusted */
+    private static final int CHECK_COUNT = 1000;
+
+    /** Record type used for delta-compressed hits */
+    static final int DELTA_HIT_TYPE = 3;
+
+    // offsets of DOM hit record fields
+    static final int REC_TYPE_OFFSET = 4;
+    private static final int REC_DOM_OFFSET = 8;
+    static final int REC_UTC_OFFSET = 24;
+    private static final int REC_WORD0_OFFSET = 46;
+    /** Length of the record header and fixed delta-compressed fields */
+    static final int MIN_DELTA_LENGTH = 54;
+
+    // offsets of SimpleHit fields
+    private static final int HIT_TYPE_OFFSET = 4;
+    private static final int HIT_UTC_OFFSET = 8;
+    private static final int HIT_TRIGTYPE_OFFSET = 16;
+    private static final int HIT_CONFIG_OFFSET = 20;
+    private static final int HIT_SRCID_OFFSET = 24;
+    private static final int HIT_DOM_OFFSET = 28;
+    private static final int HIT_TRIGMODE_OFFSET = 36;
+
+    // trigger flags in the delta-compressed hit's first word
+    private static final int TRIG_FLAG_SHIFT = 18;
+    private static final int TRIG_FLAG_MASK = 0x1fff;
+    private static final int MIN_BIAS_FLAG = 0x1000;
+    private static final int FLASHER_FLAG = 0x0010;
+    private static final int DISCRIMINATOR_FLAGS = 0x0003;
+
+    private static final int LC_SHIFT = 16;
+    private static final int LC_MASK = 0x3;
+
+    /** Trigger mode of minimum-bias hits, which are never beacons */
+    private static final short MIN_BIAS_MODE = 4;
+
+    private DOMChannelTable table;
+    private String label;
+
+    private int numChecked;
+    private boolean disabled;
+
+    private long numTranscoded;
+    private long numBeacons;
+
+    /**
+     * Create a transcoder.
+     *
+     * @param table DOM lookup table
+     * @param label prefix for log messages
+     */
+    HitTranscoder(DOMChannelTable table, String label)
+    {
+        this.table = table;
+        this.label = label;
+    }
+
+    /**
+     * Compare a transcoded hit with the hit built by the payload classes.
+     * If they differ, the transcoder is disabled.
+     *
+     * @param rec DOM hit record
+     * @param hit loaded hit built from <tt>rec</tt>
+     * @param expected SimpleHit built by <tt>hit.getHitBuffer()</tt>
+     *
+     * @return <tt>false</tt> if the transcoder has been disabled
+     */
+    boolean check(ByteBuffer rec, DOMHit hit, ByteBuffer expected)
+    {
+        if (disabled) {
+            return false;
+        } else if (numChecked >= CHECK_COUNT) {
+            return true;
+        }
+
+        String problem = null;
+        if (!isSupported(rec)) {
+            // not something we'd transcode
+            return true;
+        } else if (getUTCTime(rec) != hit.getUTCTime()) {
+            problem = "UTC time " + getUTCTime(rec) + " should be " +
+                hit.getUTCTime();
+        } else if (getLocalCoincidenceMode(rec) !=
+                   hit.getLocalCoincidenceMode())
+        {
+            problem = "LC mode " + getLocalCoincidenceMode(rec) +
+                " should be " + hit.getLocalCoincidenceMode();
+        } else if (getTriggerMode(rec) != hit.getTriggerMode()) {
+            problem = "Trigger mode " + getTriggerMode(rec) +
+                " should be " + hit.getTriggerMode();
+        } else if (expected != null) {
+            ByteBuffer actual = ByteBuffer.allocate(SIMPLE_HIT_LENGTH);
+            if (transcode(rec, actual, 0, false) != SIMPLE_HIT_LENGTH) {
+                problem = "Cannot transcode known hit";
+            } else if (expected.limit() != SIMPLE_HIT_LENGTH) {
+                problem = "Expected " + expected.limit() + "-byte hit";
+            } else {
+                for (int i = 0; i < SIMPLE_HIT_LENGTH; i++) {
+                    if (actual.get(i) != expected.get(i)) {
+                        problem = "SimpleHit byte " + i + " is " +
+                            actual.get(i) + ", should be " + expected.get(i);
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (problem != null) {
+            LOG.error(label + "Disabling hit transcoder: " + problem);
+            disabled = true;
+            return false;
+        }
+
+        // only count hits whose bytes were compared
+        if (expected != null) {
+            numChecked++;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of beacon hits dropped by <tt>transcode()</tt>.
+     *
+     * @return number of beacon hits
+     */
+    long getNumberOfBeacons()
+    {
+        return numBeacons;
+    }
+
+    /**
+     * Get the number of hits built by <tt>transcode()</tt>.
+     *
+     * @return number of hits
+     */
+    long getNumberTranscoded()
+    {
+        return numTranscoded;
+    }
+
+    /**
+     * Get the local coincidence mode of a delta-compressed hit record.
+     *
+     * @param rec DOM hit record
+     *
+     * @return LC mode
+     */
+    static short getLocalCoincidenceMode(ByteBuffer rec)
+    {
+        return (short) ((rec.getInt(REC_WORD0_OFFSET) >> LC_SHIFT) &
+                        LC_MASK);
+    }
+
+    /**
+     * Get the trigger mode of a delta-compressed hit record.
+     *
+     * @param rec DOM hit record
+     *
+     * @return trigger mode
+     */
+    static short getTriggerMode(ByteBuffer rec)
+    {
+        final int flags = (rec.getInt(REC_WORD0_OFFSET) >> TRIG_FLAG_SHIFT) &
+            TRIG_FLAG_MASK;
+        if ((flags & MIN_BIAS_FLAG) != 0) {
+            return MIN_BIAS_MODE;
+        } else if ((flags & FLASHER_FLAG) != 0) {
+            return 3;
+        } else if ((flags & DISCRIMINATOR_FLAGS) != 0) {
+            return 2;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Get the UTC time of a DOM hit record.
+     *
+     * @param rec DOM hit record
+     *
+     * @return UTC time
+     */
+    static long getUTCTime(ByteBuffer rec)
+    {
+        return rec.getLong(REC_UTC_OFFSET);
+    }
+
+    /**
+     * Is this a beacon hit (no local coincidence and not minimum bias)?
+     *
+     * @param rec delta-compressed hit record
+     *
+     * @return <tt>true</tt> if this is a beacon hit
+     */
+    static boolean isBeacon(ByteBuffer rec)
+    {
+        return getLocalCoincidenceMode(rec) == 0 &&
+            getTriggerMode(rec) != MIN_BIAS_MODE;
+    }
+
+    /**
+     * Can this record be transcoded?
+     *
+     * @param rec DOM hit record
+     *
+     * @return <tt>true</tt> if this is a complete delta-compressed hit
+     */
+    static boolean isSupported(ByteBuffer rec)
+    {
+        return rec.limit() >= MIN_DELTA_LENGTH &&
+            rec.getInt(0) == rec.limit() &&
+            rec.getInt(REC_TYPE_OFFSET) == DELTA_HIT_TYPE;
+    }
+
+    /**
+     * Has this transcoder matched the payload classes for enough hits to
+     * be used on its own?
+     *
+     * @return <tt>true</tt> if <tt>transcode()</tt> can be trusted
+     */
+    boolean isVerified()
+    {
+        return !disabled && numChecked >= CHECK_COUNT;
+    }
+
+    /**
+     * Write a SimpleHit built from a DOM hit record.
+     *
+     * @param rec DOM hit record starting at position 0
+     * @param out buffer which receives the SimpleHit
+     * @param offset position in <tt>out</tt> where the hit is written
+     * @param dropBeacons if <tt>true</tt>, beacon hits are not written
+     *
+     * @return number of bytes written, <tt>BEACON</tt> if a beacon hit
+     *         was dropped, or <tt>UNSUPPORTED</tt> if the record is not a
+     *         delta-compressed hit or comes from an unknown DOM
+     */
+    int transcode(ByteBuffer rec, ByteBuffer out, int offset,
+                  boolean dropBeacons)
+    {
+        if (!isSupported(rec)) {
+            return UNSUPPORTED;
+        }
+
+        if (dropBeacons && isBeacon(rec)) {
+            numBeacons++;
+            return BEACON;
+        }
+
+        final long mbId = rec.getLong(REC_DOM_OFFSET);
+        final int srcId = table.getSourceId(mbId);
+        if (srcId < 0) {
+            // let the payload classes report unknown DOMs
+            return UNSUPPORTED;
+        }
+
+        final short trigMode = getTriggerMode(rec);
+
+        out.putInt(offset, SIMPLE_HIT_LENGTH);
+        out.putInt(offset + HIT_TYPE_OFFSET,
+                   PayloadRegistry.PAYLOAD_ID_SIMPLE_HIT);
+        out.putLong(offset + HIT_UTC_OFFSET, rec.getLong(REC_UTC_OFFSET));
+        out.putInt(offset + HIT_TRIGTYPE_OFFSET, trigMode);
+        out.putInt(offset + HIT_CONFIG_OFFSET, 0);
+        out.putInt(offset + HIT_SRCID_OFFSET, srcId);
+        out.putLong(offset + HIT_DOM_OFFSET, mbId);
+        out.putShort(offset + HIT_TRIGMODE_OFFSET, trigMode);
+
+        numTranscoded++;
+        return SIMPLE_HIT_LENGTH;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HitTranscoder[" + label + "checked " + numChecked +
+            (disabled ? ",DISABLED" : "") + ",transcoded " + numTranscoded +
+            ",beacons " + numBeacons + "]";
+    }
+}
@@ -0,0 +1,163 @@
+package icecube.daq.testbed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of nanosecond values, in the style of
+ * HdrHistogram.  Each power of two is split into 64 linear buckets, so
+ * every recorded value is accurate to within about 1.6%.  Recording is
+ * lock-free and does not allocate.
+ */
+class LatencyHistogram
+{
+    /** Number of bits of sub-bucket precision */
+    private static final int SUB_BITS = 6;
+    /** Number of linear buckets per power of two */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** Values below this are stored exactly */
+    private static final int LINEAR_MAX = SUB_COUNT * 2;
+    /** Total number of buckets needed for any non-negative long */
+    private static final int NUM_BUCKETS =
+        LINEAR_MAX + (63 - SUB_BITS) * SUB_COUNT;
+
+    private AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private AtomicLong total = new AtomicLong();
+    private AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Get the lowest value stored in a bucket.
+     *
+     * @param idx bucket index
+     *
+     * @return lowest value
+     */
+    private static long bucketValue(int idx)
+    {
+        if (idx < LINEAR_MAX) {
+            return idx;
+        }
+
+        final int shift = (idx - LINEAR_MAX) / SUB_COUNT + 1;
+        final long sub = (idx - LINEAR_MAX) % SUB_COUNT + SUB_COUNT;
+        return sub << shift;
+    }
+
+    /**
+     * Get the bucket index for a value.
+     *
+     * @param value non-negative value
+     *
+     * @return bucket index
+     */
+    private static int bucketIndex(long value)
+    {
+        if (value < LINEAR_MAX) {
+            return (int) value;
+        }
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = magnitude - SUB_BITS;
+        final int sub = (int) (value >>> shift) - SUB_COUNT;
+        return LINEAR_MAX + (shift - 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return number of values
+     */
+    long getCount()
+    {
+        return total.get();
+    }
+
+    /**
+     * Get the largest recorded value.
+     *
+     * @return maximum value
+     */
+    long getMax()
+    {
+        return maxValue.get();
+    }
+
+    /**
+     * Get the value below which the given percentage of values fall.
+     *
+     * @param percentile percentile (0.0 - 100.0)
+     *
+     * @return value (or 0 if nothing has been recorded)
+     */
+    long getValueAtPercentile(double percentile)
+    {
+        final long count = total.get();
+        if (count == 0) {
+            return 0L;
+        }
+
+        long target = (long) Math.ceil((percentile / 100.0) * count);
+        if (target < 1) {
+            target = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketValue(i), maxValue.get());
+            }
+        }
+
+        return maxValue.get();
+    }
+
+    /**
+     * Record a value.  Negative values are recorded as zero.
+     *
+     * @param value value in nanoseconds
+     */
+    void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(bucketIndex(value));
+        total.incrementAndGet();
+
+        long prev = maxValue.get();
+        while (value > prev && !maxValue.compareAndSet(prev, value)) {
+            prev = maxValue.get();
+        }
+    }
+
+    /**
+     * Discard all recorded values.
+     */
+    void reset()
+    {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        total.set(0L);
+        maxValue.set(0L);
+    }
+
+    /**
+     * Summarize the distribution.
+     *
+     * @return count plus p50/p90/p99/p99.9/max in milliseconds
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("n=%d p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f" +
+                             " max=%.3f ms", getCount(),
+                             getValueAtPercentile(50.0) / 1000000.0,
+                             getValueAtPercentile(90.0) / 1000000.0,
+                             getValueAtPercentile(99.0) / 1000000.0,
+                             getValueAtPercentile(99.9) / 1000000.0,
+                             getMax() / 1000000.0);
+    }
+}
@@ -0,0 +1,285 @@
+package icecube.daq.testbed;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * Record per-stage latency histograms for payloads moving through the
+ * trigger pipeline.
+ *
+ * Payloads can't carry extra fields, so ingest times are tracked by UTC
+ * instead.  The input bridges periodically publish the smallest payload
+ * time which every bridge has read (the "watermark") along with the wall
+ * clock time it was reached.  A later stage's latency for a payload is
+ * the time since the watermark first passed that payload's UTC time,
+ * i.e. since all the input needed to produce it had been read.
+ *
+ * Tracking is disabled by default and is turned on by the <tt>-L</tt>
+ * option of <tt>TestBed</tt> and <tt>TestAlgorithm</tt>.
+ */
+public abstract class LatencyTracker
+{
+    /** Time spent reading a payload and handing it to the pipeline */
+    public static final int READER = 0;
+    /** Time until a payload leaves the splicer */
+    public static final int SPLICER = 1;
+    /** Time until a payload is passed to the algorithm's runTrigger() */
+    public static final int RUN_TRIGGER = 2;
+    /** Time until a trigger request is released */
+    public static final int RELEASE = 3;
+    /** Time until an output payload reaches the consumer's handler */
+    public static final int CONSUMER = 4;
+
+    private static final String[] STAGE_NAMES = {
+        "reader", "splicer", "runTrigger", "release", "consumer",
+    };
+
+    /** Number of bridge payloads between watermark updates */
+    static final int INGEST_INTERVAL = 64;
+
+    /** Number of watermark entries to keep (must be a power of two) */
+    private static final int WATERMARK_SIZE = 65536;
+    private static final int WATERMARK_MASK = WATERMARK_SIZE - 1;
+
+    private static LatencyHistogram[] histograms;
+    static {
+        histograms = new LatencyHistogram[STAGE_NAMES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private static ArrayList<AbstractPayloadFileListBridge> bridges =
+        new ArrayList<AbstractPayloadFileListBridge>();
+
+    private static long[] markTimes = new long[WATERMARK_SIZE];
+    private static long[] markNanos = new long[WATERMARK_SIZE];
+    private static volatile long numMarks;
+
+    /** Latency tracking is off unless a tool's command line enables it */
+    private static volatile boolean enabled;
+
+    /**
+     * Add an input bridge to the watermark calculation.
+     *
+     * @param bridge input bridge
+     */
+    static void addBridge(AbstractPayloadFileListBridge bridge)
+    {
+        synchronized (bridges) {
+            bridges.add(bridge);
+        }
+    }
+
+    /**
+     * Write a snapshot of all histograms to the monitoring output.  This
+     * does nothing if latency tracking is disabled.
+     *
+     * @param out monitoring output
+     * @param dateStr monitoring timestamp
+     */
+    static void dumpSnapshot(PrintStream out, String dateStr)
+    {
+        if (!enabled) {
+            return;
+        }
+
+        out.println("latency: " + dateStr + ":");
+        for (int i = 0; i < histograms.length; i++) {
+            out.println("    " + STAGE_NAMES[i] + ": " + histograms[i]);
+        }
+        out.println();
+    }
+
+    /**
+     * Find the wall clock time at which the watermark passed a UTC time.
+     *
+     * @param utc payload time
+     *
+     * @return <tt>System.nanoTime()</tt> value, or <tt>Long.MIN_VALUE</tt>
+     *         if the watermark has not yet reached <tt>utc</tt>
+     */
+    private static long findIngestNanos(long utc)
+    {
+        final long end = numMarks;
+        long lo = Math.max(0L, end - WATERMARK_SIZE);
+        long hi = end;
+
+        if (lo >= hi || markTimes[(int) ((hi - 1) & WATERMARK_MASK)] < utc) {
+            return Long.MIN_VALUE;
+        }
+
+        while (lo < hi) {
+            final long mid = (lo + hi) >>> 1;
+            if (markTimes[(int) (mid & WATERMARK_MASK)] < utc) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return markNanos[(int) (lo & WATERMARK_MASK)];
+    }
+
+    /**
+     * Get the histogram for a stage.
+     *
+     * @param stage stage index
+     *
+     * @return latency histogram
+     */
+    static LatencyHistogram getHistogram(int stage)
+    {
+        return histograms[stage];
+    }
+
+    /**
+     * Get the number of pipeline stages.
+     *
+     * @return number of stages
+     */
+    static int getNumberOfStages()
+    {
+        return STAGE_NAMES.length;
+    }
+
+    /**
+     * Get the name of a pipeline stage.
+     *
+     * @param stage stage index
+     *
+     * @return stage name
+     */
+    static String getStageName(int stage)
+    {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Get a summary of all stages.
+     *
+     * @return multi-line summary
+     */
+    public static String getSummary()
+    {
+        StringBuilder buf = new StringBuilder("Latency:");
+        for (int i = 0; i < histograms.length; i++) {
+            buf.append(String.format("\n    %-10s %s", STAGE_NAMES[i],
+                                     histograms[i]));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Update the watermark after a bridge has read more payloads.
+     */
+    static void ingest()
+    {
+        if (!enabled) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+
+        synchronized (bridges) {
+            long minTime = Long.MAX_VALUE;
+            boolean active = false;
+            for (AbstractPayloadFileListBridge bridge : bridges) {
+                final long lastTime = bridge.getLastTime();
+                if (lastTime == Long.MAX_VALUE) {
+                    // this bridge has finished
+                    continue;
+                }
+
+                active = true;
+                if (lastTime < minTime) {
+                    minTime = lastTime;
+                }
+            }
+
+            if (!active || minTime <= 0) {
+                return;
+            }
+
+            final long prev;
+            if (numMarks == 0) {
+                prev = Long.MIN_VALUE;
+            } else {
+                prev = markTimes[(int) ((numMarks - 1) & WATERMARK_MASK)];
+            }
+
+            if (minTime > prev) {
+                final int idx = (int) (numMarks & WATERMARK_MASK);
+                markTimes[idx] = minTime;
+                markNanos[idx] = now;
+                numMarks++;
+            }
+        }
+    }
+
+    /**
+     * Is latency tracking enabled?
+     *
+     * @return <tt>true</tt> if latencies are being recorded
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Record the latency for a payload which has reached a stage.
+     *
+     * @param stage stage index
+     * @param utc payload time
+     */
+    static void record(int stage, long utc)
+    {
+        if (!enabled) {
+            return;
+        }
+
+        final long ingested = findIngestNanos(utc);
+        if (ingested != Long.MIN_VALUE) {
+            histograms[stage].record(System.nanoTime() - ingested);
+        }
+    }
+
+    /**
+     * Record a directly measured latency.
+     *
+     * @param stage stage index
+     * @param nanos latency in nanoseconds
+     */
+    static void recordNanos(int stage, long nanos)
+    {
+        if (enabled) {
+            histograms[stage].record(nanos);
+        }
+    }
+
+    /**
+     * Forget all bridges, watermarks and recorded values.
+     */
+    public static void reset()
+    {
+        synchronized (bridges) {
+            bridges.clear();
+            numMarks = 0;
+        }
+
+        for (LatencyHistogram hist : histograms) {
+            hist.reset();
+        }
+    }
+
+    /**
+     * Enable or disable latency tracking.
+     *
+     * @param val <tt>false</tt> to turn off all recording
+     */
+    public static void setEnabled(boolean val)
+    {
+        enabled = val;
+    }
+}
@@ -0,0 +1,63 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.PayloadRegistry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Check that the payload length is sane.
+ */
+class LengthValidator
+    implements PayloadValidator
+{
+    /** Smallest payload with a type and UTC time */
+    private static final int MIN_LENGTH = 16;
+    /** Anything larger than this is almost certainly corrupted */
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    /** Length of a SimpleHit payload */
+    private static final int SIMPLE_HIT_LENGTH = 38;
+    /** Length of a SimplerHit payload */
+    private static final int SIMPLER_HIT_LENGTH = 20;
+
+    @Override
+    public String getName()
+    {
+        return "length";
+    }
+
+    @Override
+    public String validate(String source, ByteBuffer buf)
+    {
+        final int len = buf.getInt(0);
+        if (len != buf.limit()) {
+            return "Length " + len + " does not match buffer size " +
+                buf.limit();
+        }
+
+        if (len < MIN_LENGTH) {
+            return "Length " + len + " is shorter than " + MIN_LENGTH;
+        }
+
+        if (len > MAX_LENGTH) {
+            return "Length " + len + " is longer than " + MAX_LENGTH;
+        }
+
+        final int type = buf.getInt(4);
+        if (type == PayloadRegistry.PAYLOAD_ID_SIMPLE_HIT &&
+            len != SIMPLE_HIT_LENGTH)
+        {
+            return "SimpleHit length " + len + " should be " +
+                SIMPLE_HIT_LENGTH;
+        }
+
+        if (type == PayloadRegistry.PAYLOAD_ID_SIMPLER_HIT &&
+            len != SIMPLER_HIT_LENGTH)
+        {
+            return "SimplerHit length " + len + " should be " +
+                SIMPLER_HIT_LENGTH;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,306 @@
+package icecube.daq.testbed;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Precompiled sampling plan for a single MBean.  The MBean's attributes
+ * are discovered once and each getter is bound to a <tt>MethodHandle</tt>
+ * returning its primitive type, so a sample is written without a
+ * reflective walk or boxing primitive values.
+ */
+class MBeanSampler
+{
+    private static final Logger LOG = Logger.getLogger(MBeanSampler.class);
+
+    /** Integral value, fetched as a long */
+    private static final int KIND_LONG = 0;
+    /** Float value */
+    private static final int KIND_FLOAT = 1;
+    /** Double value */
+    private static final int KIND_DOUBLE = 2;
+    /** Boolean value */
+    private static final int KIND_BOOLEAN = 3;
+    /** Any other value */
+    private static final int KIND_OBJECT = 4;
+
+    private static final String INDENT = "    ";
+
+    private String name;
+    private Object mbean;
+
+    private String[] attrNames;
+    private int[] kinds;
+    private MethodHandle[] handles;
+    private DynamicMBean dynamic;
+
+    private StringBuilder buf = new StringBuilder();
+
+    /**
+     * Build a sampling plan for an MBean.
+     *
+     * @param name MBean name
+     * @param mbean MBean object
+     */
+    MBeanSampler(String name, Object mbean)
+    {
+        this.name = name;
+        this.mbean = mbean;
+
+        ArrayList<String> nameList = new ArrayList<String>();
+        ArrayList<Integer> kindList = new ArrayList<Integer>();
+        ArrayList<MethodHandle> handleList = new ArrayList<MethodHandle>();
+
+        buildPlan(mbean.getClass(), nameList, kindList, handleList);
+
+        attrNames = nameList.toArray(new String[nameList.size()]);
+        handles = handleList.toArray(new MethodHandle[handleList.size()]);
+        kinds = new int[kindList.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = kindList.get(i);
+        }
+    }
+
+    /**
+     * Walk the class hierarchy in the same order as the old reflective
+     * dump, recording each readable attribute.
+     */
+    private void buildPlan(Class cls, ArrayList<String> nameList,
+                           ArrayList<Integer> kindList,
+                           ArrayList<MethodHandle> handleList)
+    {
+        Class[] ifaces = cls.getInterfaces();
+        for (int i = 0; i < ifaces.length; i++) {
+            if (ifaces[i].getName().endsWith("MBean")) {
+                if (ifaces[i].getName().endsWith("DynamicMBean")) {
+                    planDynamic((DynamicMBean) mbean, nameList, kindList,
+                                handleList);
+                } else {
+                    planInterface(ifaces[i], nameList, kindList, handleList);
+                }
+                break;
+            }
+        }
+
+        Class clsSuper = cls.getSuperclass();
+        if (clsSuper != null) {
+            buildPlan(clsSuper, nameList, kindList, handleList);
+        }
+    }
+
+    /**
+     * Format an MBean value.
+     *
+     * @param obj value
+     *
+     * @return formatted string
+     */
+    static String formatMBeanValue(Object obj)
+    {
+        if (obj == null) {
+            return "null";
+        } else if (obj.getClass().isArray()) {
+            StringBuilder strBuf = new StringBuilder("[");
+            final int len = Array.getLength(obj);
+            for (int i = 0; i < len; i++) {
+                if (strBuf.length() > 1) {
+                    strBuf.append(", ");
+                }
+                strBuf.append(formatMBeanValue(Array.get(obj, i)));
+            }
+            strBuf.append("]");
+            return strBuf.toString();
+        } else if (obj.getClass().equals(HashMap.class)) {
+            StringBuilder strBuf = new StringBuilder("{");
+            HashMap map = (HashMap) obj;
+            for (Object key : map.keySet()) {
+                if (strBuf.length() > 1) {
+                    strBuf.append(", ");
+                }
+                final Object value = map.get(key);
+                strBuf.append('\'').append(formatMBeanValue(key));
+                strBuf.append("': ").append(formatMBeanValue(value));
+            }
+            strBuf.append("}");
+            return strBuf.toString();
+        } else {
+            return obj.toString();
+        }
+    }
+
+    /**
+     * Get the MBean object this plan was built for.
+     *
+     * @return MBean object
+     */
+    Object getMBean()
+    {
+        return mbean;
+    }
+
+    private void planDynamic(DynamicMBean dmb, ArrayList<String> nameList,
+                             ArrayList<Integer> kindList,
+                             ArrayList<MethodHandle> handleList)
+    {
+        dynamic = dmb;
+
+        MBeanAttributeInfo[] attrs = dmb.getMBeanInfo().getAttributes();
+        for (int i = 0; i < attrs.length; i++) {
+            if (!attrs[i].isReadable()) {
+                final String beanName = dmb.getMBeanInfo().getClassName();
+                System.err.println("ERROR: Unreadable " + beanName + " attr#" +
+                                   i + ": " + attrs[i].getName());
+                continue;
+            }
+
+            nameList.add(attrs[i].getName());
+            kindList.add(KIND_OBJECT);
+            handleList.add(null);
+        }
+    }
+
+    private void planInterface(Class iface, ArrayList<String> nameList,
+                               ArrayList<Integer> kindList,
+                               ArrayList<MethodHandle> handleList)
+    {
+        final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+        Method[] methods = iface.getMethods();
+        for (int i = 0; i < methods.length; i++) {
+            Class[] params = methods[i].getParameterTypes();
+            if (params != null && params.length > 0) {
+                System.err.println("ERROR: " + mbean.getClass().getName() +
+                                   " MBean method " + iface.getName() +
+                                   " should not have any parameters");
+                continue;
+            }
+
+            String mthdName = methods[i].getName();
+            if (mthdName.startsWith("get")) {
+                mthdName = mthdName.substring(3);
+            } else if (mthdName.startsWith("is")) {
+                mthdName = mthdName.substring(2);
+            } else {
+                System.err.println("ERROR: " + mbean.getClass().getName() +
+                                   " MBean method " + iface.getName() +
+                                   " does not start with \"get\" or \"is\"");
+                continue;
+            }
+
+            final Class rtnType = methods[i].getReturnType();
+
+            int kind;
+            Class handleType;
+            if (rtnType == Long.TYPE || rtnType == Integer.TYPE ||
+                rtnType == Short.TYPE || rtnType == Byte.TYPE)
+            {
+                kind = KIND_LONG;
+                handleType = Long.TYPE;
+            } else if (rtnType == Float.TYPE) {
+                kind = KIND_FLOAT;
+                handleType = Float.TYPE;
+            } else if (rtnType == Double.TYPE) {
+                kind = KIND_DOUBLE;
+                handleType = Double.TYPE;
+            } else if (rtnType == Boolean.TYPE) {
+                kind = KIND_BOOLEAN;
+                handleType = Boolean.TYPE;
+            } else {
+                kind = KIND_OBJECT;
+                handleType = Object.class;
+            }
+
+            MethodHandle handle;
+            try {
+                handle = lookup.unreflect(methods[i]).bindTo(mbean).
+                    asType(MethodType.methodType(handleType));
+            } catch (IllegalAccessException iae) {
+                LOG.error("Cannot access " + iface.getName() + "." +
+                          methods[i].getName(), iae);
+                continue;
+            }
+
+            nameList.add(mthdName);
+            kindList.add(kind);
+            handleList.add(handle);
+        }
+    }
+
+    /**
+     * Write the current value of every attribute, in the same format as
+     * the old reflective dump.  Attributes which cannot be read are
+     * skipped.
+     *
+     * @param out output stream
+     * @param dateStr monitoring timestamp
+     */
+    void write(PrintStream out, String dateStr)
+    {
+        buf.setLength(0);
+
+        boolean printed = false;
+        for (int a = 0; a < attrNames.length; a++) {
+            final int len = buf.length();
+            if (!printed) {
+                buf.append(name).append(": ").append(dateStr).append(":\n");
+            }
+            buf.append(INDENT).append(attrNames[a]).append(": ");
+
+            try {
+                final MethodHandle mh = handles[a];
+                switch (kinds[a]) {
+                case KIND_LONG:
+                    buf.append((long) mh.invokeExact());
+                    break;
+                case KIND_FLOAT:
+                    buf.append((float) mh.invokeExact());
+                    break;
+                case KIND_DOUBLE:
+                    buf.append((double) mh.invokeExact());
+                    break;
+                case KIND_BOOLEAN:
+                    buf.append((boolean) mh.invokeExact());
+                    break;
+                default:
+                    Object val;
+                    if (mh == null) {
+                        val = dynamic.getAttribute(attrNames[a]);
+                    } else {
+                        val = (Object) mh.invokeExact();
+                    }
+                    buf.append(formatMBeanValue(val));
+                    break;
+                }
+            } catch (Throwable thr) {
+                LOG.error("Cannot sample " + name + " " + attrNames[a], thr);
+                buf.setLength(len);
+                continue;
+            }
+
+            buf.append('\n');
+            printed = true;
+        }
+
+        if (printed) {
+            out.println(buf.toString());
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MBeanSampler[" + name + ": " + attrNames.length +
+            " attrs]";
+    }
+}
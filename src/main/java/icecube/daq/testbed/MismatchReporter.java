@@ -0,0 +1,357 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.ITriggerRequestPayload;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write trigger request mismatches as JSON lines.  Mismatches are queued
+ * by the consumer thread and formatted on a separate writer thread, so
+ * a large merged request doesn't stall the comparison.
+ */
+public class MismatchReporter
+    implements Runnable
+{
+    /** Log object for this class */
+    private static final Logger LOG = Logger.getLogger(MismatchReporter.class);
+
+    /** Default maximum number of characters in each request dump */
+    public static final int DEFAULT_MAX_DUMP_CHARS = 16384;
+
+    /** Maximum number of mismatches waiting to be written */
+    private static final int MAX_QUEUED = 1000;
+
+    private PrintStream out;
+    private boolean closeOut;
+    private String outName;
+    private int maxDumpChars;
+
+    private ArrayList<Entry> queue = new ArrayList<Entry>();
+    private Thread thread;
+    private boolean writing;
+    private boolean stopping;
+
+    private int numReported;
+    private int numWritten;
+
+    /**
+     * Create a reporter which writes to System.out.
+     *
+     * @param maxDumpChars maximum number of characters in each request dump
+     *                     (0 for no dumps, negative for unlimited dumps)
+     */
+    public MismatchReporter(int maxDumpChars)
+    {
+        this(System.out, "stdout", false, maxDumpChars);
+    }
+
+    /**
+     * Create a reporter which writes to a file.
+     *
+     * @param file JSON lines output file
+     * @param maxDumpChars maximum number of characters in each request dump
+     *                     (0 for no dumps, negative for unlimited dumps)
+     *
+     * @throws FileNotFoundException if the file cannot be created
+     */
+    public MismatchReporter(File file, int maxDumpChars)
+        throws FileNotFoundException
+    {
+        this(new PrintStream(new FileOutputStream(file)), file.getPath(),
+             true, maxDumpChars);
+    }
+
+    private MismatchReporter(PrintStream out, String outName,
+                             boolean closeOut, int maxDumpChars)
+    {
+        this.out = out;
+        this.outName = outName;
+        this.closeOut = closeOut;
+
+        if (maxDumpChars < 0) {
+            this.maxDumpChars = Integer.MAX_VALUE;
+        } else {
+            this.maxDumpChars = maxDumpChars;
+        }
+    }
+
+    /**
+     * Write all queued mismatches, stop the writer thread and close the
+     * output file.
+     */
+    public void close()
+    {
+        flush();
+
+        synchronized (queue) {
+            stopping = true;
+            queue.notifyAll();
+        }
+
+        if (closeOut) {
+            out.close();
+        } else {
+            out.flush();
+        }
+    }
+
+    /**
+     * Wait until all queued mismatches have been written.
+     */
+    public void flush()
+    {
+        synchronized (queue) {
+            while (thread != null && (writing || queue.size() > 0)) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+
+        out.flush();
+    }
+
+    private void format(StringBuilder buf, Entry entry)
+    {
+        final Mismatch mismatch = entry.mismatch;
+
+        long utc;
+        if (entry.exp != null) {
+            utc = entry.exp.getUTCTime();
+        } else if (entry.got != null) {
+            utc = entry.got.getUTCTime();
+        } else {
+            utc = Long.MIN_VALUE;
+        }
+
+        buf.append("{\"index\":").append(entry.index);
+        buf.append(",\"utc\":").append(utc);
+        buf.append(",\"field\":");
+        appendString(buf, mismatch.isSet() ? mismatch.getPath() : null);
+        buf.append(",\"expected\":");
+        appendValue(buf, mismatch.getExpected());
+        buf.append(",\"received\":");
+        appendValue(buf, mismatch.getReceived());
+
+        if (maxDumpChars > 0) {
+            buf.append(",\"expDump\":");
+            appendString(buf,
+                         PayloadComparison.getTrigReqString(entry.exp,
+                                                            maxDumpChars));
+            buf.append(",\"gotDump\":");
+            appendString(buf,
+                         PayloadComparison.getTrigReqString(entry.got,
+                                                            maxDumpChars));
+        }
+
+        buf.append('}');
+    }
+
+    private static void appendString(StringBuilder buf, String str)
+    {
+        if (str == null) {
+            buf.append("null");
+            return;
+        }
+
+        buf.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            final char ch = str.charAt(i);
+            switch (ch) {
+            case '"':
+                buf.append("\\\"");
+                break;
+            case '\\':
+                buf.append("\\\\");
+                break;
+            case '\n':
+                buf.append("\\n");
+                break;
+            case '\r':
+                buf.append("\\r");
+                break;
+            case '\t':
+                buf.append("\\t");
+                break;
+            default:
+                if (ch < 0x20) {
+                    buf.append(String.format("\\u%04x", (int) ch));
+                } else {
+                    buf.append(ch);
+                }
+                break;
+            }
+        }
+        buf.append('"');
+    }
+
+    private static void appendValue(StringBuilder buf, Object value)
+    {
+        if (value == null) {
+            buf.append("null");
+        } else if (value instanceof Number) {
+            buf.append(value);
+        } else {
+            appendString(buf, value.toString());
+        }
+    }
+
+    /**
+     * Get the number of mismatches reported.
+     *
+     * @return number of mismatches
+     */
+    public int getNumberReported()
+    {
+        return numReported;
+    }
+
+    /**
+     * Get the output name.
+     *
+     * @return output file path or "stdout"
+     */
+    public String getOutputName()
+    {
+        return outName;
+    }
+
+    /**
+     * Queue a mismatch.  The reporter takes ownership of both payloads and
+     * recycles them once the mismatch has been written.
+     *
+     * @param index index of the request in the output stream
+     * @param exp expected request
+     * @param got received request
+     * @param mismatch mismatch details
+     */
+    void report(int index, ITriggerRequestPayload exp,
+                ITriggerRequestPayload got, Mismatch mismatch)
+    {
+        synchronized (queue) {
+            if (stopping) {
+                LOG.error("Dropping mismatch #" + index + " from closed " +
+                          outName + " reporter");
+                recycle(exp, got);
+                return;
+            }
+
+            if (thread == null) {
+                thread = new Thread(this);
+                thread.setName("MismatchReporter");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            while (queue.size() >= MAX_QUEUED) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+
+            queue.add(new Entry(index, exp, got, mismatch));
+            numReported++;
+            queue.notifyAll();
+        }
+    }
+
+    private static void recycle(ITriggerRequestPayload exp,
+                                ITriggerRequestPayload got)
+    {
+        if (got != null) {
+            got.recycle();
+        }
+        if (exp != null) {
+            exp.recycle();
+        }
+    }
+
+    /**
+     * Write queued mismatches.
+     */
+    @Override
+    public void run()
+    {
+        StringBuilder buf = new StringBuilder();
+
+        while (true) {
+            Entry entry;
+            synchronized (queue) {
+                while (!stopping && queue.size() == 0) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore interrupts
+                    }
+                }
+
+                if (queue.size() == 0) {
+                    break;
+                }
+
+                entry = queue.remove(0);
+                writing = true;
+                queue.notifyAll();
+            }
+
+            buf.setLength(0);
+            try {
+                format(buf, entry);
+                out.println(buf.toString());
+                numWritten++;
+            } catch (Throwable thr) {
+                LOG.error("Cannot write mismatch #" + entry.index, thr);
+            } finally {
+                recycle(entry.exp, entry.got);
+            }
+
+            synchronized (queue) {
+                writing = false;
+                queue.notifyAll();
+            }
+        }
+
+        synchronized (queue) {
+            thread = null;
+            queue.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MismatchReporter[" + outName + ": " + numWritten + "/" +
+            numReported + " written" +
+            (maxDumpChars == 0 ? "" : ", dumps<=" + maxDumpChars) + "]";
+    }
+
+    /**
+     * A queued mismatch.
+     */
+    private static class Entry
+    {
+        private int index;
+        private ITriggerRequestPayload exp;
+        private ITriggerRequestPayload got;
+        private Mismatch mismatch;
+
+        Entry(int index, ITriggerRequestPayload exp,
+              ITriggerRequestPayload got, Mismatch mismatch)
+        {
+            this.index = index;
+            this.exp = exp;
+            this.got = got;
+            this.mismatch = mismatch;
+        }
+    }
+}
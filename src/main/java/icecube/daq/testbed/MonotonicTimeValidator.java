@@ -0,0 +1,33 @@
+package icecube.daq.testbed;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Check that payload times from each source never go backward.
+ */
+class MonotonicTimeValidator
+    implements PayloadValidator
+{
+    private HashMap<String, Long> lastTimes = new HashMap<String, Long>();
+
+    @Override
+    public String getName()
+    {
+        return "utcOrder";
+    }
+
+    @Override
+    public String validate(String source, ByteBuffer buf)
+    {
+        final long utc = buf.getLong(8);
+
+        Long prev = lastTimes.put(source, utc);
+        if (prev != null && utc < prev) {
+            return "Time " + utc + " precedes previous time " + prev +
+                " by " + (prev - utc);
+        }
+
+        return null;
+    }
+}
@@ -85,6 +85,7 @@ public class OutputHandler
     {
         if (Util.isStopMessage(buf)) {
             sawStop = true;
+            ActivitySignal.signal();
         }
 
         if (buf.limit() >= 16) {
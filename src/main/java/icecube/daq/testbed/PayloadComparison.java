@@ -8,13 +8,93 @@ import icecube.daq.payload.ITriggerRequestPayload;
 import icecube.daq.payload.SourceIdRegistry;
 import icecube.daq.payload.impl.ReadoutRequestElement;
 
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Description of the first field which differed between two payloads.
+ */
+class Mismatch
+{
+    private String path;
+    private Object expected;
+    private Object received;
+
+    /**
+     * Get the path to the mismatched field.
+     *
+     * @return field path (e.g. "payloads[2].readoutRequest.RReqSrcId")
+     */
+    String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Get the expected value.
+     *
+     * @return expected value
+     */
+    Object getExpected()
+    {
+        return expected;
+    }
+
+    /**
+     * Get the received value.
+     *
+     * @return received value
+     */
+    Object getReceived()
+    {
+        return received;
+    }
+
+    /**
+     * Has a mismatch been recorded?
+     *
+     * @return <tt>true</tt> if a mismatch has been recorded
+     */
+    boolean isSet()
+    {
+        return path != null;
+    }
+
+    /**
+     * Record a mismatch.  Only the first (innermost) mismatch is kept.
+     *
+     * @param prefix path to the object containing the field
+     * @param fldName field name
+     * @param exp expected value
+     * @param got received value
+     */
+    void record(String prefix, String fldName, Object exp, Object got)
+    {
+        if (path == null) {
+            path = prefix + fldName;
+            expected = exp;
+            received = got;
+        }
+    }
+
+    /**
+     * Copy a mismatch found while comparing a subpayload.
+     *
+     * @param sub subpayload mismatch
+     */
+    void record(Mismatch sub)
+    {
+        if (path == null) {
+            path = sub.path;
+            expected = sub.expected;
+            received = sub.received;
+        }
+    }
+}
+
 public class PayloadComparison
 {
     private static final Logger LOG =
@@ -53,6 +133,13 @@ public class PayloadComparison
 
     private static boolean compareInt(String fldName, int exp, int got,
                                       boolean reportError)
+    {
+        return compareInt(null, null, fldName, exp, got, reportError);
+    }
+
+    private static boolean compareInt(Mismatch mismatch, String prefix,
+                                      String fldName, int exp, int got,
+                                      boolean reportError)
     {
         if (exp != got) {
             if (reportError) {
@@ -60,6 +147,10 @@ public class PayloadComparison
                           " got " + got);
             }
 
+            if (mismatch != null) {
+                mismatch.record(prefix, fldName, exp, got);
+            }
+
             return false;
         }
 
@@ -67,7 +158,14 @@ public class PayloadComparison
     }
 
     private static boolean compareLong(String fldName, long exp, long got,
-                                boolean reportError)
+                                       boolean reportError)
+    {
+        return compareLong(null, null, fldName, exp, got, reportError);
+    }
+
+    private static boolean compareLong(Mismatch mismatch, String prefix,
+                                       String fldName, long exp, long got,
+                                       boolean reportError)
     {
         if (exp != got) {
             if (reportError) {
@@ -75,59 +173,81 @@ public class PayloadComparison
                           " got " + got);
             }
 
+            if (mismatch != null) {
+                mismatch.record(prefix, fldName, exp, got);
+            }
+
             return false;
         }
 
         return true;
     }
 
-    public static boolean comparePayloads(PrintStream out,
+    /**
+     * Compare two trigger requests, handing any mismatch to
+     * <tt>reporter</tt>.  Matching payloads are recycled immediately;
+     * mismatched payloads are recycled by the reporter after they've been
+     * formatted.
+     *
+     * @param reporter mismatch reporter
+     * @param index index of this request in the output stream
+     * @param exp expected request
+     * @param got received request
+     *
+     * @return <tt>true</tt> if the requests match
+     */
+    public static boolean comparePayloads(MismatchReporter reporter,
+                                          int index,
                                           ITriggerRequestPayload exp,
                                           ITriggerRequestPayload got)
     {
         final boolean reportError = true;
         final boolean reportLooseMatch = false;
 
-        try {
-            try {
-                if (!compareTriggerRequest(exp, got, reportError,
-                                           reportLooseMatch))
-                {
-                    out.println("EXP ----\n" + getTrigReqString(exp));
-                    out.println("GOT ----\n" + getTrigReqString(got));
+        Mismatch mismatch = new Mismatch();
 
-                    return false;
-                }
-            } finally {
+        boolean matched = false;
+        boolean reported = false;
+        try {
+            matched = compareTriggerRequest(exp, got, reportError,
+                                            reportLooseMatch, mismatch, "");
+            if (!matched) {
+                reporter.report(index, exp, got, mismatch);
+                reported = true;
+            }
+        } finally {
+            // the reporter owns reported payloads
+            if (!reported) {
                 if (got != null) {
                     got.recycle();
                 }
-            }
-        } finally {
-            if (exp != null) {
-                exp.recycle();
+                if (exp != null) {
+                    exp.recycle();
+                }
             }
         }
 
-        return true;
+        return matched;
     }
 
-
     private static boolean compareReadoutRequest(IReadoutRequest exp,
                                                  IReadoutRequest got,
                                                  boolean checkUID,
                                                  boolean ignoreLastTimeErrors,
-                                                 boolean reportError)
+                                                 boolean reportError,
+                                                 Mismatch mismatch,
+                                                 String prefix)
     {
         final boolean mergeHack = false;
 
-        if (checkUID && !compareInt("RReqUID", exp.getUID(), got.getUID(),
-                                    reportError))
+        if (checkUID && !compareInt(mismatch, prefix, "RReqUID", exp.getUID(),
+                                    got.getUID(), reportError))
         {
             return false;
         }
 
-        if (!compareInt("RReqSrcId", exp.getSourceID().getSourceID(),
+        if (!compareInt(mismatch, prefix, "RReqSrcId",
+                        exp.getSourceID().getSourceID(),
                         got.getSourceID().getSourceID(), reportError))
         {
             return false;
@@ -142,6 +262,10 @@ public class PayloadComparison
                               " got " + gotList);
                 }
 
+                if (mismatch != null) {
+                    mismatch.record(prefix, "elements", expList, gotList);
+                }
+
                 return false;
             }
         } else {
@@ -158,6 +282,11 @@ public class PayloadComparison
                               " got " + gotList.size());
                 }
 
+                if (mismatch != null) {
+                    mismatch.record(prefix, "elements.length", merged.size(),
+                                    gotList.size());
+                }
+
                 return false;
             } else {
                 ArrayList gotCopy = new ArrayList(gotList);
@@ -186,6 +315,11 @@ public class PayloadComparison
                                       expElem + " in " + got);
                         }
 
+                        if (mismatch != null) {
+                            mismatch.record(prefix, "elements[" + i + "]",
+                                            expElem, null);
+                        }
+
                         return false;
                     }
                 }
@@ -240,20 +374,44 @@ public class PayloadComparison
                                                 boolean reportError,
                                                 boolean reportLooseMatch)
     {
-        if (!compareLong("UTCTime", exp.getUTCTime(), got.getUTCTime(),
-                         reportError))
+        return compareTriggerRequest(exp, got, reportError, reportLooseMatch,
+                                     null, "");
+    }
+
+    private static boolean compareTriggerRequest(ITriggerRequestPayload exp,
+                                                 ITriggerRequestPayload got,
+                                                 boolean reportError,
+                                                 boolean reportLooseMatch,
+                                                 Mismatch mismatch,
+                                                 String prefix)
+    {
+        if (exp == null || got == null) {
+            if (exp == got) {
+                return true;
+            }
+
+            if (mismatch != null) {
+                mismatch.record(prefix, "request", exp, got);
+            }
+
+            return false;
+        }
+
+        if (!compareLong(mismatch, prefix, "UTCTime", exp.getUTCTime(),
+                         got.getUTCTime(), reportError))
         {
             return false;
         }
 
-        if (!compareInt("TrigType", exp.getTriggerType(),
-                         got.getTriggerType(), reportError))
+        if (!compareInt(mismatch, prefix, "TrigType", exp.getTriggerType(),
+                        got.getTriggerType(), reportError))
         {
             return false;
         }
 
-        if (!compareInt("ConfigId", exp.getTriggerConfigID(),
-                         got.getTriggerConfigID(), reportError))
+        if (!compareInt(mismatch, prefix, "ConfigId",
+                        exp.getTriggerConfigID(), got.getTriggerConfigID(),
+                        reportError))
         {
             return false;
         }
@@ -269,37 +427,43 @@ public class PayloadComparison
 
             if (exp.getTriggerType() == -1 &&
                 exp.getSourceID().getSourceID() == GLOBAL_TRIGGER &&
-                !compareInt("UID", exp.getUID(), got.getUID(),
-                            reportError))
+                !compareInt(mismatch, prefix, "UID", exp.getUID(),
+                            got.getUID(), reportError))
             {
                 return false;
             } else if (exp.getTriggerType() == throughputType &&
                        got.getUID() < 0)
             {
                 // throughput trigger UIDs may not match but should be positive
+                if (mismatch != null) {
+                    mismatch.record(prefix, "UID", exp.getUID(), got.getUID());
+                }
                 return false;
             }
 
             checkUID = false;
-        } else if (!compareInt("UID", exp.getUID(), got.getUID(),
-                               reportError))
+        } else if (!compareInt(mismatch, prefix, "UID", exp.getUID(),
+                               got.getUID(), reportError))
         {
             return false;
         }
 
-        if (!compareInt("SourceId", exp.getSourceID().getSourceID(),
+        if (!compareInt(mismatch, prefix, "SourceId",
+                        exp.getSourceID().getSourceID(),
                         got.getSourceID().getSourceID(), reportError))
         {
             return false;
         }
 
-        if (!compareLong("FirstTime", exp.getFirstTimeUTC().longValue(),
+        if (!compareLong(mismatch, prefix, "FirstTime",
+                         exp.getFirstTimeUTC().longValue(),
                          got.getFirstTimeUTC().longValue(), reportError))
         {
             return false;
         }
 
-        if (!compareLong("LastTime", exp.getLastTimeUTC().longValue(),
+        if (!compareLong(mismatch, prefix, "LastTime",
+                         exp.getLastTimeUTC().longValue(),
                          got.getLastTimeUTC().longValue(), reportError))
         {
             return false;
@@ -309,7 +473,8 @@ public class PayloadComparison
         if (!compareReadoutRequest(exp.getReadoutRequest(),
                                    got.getReadoutRequest(),
                                    checkUID, ignoreLastTimeErrors,
-                                   reportError))
+                                   reportError, mismatch,
+                                   prefix + "readoutRequest."))
         {
             return false;
         }
@@ -321,6 +486,9 @@ public class PayloadComparison
             gotList = got.getPayloads();
         } catch (Exception ex) {
             LOG.error("Cannot get payloads", ex);
+            if (mismatch != null) {
+                mismatch.record(prefix, "payloads", ex, null);
+            }
             return false;
         }
 
@@ -331,6 +499,10 @@ public class PayloadComparison
                               " got " + gotList);
                 }
 
+                if (mismatch != null) {
+                    mismatch.record(prefix, "payloads", expList, gotList);
+                }
+
                 return false;
             }
         } else if (expList.size() != gotList.size()) {
@@ -339,6 +511,11 @@ public class PayloadComparison
                           " got " + gotList.size());
             }
 
+            if (mismatch != null) {
+                mismatch.record(prefix, "payloads.length", expList.size(),
+                                gotList.size());
+            }
+
             return false;
         } else {
             // report errors for immediate subpayloads of merged or
@@ -349,9 +526,12 @@ public class PayloadComparison
                    exp.getTriggerType() == throughputType));
 
             ArrayList<IPayload> gotCopy = new ArrayList<IPayload>(gotList);
+            int expIndex = -1;
             for (IPayload expPay : expList) {
+                expIndex++;
 
                 boolean found = false;
+                Mismatch similar = null;
                 if (expPay instanceof ITriggerRequestPayload) {
                     ITriggerRequestPayload expReq =
                         (ITriggerRequestPayload) expPay;
@@ -362,15 +542,30 @@ public class PayloadComparison
                             ITriggerRequestPayload gotReq =
                                 (ITriggerRequestPayload) gotPay;
 
-                            if (lookSimilar(expReq, gotReq) &&
-                                compareTriggerRequest(expReq, gotReq,
+                            if (!lookSimilar(expReq, gotReq)) {
+                                continue;
+                            }
+
+                            // remember why the first similar request failed
+                            Mismatch trial;
+                            if (mismatch == null || similar != null) {
+                                trial = null;
+                            } else {
+                                trial = new Mismatch();
+                            }
+
+                            if (compareTriggerRequest(expReq, gotReq,
                                                       reportTrigError,
-                                                      reportLooseMatch))
+                                                      reportLooseMatch, trial,
+                                                      prefix + "payloads[" +
+                                                      expIndex + "]."))
                             {
                                 gotCopy.remove(j);
                                 found = true;
                                 break;
                             }
+
+                            similar = trial;
                         }
                     }
                 } else if (expPay instanceof IHitPayload) {
@@ -412,6 +607,11 @@ public class PayloadComparison
                                   expPay);
                     }
 
+                    if (mismatch != null) {
+                        mismatch.record(prefix, "payloads[" + expIndex + "]",
+                                        expPay, null);
+                    }
+
                     return false;
                 }
 
@@ -421,6 +621,16 @@ public class PayloadComparison
                                   expPay);
                     }
 
+                    if (mismatch != null) {
+                        if (similar != null && similar.isSet()) {
+                            mismatch.record(similar);
+                        } else {
+                            mismatch.record(prefix,
+                                            "payloads[" + expIndex + "]",
+                                            expPay, null);
+                        }
+                    }
+
                     return false;
                 }
             }
@@ -429,10 +639,9 @@ public class PayloadComparison
         return true;
     }
 
-    private static String getRdoutReqString(IReadoutRequest rr, String indent)
+    private static void appendRdoutReq(StringBuilder buf, IReadoutRequest rr,
+                                       String indent, int maxLen)
     {
-        StringBuilder buf = new StringBuilder();
-
         if (rr == null) {
             buf.append('\n').append(indent).
                 append("!!! NULL ReadoutRequest !!!");
@@ -448,30 +657,29 @@ public class PayloadComparison
 
             if (list != null) {
                 for (Object obj : list) {
+                    if (buf.length() >= maxLen) {
+                        return;
+                    }
+
                     buf.append('\n').append(indent).append(INDENT_STEP).
                         append(obj);
                 }
             }
         }
-
-        return buf.toString();
     }
 
-    private static String getTrigReqString(ITriggerRequestPayload tr)
-    {
-        return getTrigReqString(tr, INDENT_STEP);
-    }
-
-    private static String getTrigReqString(ITriggerRequestPayload tr,
-                                           String indent)
+    private static void appendTrigReq(StringBuilder buf,
+                                      ITriggerRequestPayload tr,
+                                      String indent, int maxLen)
     {
         if (tr == null) {
-            return indent + "!!! NULL TriggerRequest !!!";
+            buf.append(indent).append("!!! NULL TriggerRequest !!!");
+            return;
         }
 
-        StringBuilder buf = new StringBuilder(indent);
+        buf.append(indent);
         buf.append(tr.toString());
-        buf.append(getRdoutReqString(tr.getReadoutRequest(), indent));
+        appendRdoutReq(buf, tr.getReadoutRequest(), indent, maxLen);
 
         Collection<IPayload> list;
         try {
@@ -484,16 +692,45 @@ public class PayloadComparison
 
         if (list != null) {
             for (IPayload pay : list) {
+                if (buf.length() >= maxLen) {
+                    return;
+                }
+
                 if (pay instanceof ITriggerRequestPayload) {
                     ITriggerRequestPayload kid = (ITriggerRequestPayload) pay;
-                    buf.append('\n').append(INDENT_STEP).
-                        append(getTrigReqString(kid, indent + INDENT_STEP));
+                    buf.append('\n').append(INDENT_STEP);
+                    appendTrigReq(buf, kid, indent + INDENT_STEP, maxLen);
                 } else {
                     buf.append("\n").append(INDENT_STEP).append(INDENT_STEP).
                         append(indent).append(pay);
                 }
             }
         }
+    }
+
+    private static String getTrigReqString(ITriggerRequestPayload tr)
+    {
+        return getTrigReqString(tr, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Build a multi-line description of a trigger request and all its
+     * subpayloads, giving up once the description reaches <tt>maxLen</tt>
+     * characters.
+     *
+     * @param tr trigger request
+     * @param maxLen maximum description length (approximate, since the
+     *               current line is always finished)
+     *
+     * @return trigger request description
+     */
+    static String getTrigReqString(ITriggerRequestPayload tr, int maxLen)
+    {
+        StringBuilder buf = new StringBuilder();
+        appendTrigReq(buf, tr, INDENT_STEP, maxLen);
+        if (buf.length() >= maxLen) {
+            buf.append("\n...TRUNCATED...");
+        }
 
         return buf.toString();
     }
@@ -0,0 +1,38 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.PayloadRegistry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Check that the payload type is one the trigger handles.
+ */
+class PayloadTypeValidator
+    implements PayloadValidator
+{
+    private static final int[] KNOWN_TYPES = {
+        PayloadRegistry.PAYLOAD_ID_SIMPLE_HIT,
+        PayloadRegistry.PAYLOAD_ID_SIMPLER_HIT,
+        PayloadRegistry.PAYLOAD_ID_DELTA_HIT,
+        PayloadRegistry.PAYLOAD_ID_TRIGGER_REQUEST,
+    };
+
+    @Override
+    public String getName()
+    {
+        return "type";
+    }
+
+    @Override
+    public String validate(String source, ByteBuffer buf)
+    {
+        final int type = buf.getInt(4);
+        for (int i = 0; i < KNOWN_TYPES.length; i++) {
+            if (type == KNOWN_TYPES[i]) {
+                return null;
+            }
+        }
+
+        return "Unknown payload type " + type;
+    }
+}
@@ -0,0 +1,262 @@
+package icecube.daq.testbed;
+
+import icecube.daq.util.IDOMRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Optional pipeline stage which runs <tt>PayloadValidator</tt>s over the
+ * payloads written by the input bridges and read by the output consumers.
+ *
+ * Callers only hand the buffer to a bounded queue; the validators run on
+ * a separate thread and only use absolute reads, so they never disturb
+ * the caller's position.  When the queue is full the payload is dropped
+ * and counted rather than stalling the pipeline, and when validation
+ * hasn't been started, <tt>submit()</tt> returns immediately.
+ */
+public abstract class PayloadValidation
+{
+    private static final Logger LOG =
+        Logger.getLogger(PayloadValidation.class);
+
+    /** Maximum number of payloads waiting to be validated */
+    private static final int QUEUE_SIZE = 16384;
+    /** Maximum number of violations to log */
+    private static final int MAX_LOGGED = 20;
+
+    /** A queued payload */
+    private static class Item
+    {
+        String source;
+        long ordinal;
+        ByteBuffer buf;
+
+        Item(String source, long ordinal, ByteBuffer buf)
+        {
+            this.source = source;
+            this.ordinal = ordinal;
+            this.buf = buf;
+        }
+    }
+
+    /** Marks the end of the queue */
+    private static final Item STOP = new Item(null, 0, null);
+
+    private static volatile ArrayBlockingQueue<Item> queue;
+    private static Thread thread;
+
+    private static PayloadValidator[] validators;
+    private static long[] numViolations;
+    private static long numChecked;
+    /** Payloads which were not validated because the queue was full */
+    private static AtomicLong numDropped = new AtomicLong();
+
+    /**
+     * Get a summary of the validation results.
+     *
+     * @return summary string
+     */
+    public static synchronized String getSummary()
+    {
+        if (validators == null) {
+            return "Validation: disabled";
+        }
+
+        StringBuilder buf = new StringBuilder("Validation: ");
+        buf.append(numChecked).append(" payloads checked, ").
+            append(getNumberOfViolations()).append(" violations");
+        if (numDropped.get() > 0) {
+            buf.append(", ").append(numDropped.get()).append(" dropped");
+        }
+
+        String front = " (";
+        for (int i = 0; i < validators.length; i++) {
+            if (numViolations[i] > 0) {
+                buf.append(front).append(validators[i].getName()).
+                    append(' ').append(numViolations[i]);
+                front = ", ";
+            }
+        }
+        if (!front.equals(" (")) {
+            buf.append(')');
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Get the total number of violations.
+     *
+     * @return number of violations
+     */
+    public static synchronized long getNumberOfViolations()
+    {
+        long total = 0;
+        if (numViolations != null) {
+            for (int i = 0; i < numViolations.length; i++) {
+                total += numViolations[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Is validation running?
+     *
+     * @return <tt>true</tt> if payloads are being validated
+     */
+    public static boolean isEnabled()
+    {
+        return queue != null;
+    }
+
+    /**
+     * Validate queued payloads until the queue is stopped.
+     */
+    private static void runValidators()
+    {
+        final ArrayBlockingQueue<Item> q = queue;
+
+        while (true) {
+            Item item;
+            try {
+                item = q.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+
+            if (item == STOP) {
+                break;
+            }
+
+            synchronized (PayloadValidation.class) {
+                numChecked++;
+                for (int i = 0; i < validators.length; i++) {
+                    final String msg =
+                        validators[i].validate(item.source, item.buf);
+                    if (msg != null) {
+                        if (getNumberOfViolations() < MAX_LOGGED) {
+                            LOG.error(item.source + " payload #" +
+                                      item.ordinal + " failed " +
+                                      validators[i].getName() +
+                                      " check: " + msg);
+                        }
+                        numViolations[i]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the validation thread with the standard validators.
+     *
+     * @param registry DOM registry (if <tt>null</tt>, DOM IDs are not
+     *                 checked)
+     */
+    public static void start(IDOMRegistry registry)
+    {
+        ArrayList<PayloadValidator> list = new ArrayList<PayloadValidator>();
+        list.add(new LengthValidator());
+        list.add(new PayloadTypeValidator());
+        list.add(new MonotonicTimeValidator());
+        if (registry != null) {
+            list.add(new DOMRegistryValidator(registry));
+        }
+
+        start(list.toArray(new PayloadValidator[list.size()]));
+    }
+
+    /**
+     * Start the validation thread.
+     *
+     * @param vals validators to run on every payload
+     */
+    public static synchronized void start(PayloadValidator[] vals)
+    {
+        if (queue != null) {
+            throw new Error("Validation has already been started");
+        }
+
+        validators = vals;
+        numViolations = new long[vals.length];
+        numChecked = 0;
+        numDropped.set(0);
+
+        queue = new ArrayBlockingQueue<Item>(QUEUE_SIZE);
+
+        thread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    runValidators();
+                }
+            });
+        thread.setName("PayloadValidation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Finish validating all queued payloads and stop the validation
+     * thread.
+     */
+    public static void stop()
+    {
+        ArrayBlockingQueue<Item> q;
+        Thread oldThread;
+        synchronized (PayloadValidation.class) {
+            q = queue;
+            if (q == null) {
+                return;
+            }
+
+            queue = null;
+            oldThread = thread;
+            thread = null;
+        }
+
+        // don't hold the lock here, the validation thread needs it
+        while (true) {
+            try {
+                q.put(STOP);
+                break;
+            } catch (InterruptedException ie) {
+                // try again
+            }
+        }
+
+        try {
+            oldThread.join();
+        } catch (InterruptedException ie) {
+            LOG.error("Interrupted while waiting for validation", ie);
+        }
+    }
+
+    /**
+     * Queue a payload for validation.  Stop messages and splicer flush
+     * payloads are ignored, and payloads which arrive while the queue is
+     * full are dropped.  The caller must not reuse or modify the buffer
+     * contents after submitting it.
+     *
+     * @param source name of the hub or stream which produced the payload
+     * @param ordinal payload number within that stream
+     * @param buf payload bytes
+     */
+    static void submit(String source, long ordinal, ByteBuffer buf)
+    {
+        final ArrayBlockingQueue<Item> q = queue;
+        if (q == null || buf.limit() <= 4 || Util.isStopMessage(buf)) {
+            return;
+        }
+
+        if (!q.offer(new Item(source, ordinal, buf))) {
+            numDropped.incrementAndGet();
+        }
+    }
+}
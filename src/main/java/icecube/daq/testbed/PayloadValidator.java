@@ -7,10 +7,21 @@ import java.nio.ByteBuffer;
  */
 public interface PayloadValidator
 {
+    /**
+     * Get a short name for this validator.
+     *
+     * @return validator name
+     */
+    String getName();
+
     /**
      * Validate a payload byte buffer.
      *
+     * @param source name of the hub or stream which produced the payload
      * @param buf payload bytes
+     *
+     * @return <tt>null</tt> if the payload is valid, otherwise a
+     *         description of the problem
      */
-    void validate(ByteBuffer buf);
+    String validate(String source, ByteBuffer buf);
 }
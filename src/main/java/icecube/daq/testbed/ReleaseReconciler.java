@@ -0,0 +1,269 @@
+package icecube.daq.testbed;
+
+import icecube.daq.payload.ITriggerRequestPayload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compare the requests released by several independently running
+ * algorithms.  Each side's requests are queued as they are released and
+ * compared on a separate thread against the reference side (side 0)
+ * whenever every side has a request available.  When the reconciler is
+ * closed, any difference between a side's unmatched requests and the
+ * reference's is counted against that side.
+ */
+class ReleaseReconciler
+    implements Runnable
+{
+    private static final Logger LOG =
+        Logger.getLogger(ReleaseReconciler.class);
+
+    /** Maximum number of mismatches to log */
+    private static final int MAX_LOGGED = 10;
+
+    private String[] names;
+    private ArrayList<ArrayList<ITriggerRequestPayload>> queues;
+
+    private Thread thread;
+    private boolean comparing;
+    private boolean stopping;
+    private boolean closed;
+
+    private int numCompared;
+    private int[] numFailed;
+    private int numLogged;
+
+    /**
+     * Create a reconciler.
+     *
+     * @param names name of each side (the first is the reference)
+     */
+    ReleaseReconciler(String[] names)
+    {
+        if (names.length < 2) {
+            throw new Error("Need at least two sides to reconcile");
+        }
+
+        this.names = names;
+
+        queues = new ArrayList<ArrayList<ITriggerRequestPayload>>();
+        for (int i = 0; i < names.length; i++) {
+            queues.add(new ArrayList<ITriggerRequestPayload>());
+        }
+
+        numFailed = new int[names.length];
+    }
+
+    /**
+     * Queue newly released requests.
+     *
+     * @param side index of the algorithm which released the requests
+     * @param released released requests
+     */
+    void add(int side, List<ITriggerRequestPayload> released)
+    {
+        synchronized (queues) {
+            if (thread == null && !stopping) {
+                thread = new Thread(this);
+                thread.setName("ReleaseReconciler");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            queues.get(side).addAll(released);
+            queues.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the comparison thread after all matched requests have been
+     * compared, then count each side's unmatched requests as failures.
+     * A side which released fewer (or more) requests than the reference
+     * fails once for each missing (or extra) request.
+     */
+    void close()
+    {
+        synchronized (queues) {
+            stopping = true;
+            queues.notifyAll();
+
+            while (thread != null) {
+                try {
+                    queues.wait();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            final int refQueued = queues.get(0).size();
+            for (int i = 1; i < queues.size(); i++) {
+                final int diff = Math.abs(queues.get(i).size() - refQueued);
+                if (diff > 0) {
+                    numFailed[i] += diff;
+                    LOG.error(names[i] + " released " + queues.get(i).size() +
+                              " unmatched requests, " + names[0] +
+                              " released " + refQueued);
+                }
+            }
+        }
+    }
+
+    private boolean canCompare()
+    {
+        for (ArrayList<ITriggerRequestPayload> q : queues) {
+            if (q.size() == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the number of requests compared against every other side.
+     *
+     * @return number of compared requests
+     */
+    int getNumberCompared()
+    {
+        return numCompared;
+    }
+
+    /**
+     * Get the total number of mismatched requests (including unmatched
+     * requests once the reconciler has been closed).
+     *
+     * @return number of mismatches
+     */
+    int getNumberFailed()
+    {
+        int total = 0;
+        for (int i = 0; i < numFailed.length; i++) {
+            total += numFailed[i];
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of mismatched requests for one side.
+     *
+     * @param side side index
+     *
+     * @return number of mismatches
+     */
+    int getNumberFailed(int side)
+    {
+        return numFailed[side];
+    }
+
+    /**
+     * Get the number of requests which have not yet been compared.
+     *
+     * @return number of queued requests
+     */
+    int getNumberQueued()
+    {
+        synchronized (queues) {
+            int total = (comparing ? 1 : 0);
+            for (ArrayList<ITriggerRequestPayload> q : queues) {
+                total += q.size();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Compare queued requests.
+     */
+    @Override
+    public void run()
+    {
+        ITriggerRequestPayload[] reqs =
+            new ITriggerRequestPayload[queues.size()];
+
+        while (true) {
+            synchronized (queues) {
+                while (!stopping && !canCompare()) {
+                    try {
+                        queues.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore interrupts
+                    }
+                }
+
+                if (!canCompare()) {
+                    break;
+                }
+
+                for (int i = 0; i < reqs.length; i++) {
+                    reqs[i] = queues.get(i).remove(0);
+                }
+                comparing = true;
+            }
+
+            for (int i = 1; i < reqs.length; i++) {
+                if (!PayloadComparison.compareTriggerRequest(reqs[0],
+                                                             reqs[i], true,
+                                                             false))
+                {
+                    numFailed[i]++;
+
+                    FlightRecording.AlgorithmMismatch evt =
+                        new FlightRecording.AlgorithmMismatch();
+                    if (evt.shouldCommit()) {
+                        evt.algorithm = names[i];
+                        evt.expected = reqs[0].toString();
+                        evt.received = reqs[i].toString();
+                        evt.commit();
+                    }
+
+                    if (numLogged++ < MAX_LOGGED) {
+                        LOG.error(names[i] + " mismatch: expected " +
+                                  reqs[0] + ", got " + reqs[i]);
+                    }
+                }
+            }
+
+            synchronized (queues) {
+                numCompared++;
+                comparing = false;
+                queues.notifyAll();
+            }
+        }
+
+        synchronized (queues) {
+            thread = null;
+            queues.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder("ReleaseReconciler[");
+        buf.append(numCompared).append(" compared");
+
+        synchronized (queues) {
+            for (int i = 0; i < names.length; i++) {
+                final int queued = queues.get(i).size();
+                if (queued > 0 || numFailed[i] > 0) {
+                    buf.append(", ").append(names[i]).append(' ');
+                    buf.append(numFailed[i]).append(" failed");
+                    if (queued > 0) {
+                        buf.append('/').append(queued).append(" unmatched");
+                    }
+                }
+            }
+        }
+
+        return buf.append(']').toString();
+    }
+}
@@ -42,6 +42,11 @@ public class SimpleHitFilter
      */
     public boolean accept(File dir, String name)
     {
+        // ignore hidden files such as "done" markers
+        if (name.startsWith(".")) {
+            return false;
+        }
+
         // we've got a hitspool directory
         if (name.startsWith("HitSpool-")) {
             return true;
@@ -201,6 +206,20 @@ public class SimpleHitFilter
         return null;
     }
 
+    /**
+     * Get the marker file which is created once a hit file which was
+     * being written incrementally is complete.
+     *
+     * @param hitFile simple hit file
+     *
+     * @return marker file (which is ignored by this filter)
+     */
+    public static File getDoneMarker(File hitFile)
+    {
+        return new File(hitFile.getParentFile(),
+                        "." + hitFile.getName() + ".done");
+    }
+
     public String getHubName()
     {
         return hubName;
@@ -5,6 +5,7 @@ import icecube.daq.splicer.SplicedAnalysis;
 import icecube.daq.splicer.SplicerChangedEvent;
 import icecube.daq.splicer.SplicerListener;
 import icecube.daq.trigger.control.PayloadSubscriber;
+import icecube.daq.trigger.control.TriggerManager;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -22,6 +23,11 @@ class SplicerSubscriber
     private ArrayList<IPayload> list = new ArrayList<IPayload>();
     private boolean stopping;
     private boolean stopped;
+    private volatile long numReceived;
+
+    /** Most recent threads seen in analyze() and pop() */
+    private Thread splicerThread;
+    private Thread triggerThread;
 
     SplicerSubscriber(String name)
     {
@@ -31,8 +37,23 @@ class SplicerSubscriber
     @Override
     public void analyze(List<IPayload> splicedObjects)
     {
+        if (Thread.currentThread() != splicerThread) {
+            splicerThread = Thread.currentThread();
+            ThreadAccounting.register(ThreadAccounting.SPLICER);
+        }
+
+        if (LatencyTracker.isEnabled()) {
+            for (IPayload pay : splicedObjects) {
+                if (pay != TriggerManager.FLUSH_PAYLOAD) {
+                    LatencyTracker.record(LatencyTracker.SPLICER,
+                                          pay.getUTCTime());
+                }
+            }
+        }
+
         synchronized (list) {
             list.addAll(splicedObjects);
+            numReceived += splicedObjects.size();
             list.notify();
         }
     }
@@ -60,6 +81,16 @@ class SplicerSubscriber
         return name;
     }
 
+    /**
+     * Get the total number of payloads received from the splicer.
+     *
+     * @return number of payloads received
+     */
+    long getNumberReceived()
+    {
+        return numReceived;
+    }
+
     /**
      * Is there data available?
      *
@@ -91,6 +122,12 @@ class SplicerSubscriber
     @Override
     public IPayload pop()
     {
+        if (Thread.currentThread() != triggerThread) {
+            triggerThread = Thread.currentThread();
+            ThreadAccounting.register(ThreadAccounting.TRIGGER);
+        }
+
+        IPayload pay;
         synchronized (list) {
             while (!stopping && list.size() == 0) {
                 try {
@@ -102,11 +139,23 @@ class SplicerSubscriber
 
             if (stopping && list.size() == 0) {
                 stopped = true;
+                ActivitySignal.signal();
                 return null;
             }
 
-            return list.remove(0);
+            pay = list.remove(0);
+            if (list.size() == 0) {
+                // let the monitor know the queue has drained
+                ActivitySignal.signal();
+            }
+        }
+
+        if (pay != TriggerManager.FLUSH_PAYLOAD) {
+            LatencyTracker.record(LatencyTracker.RUN_TRIGGER,
+                                  pay.getUTCTime());
         }
+
+        return pay;
     }
 
     /**
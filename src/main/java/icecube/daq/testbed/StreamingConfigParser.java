@@ -0,0 +1,362 @@
+package icecube.daq.testbed;
+
+import icecube.daq.trigger.exceptions.ConfigException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass StAX parser for run and trigger configuration files.
+ *
+ * This only extracts the raw strings which the DOM/XPath parser in
+ * <tt>Configuration</tt> would find; all validation is left to
+ * <tt>Configuration</tt> so both parsers report identical errors.
+ * As with the XPath expressions, only the first occurrence of a field
+ * inside its parent is used, and a field's value is the concatenation
+ * of all text inside it.
+ */
+class StreamingConfigParser
+{
+    private static final XMLInputFactory FACTORY =
+        XMLInputFactory.newInstance();
+
+    private static final String[] PARAMETER_FIELDS = {
+        "parameterName", "parameterValue",
+    };
+
+    private static final String[] READOUT_FIELDS = {
+        "readoutType", "timeOffset", "timeMinus", "timePlus",
+    };
+
+    /**
+     * Data extracted from a run configuration file.
+     */
+    static class RunConfigData
+    {
+        /** Contents of the first &lt;triggerConfig&gt;, may be null */
+        String trigCfgName;
+        /** "hub" attribute and text of each &lt;domConfigList&gt; */
+        List<String[]> domConfigs = new ArrayList<String[]>();
+        /** "hubId" attribute and text of each &lt;stringHub&gt; */
+        List<String[]> stringHubs = new ArrayList<String[]>();
+    }
+
+    /**
+     * Data extracted from a single &lt;triggerConfig&gt; entry.
+     */
+    static class TriggerData
+    {
+        String name;
+        String type;
+        String cfgId;
+        String srcId;
+        /** Name and value of each &lt;parameterConfig&gt; */
+        List<String[]> parameters = new ArrayList<String[]>();
+        /** Type, offset, minus and plus of each &lt;readoutConfig&gt; */
+        List<String[]> readouts = new ArrayList<String[]>();
+    }
+
+    /**
+     * Advance to the next child of the current element, ignoring any
+     * text, comments, or processing instructions.
+     *
+     * @param rdr reader
+     *
+     * @return <tt>true</tt> if the reader is at a child's start tag,
+     *         <tt>false</tt> if it is at the parent's end tag
+     */
+    private static boolean nextChild(XMLStreamReader rdr)
+        throws XMLStreamException
+    {
+        while (true) {
+            final int event = rdr.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Create a reader positioned at the document's root element.
+     */
+    private static XMLStreamReader openReader(InputStream in)
+        throws XMLStreamException
+    {
+        XMLStreamReader rdr = FACTORY.createXMLStreamReader(in);
+        while (rdr.next() != XMLStreamConstants.START_ELEMENT) {
+            // skip prolog
+        }
+        return rdr;
+    }
+
+    /**
+     * Read the run configuration file.
+     *
+     * @param file run configuration file
+     *
+     * @return extracted data
+     *
+     * @throws ConfigException if the file cannot be read
+     */
+    static RunConfigData parseRunConfig(File file)
+        throws ConfigException
+    {
+        RunConfigData data = new RunConfigData();
+
+        try {
+            InputStream in =
+                new BufferedInputStream(new FileInputStream(file));
+            try {
+                XMLStreamReader rdr = openReader(in);
+                if (!rdr.getLocalName().equals("runConfig")) {
+                    return data;
+                }
+
+                while (nextChild(rdr)) {
+                    final String name = rdr.getLocalName();
+                    if (name.equals("triggerConfig")) {
+                        final String text = readText(rdr);
+                        if (data.trigCfgName == null) {
+                            data.trigCfgName = text;
+                        }
+                    } else if (name.equals("domConfigList")) {
+                        final String hub = getAttribute(rdr, "hub");
+                        data.domConfigs.add(new String[] {
+                                hub, readText(rdr),
+                            });
+                    } else if (name.equals("stringHub")) {
+                        final String hub = getAttribute(rdr, "hubId");
+                        data.stringHubs.add(new String[] {
+                                hub, readText(rdr),
+                            });
+                    } else {
+                        skipElement(rdr);
+                    }
+                }
+
+                rdr.close();
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new ConfigException("Cannot read run configuration" +
+                                      " file \"" + file + "\"", ioe);
+        } catch (XMLStreamException xse) {
+            throw new ConfigException("Cannot read run configuration" +
+                                      " file \"" + file + "\"", xse);
+        }
+
+        return data;
+    }
+
+    /**
+     * Read the trigger configuration file.
+     *
+     * @param file trigger configuration file
+     *
+     * @return list of trigger entries
+     *
+     * @throws ConfigException if the file cannot be read
+     */
+    static List<TriggerData> parseTriggerConfig(File file)
+        throws ConfigException
+    {
+        ArrayList<TriggerData> list = new ArrayList<TriggerData>();
+
+        try {
+            InputStream in =
+                new BufferedInputStream(new FileInputStream(file));
+            try {
+                XMLStreamReader rdr = openReader(in);
+                if (!rdr.getLocalName().equals("activeTriggers")) {
+                    return list;
+                }
+
+                while (nextChild(rdr)) {
+                    if (rdr.getLocalName().equals("triggerConfig")) {
+                        list.add(parseTrigger(rdr));
+                    } else {
+                        skipElement(rdr);
+                    }
+                }
+
+                rdr.close();
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new ConfigException("Cannot read trigger configuration" +
+                                      " file \"" + file + "\"", ioe);
+        } catch (XMLStreamException xse) {
+            throw new ConfigException("Cannot read trigger configuration" +
+                                      " file \"" + file + "\"", xse);
+        }
+
+        return list;
+    }
+
+    /**
+     * Read the first occurrence of each named child element.
+     *
+     * @param rdr reader positioned at the parent's start tag
+     * @param names child element names
+     *
+     * @return array of child values (<tt>null</tt> for missing children)
+     */
+    private static String[] parseFields(XMLStreamReader rdr, String[] names)
+        throws XMLStreamException
+    {
+        String[] values = new String[names.length];
+
+        while (nextChild(rdr)) {
+            final String name = rdr.getLocalName();
+
+            int idx = -1;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    idx = i;
+                    break;
+                }
+            }
+
+            if (idx < 0) {
+                skipElement(rdr);
+            } else {
+                final String text = readText(rdr);
+                if (values[idx] == null) {
+                    values[idx] = text;
+                }
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Read a single &lt;triggerConfig&gt; entry.
+     *
+     * @param rdr reader positioned at the entry's start tag
+     *
+     * @return trigger data
+     */
+    private static TriggerData parseTrigger(XMLStreamReader rdr)
+        throws XMLStreamException
+    {
+        TriggerData td = new TriggerData();
+
+        while (nextChild(rdr)) {
+            final String name = rdr.getLocalName();
+            if (name.equals("parameterConfig")) {
+                td.parameters.add(parseFields(rdr, PARAMETER_FIELDS));
+            } else if (name.equals("readoutConfig")) {
+                td.readouts.add(parseFields(rdr, READOUT_FIELDS));
+            } else if (name.equals("triggerName")) {
+                final String text = readText(rdr);
+                if (td.name == null) {
+                    td.name = text;
+                }
+            } else if (name.equals("triggerType")) {
+                final String text = readText(rdr);
+                if (td.type == null) {
+                    td.type = text;
+                }
+            } else if (name.equals("triggerConfigId")) {
+                final String text = readText(rdr);
+                if (td.cfgId == null) {
+                    td.cfgId = text;
+                }
+            } else if (name.equals("sourceId")) {
+                final String text = readText(rdr);
+                if (td.srcId == null) {
+                    td.srcId = text;
+                }
+            } else {
+                skipElement(rdr);
+            }
+        }
+
+        return td;
+    }
+
+    /**
+     * Get an attribute value, using the DOM convention of returning an
+     * empty string for missing attributes.
+     */
+    private static String getAttribute(XMLStreamReader rdr, String name)
+    {
+        for (int i = 0; i < rdr.getAttributeCount(); i++) {
+            if (rdr.getAttributeLocalName(i).equals(name)) {
+                return rdr.getAttributeValue(i);
+            }
+        }
+
+        return "";
+    }
+
+    /**
+     * Return all the text inside the current element and leave the reader
+     * at the element's end tag.
+     *
+     * @param rdr reader positioned at a start tag
+     *
+     * @return concatenated text
+     */
+    private static String readText(XMLStreamReader rdr)
+        throws XMLStreamException
+    {
+        StringBuilder buf = new StringBuilder();
+
+        int depth = 1;
+        while (depth > 0) {
+            switch (rdr.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                buf.append(rdr.getText());
+                break;
+            default:
+                break;
+            }
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Skip the current element and leave the reader at its end tag.
+     *
+     * @param rdr reader positioned at a start tag
+     */
+    private static void skipElement(XMLStreamReader rdr)
+        throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = rdr.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
@@ -24,7 +24,6 @@ import icecube.daq.trigger.control.PayloadSubscriber;
 import icecube.daq.trigger.control.TriggerManager;
 import icecube.daq.trigger.control.TriggerThread;
 import icecube.daq.trigger.exceptions.ConfigException;
-import icecube.daq.util.DOMRegistryFactory;
 import icecube.daq.util.IDOMRegistry;
 import icecube.daq.util.LocatePDAQ;
 
@@ -47,6 +46,7 @@ class PayloadFileToSplicerBridge
     private StrandTail node;
     private PayloadFactory factory;
     private IDOMRegistry registry;
+    private HitTranscoder transcoder;
 
     PayloadFileToSplicerBridge(String name, File[] files, StrandTail node)
     {
@@ -69,6 +69,56 @@ class PayloadFileToSplicerBridge
     void setDOMRegistry(IDOMRegistry registry)
     {
         this.registry = registry;
+
+        if (registry == null) {
+            transcoder = null;
+        } else {
+            transcoder = new HitTranscoder(DOMChannelTable.getTable(registry),
+                                           getName() + ": ");
+        }
+    }
+
+    /**
+     * Build a simple hit straight from the bytes of a DOM hit record.
+     *
+     * @param buf DOM hit record
+     *
+     * @return <tt>null</tt> if the record must be converted by the
+     *         payload classes
+     *
+     * @throws IOException if the simple hit cannot be loaded
+     */
+    private IPayload transcodeHit(ByteBuffer buf)
+        throws IOException
+    {
+        if (transcoder == null || !transcoder.isVerified() ||
+            !HitTranscoder.isSupported(buf))
+        {
+            return null;
+        }
+
+        // the bridge's factory may not have a buffer cache
+        IByteBufferCache cache = factory.getByteBufferCache();
+        ByteBuffer simpleBuf;
+        if (cache == null) {
+            simpleBuf = ByteBuffer.allocate(HitTranscoder.SIMPLE_HIT_LENGTH);
+        } else {
+            simpleBuf = cache.acquireBuffer(HitTranscoder.SIMPLE_HIT_LENGTH);
+        }
+        if (transcoder.transcode(buf, simpleBuf, 0, false) !=
+            HitTranscoder.SIMPLE_HIT_LENGTH)
+        {
+            if (cache != null) {
+                cache.returnBuffer(simpleBuf);
+            }
+            return null;
+        }
+
+        try {
+            return factory.getPayload(simpleBuf, 0);
+        } catch (PayloadException pe) {
+            throw new IOException("Cannot load transcoded hit", pe);
+        }
     }
 
     @Override
@@ -79,10 +129,13 @@ class PayloadFileToSplicerBridge
         if (buf.limit() == 4 && buf.getInt(0) == 4) {
             payload = TriggerManager.FLUSH_PAYLOAD;
         } else {
-            try {
-                payload = factory.getPayload(buf, 0);
-            } catch (PayloadException pe) {
-                throw new IOException("Cannot load payload", pe);
+            payload = transcodeHit(buf);
+            if (payload == null) {
+                try {
+                    payload = factory.getPayload(buf, 0);
+                } catch (PayloadException pe) {
+                    throw new IOException("Cannot load payload", pe);
+                }
             }
         }
 
@@ -100,6 +153,9 @@ class PayloadFileToSplicerBridge
                 try {
                     ByteBuffer simpleBuf =
                         domHit.getHitBuffer(cache, registry);
+                    if (transcoder != null) {
+                        transcoder.check(buf, domHit, simpleBuf);
+                    }
                     simple = factory.getPayload(simpleBuf, 0);
                 } catch (PayloadException pe) {
                     simpleEx = pe;
@@ -119,11 +175,22 @@ class PayloadFileToSplicerBridge
             payload = simple;
         }
 
+        FlightRecording.SplicerPush evt = new FlightRecording.SplicerPush();
+        evt.begin();
+
         try {
             node.push(payload);
         } catch (SplicerException se) {
             throw new IOException("Cannot push payload", se);
         }
+
+        evt.end();
+        if (evt.shouldCommit()) {
+            evt.bridge = getName();
+            evt.payloadType = payload.getPayloadType();
+            evt.utcTime = payload.getUTCTime();
+            evt.commit();
+        }
     }
 }
 
@@ -132,6 +199,9 @@ public class TestAlgorithm
     private static final ColoredAppender APPENDER =
         new ColoredAppender(/*org.apache.log4j.Level.ALL).setVerbose(true*/);
 
+    /** Number of log events queued by the asynchronous appender */
+    private static final int QUEUE_SIZE = ColoredAppender.DEFAULT_QUEUE_SIZE;
+
     private static final Logger LOG = Logger.getLogger(TestAlgorithm.class);
 
     private static final Level DEFAULT_LOGLEVEL = Level.ERROR;
@@ -142,6 +212,8 @@ public class TestAlgorithm
 
     private File configDir;
     private ITriggerAlgorithm oldAlgorithm;
+    private int[] revisions;
+    private ITriggerAlgorithm[] revAlgorithms;
     private ITriggerAlgorithm algorithm;
     private boolean dumpSplicer;
     private int numSrcs;
@@ -154,8 +226,17 @@ public class TestAlgorithm
     private File targetDir;
     private boolean verbose;
     private boolean compareOld;
+    private boolean parallelCompare;
+    private File mismatchFile;
+    private File seriesFile;
+    private File jfrFile;
+    private boolean validate;
+    private boolean contentNames;
+    private boolean reuseResults;
+    private int maxDumpChars = MismatchReporter.DEFAULT_MAX_DUMP_CHARS;
 
     private IDOMRegistry registry;
+    private MismatchReporter mismatchReporter;
 
     /**
      * Create an algorithm testing object.
@@ -214,17 +295,20 @@ public class TestAlgorithm
                                              boolean ignoreDB)
         throws IOException
     {
-        ConsumerHandler handler;
+        File outFile = getOutputFile(targetDir, runCfgName, runNumber,
+                                     numSrcs, numToSkip, numToProcess,
+                                     ignoreDB);
 
-        final int trigId = algorithm.getTriggerConfigId();
-        final String name = HashedFileName.getName(runCfgName,
-                                                   algorithm.getSourceId(),
-                                                   runNumber, trigId, numSrcs,
-                                                   numToSkip, numToProcess,
-                                                   ignoreDB);
-        File outFile = new File(targetDir, name);
+        ConsumerHandler handler;
         if (outFile.exists()) {
-            handler = new CompareHandler(outFile);
+            if (mismatchFile != null) {
+                mismatchReporter =
+                    new MismatchReporter(mismatchFile, maxDumpChars);
+            } else {
+                mismatchReporter = new MismatchReporter(maxDumpChars);
+            }
+
+            handler = new CompareHandler(outFile, mismatchReporter);
             System.err.println("*** Comparing output with " + outFile);
         } else {
             handler = new OutputHandler(outFile);
@@ -239,6 +323,53 @@ public class TestAlgorithm
         return consumer;
     }
 
+    /**
+     * Get the file holding (or which will hold) this run's output.
+     *
+     * @param targetDir output file directory
+     * @param runCfgName run configuration name
+     * @param runNumber run number
+     * @param numSrcs number of sources feeding in data
+     * @param numToSkip initial number of payloads to skip past
+     * @param numToProcess number of input payloads
+     * @param ignoreDB if <tt>true</tt> do not update the configuration hash DB
+     *
+     * @return output file (which may not exist)
+     *
+     * @throws IOException if there was a problem
+     */
+    private File getOutputFile(File targetDir, String runCfgName,
+                               int runNumber, int numSrcs, int numToSkip,
+                               int numToProcess, boolean ignoreDB)
+        throws IOException
+    {
+        final int trigId = algorithm.getTriggerConfigId();
+
+        File outFile;
+        if (!contentNames) {
+            final String name =
+                HashedFileName.getName(runCfgName, algorithm.getSourceId(),
+                                       runNumber, trigId, numSrcs, numToSkip,
+                                       numToProcess, ignoreDB);
+            outFile = new File(targetDir, name);
+        } else {
+            try {
+                outFile = HashedFileName.getContentFile(targetDir, runCfg,
+                                                        algorithm.
+                                                        getSourceId(),
+                                                        runNumber, trigId,
+                                                        numSrcs, numToSkip,
+                                                        numToProcess,
+                                                        ignoreDB);
+            } catch (ConfigException ce) {
+                throw new IOException("Cannot build content key for " +
+                                      runCfgName, ce);
+            }
+        }
+
+        return outFile;
+    }
+
     /**
      * Process command-line arguments.
      *
@@ -254,6 +385,19 @@ public class TestAlgorithm
         for (int i = 0; i < args.length; i++) {
             if (args[i].length() > 1 && args[i].charAt(0) == '-') {
                 switch(args[i].charAt(1)) {
+                case 'a':
+                    i++;
+                    if (args[i].equalsIgnoreCase("drop")) {
+                        APPENDER.setAsynchronous(QUEUE_SIZE, false);
+                    } else if (args[i].equalsIgnoreCase("block")) {
+                        APPENDER.setAsynchronous(QUEUE_SIZE, true);
+                    } else {
+                        System.err.println("Bad log policy \"" + args[i] +
+                                           "\" (should be \"drop\" or" +
+                                           " \"block\")");
+                        usage = true;
+                    }
+                    break;
                 case 'c':
                     i++;
                     runCfgName = args[i];
@@ -326,6 +470,16 @@ public class TestAlgorithm
                         break;
                     }
 
+                    break;
+                case 'K':
+                    contentNames = true;
+                    break;
+                case 'k':
+                    contentNames = true;
+                    reuseResults = true;
+                    break;
+                case 'L':
+                    LatencyTracker.setEnabled(true);
                     break;
                 case 'l':
                     i++;
@@ -358,6 +512,18 @@ public class TestAlgorithm
                         logLevel = tmpLevel;
                     }
 
+                    break;
+                case 'J':
+                    i++;
+                    jfrFile = new File(args[i]);
+                    break;
+                case 'j':
+                    i++;
+                    seriesFile = new File(args[i]);
+                    break;
+                case 'M':
+                    i++;
+                    mismatchFile = new File(args[i]);
                     break;
                 case 'n':
                     i++;
@@ -377,6 +543,34 @@ public class TestAlgorithm
                 case 'O':
                     compareOld = true;
                     break;
+                case 'P':
+                    parallelCompare = true;
+                    break;
+                case 'R':
+                    i++;
+
+                    String[] revStrs = args[i].split(",");
+                    int[] tmpRevs = new int[revStrs.length];
+                    for (int r = 0; r < revStrs.length; r++) {
+                        try {
+                            tmpRevs[r] = Integer.parseInt(revStrs[r].trim());
+                        } catch (NumberFormatException e) {
+                            System.err.println("Bad revision \"" +
+                                               revStrs[r] + "\"");
+                            usage = true;
+                            break;
+                        }
+                    }
+
+                    if (tmpRevs.length < 2) {
+                        System.err.println("Please specify at least two" +
+                                           " revisions for -R");
+                        usage = true;
+                        break;
+                    }
+
+                    revisions = tmpRevs;
+                    break;
                 case 'r':
                     i++;
 
@@ -435,9 +629,30 @@ public class TestAlgorithm
                         break;
                     }
 
+                    break;
+                case 'V':
+                    validate = true;
                     break;
                 case 'v':
                     verbose = true;
+                    break;
+                case 'X':
+                    Configuration.setStreamingParser(true);
+                    break;
+                case 'x':
+                    i++;
+
+                    int tmpDump;
+                    try {
+                        tmpDump = Integer.parseInt(args[i]);
+                        maxDumpChars = tmpDump;
+                    } catch (NumberFormatException e) {
+                        System.err.println("Bad maximum dump size \"" +
+                                           args[i] + "\"");
+                        usage = true;
+                        break;
+                    }
+
                     break;
                 default:
                     System.err.println("Unknown option '" + args[i] + "'");
@@ -472,6 +687,12 @@ public class TestAlgorithm
             usage = true;
         }
 
+        if (compareOld && revisions != null) {
+            System.err.println("Cannot compare against both the old" +
+                               " algorithm (-O) and revisions (-R)");
+            usage = true;
+        }
+
         if (targetDir == null) {
             targetDir = SimpleHitFilter.DEFAULT_HIT_DIR;
             if (!targetDir.isDirectory()) {
@@ -493,7 +714,7 @@ public class TestAlgorithm
         }
 
         try {
-            registry = DOMRegistryFactory.load(configDir);
+            registry = DOMRegistryCache.load(configDir);
         } catch (Exception ex) {
             System.err.println("Cannot load DOM registry");
             ex.printStackTrace();
@@ -562,6 +783,18 @@ public class TestAlgorithm
                     ce.printStackTrace();
                     usage = true;
                 }
+            } else if (revisions != null) {
+                revAlgorithms = new ITriggerAlgorithm[revisions.length];
+                for (int r = 0; r < revisions.length; r++) {
+                    try {
+                        revAlgorithms[r] =
+                            runCfg.getTriggerAlgorithm(configId,
+                                                       revisions[r]);
+                    } catch (ConfigException ce) {
+                        ce.printStackTrace();
+                        usage = true;
+                    }
+                }
             }
         }
 
@@ -602,20 +835,32 @@ public class TestAlgorithm
 
         if (usage) {
             String usageMsg = "java " + getClass().getName() +
+                " [-a drop|block]" +
                 " [-c runConfig]" +
                 " [-C configDir]" +
                 " [-d sourceDirectory]" +
                 " [-F maxNumberOfFailures]" +
                 " [-h numberOfSources]" +
+                " [-J flightRecordingFile]" +
+                " [-j timeSeriesFile(.csv|.jsonl)]" +
+                " [-K(eyOutputByContent)]" +
+                " [-k(eepExistingResult)]" +
+                " [-L(atencyHistograms)]" +
                 " [-l logLevel]" +
+                " [-M mismatchFile]" +
                 " [-n numberToProcess]" +
                 " [-O(ldAlgorithmCompare)]" +
+                " [-P(arallelAlgorithmCompare)]" +
+                " [-R rev,rev[,rev...]]" +
                 " [-r runNumber]" +
                 " [-S(plicerDump)]" +
                 " [-s numberToSkip]" +
                 " [-t targetDirectory]" +
                 " [-T triggerConfigID]" +
+                " [-V(alidatePayloads)]" +
                 " [-v(erbose)]" +
+                " [-x maxDumpChars]" +
+                " [-X(mlStreamingParser)]" +
                 "";
             throw new IllegalArgumentException(usageMsg);
         }
@@ -628,7 +873,8 @@ public class TestAlgorithm
     private static boolean report(TriggerThread thread,
                                   AlgorithmMonitor activity,
                                   TriggerConsumer consumer, double startSecs,
-                                  AlgorithmDeathmatch deathmatch)
+                                  AlgorithmDeathmatch deathmatch,
+                                  AlgorithmTournament tournament)
     {
         final double now = ((double) System.nanoTime()) / 1000000000.0;
 
@@ -636,27 +882,49 @@ public class TestAlgorithm
         for (AlgorithmStatistics stats : activity.getAlgorithmStatistics()) {
             System.out.println(stats.toString());
         }
+        System.out.println(DOMRegistryCache.getStatistics());
+        if (LatencyTracker.isEnabled()) {
+            System.out.println(LatencyTracker.getSummary());
+        }
+        final long numInputs = activity.getNumberOfInputPayloads();
+        System.out.println(ThreadAccounting.getSummary(numInputs));
+        if (PayloadValidation.isEnabled()) {
+            PayloadValidation.stop();
+            System.out.println(PayloadValidation.getSummary());
+        }
+        if (APPENDER.isAsynchronous()) {
+            System.out.println("Log events dropped: " +
+                               APPENDER.getNumberDropped());
+        }
 
         System.err.println("-------------------- REPORT --------------------");
-        boolean rtnval = report(consumer, deathmatch, now - startSecs);
+        boolean rtnval = report(consumer, deathmatch, tournament,
+                                now - startSecs);
         if (deathmatch != null) {
             System.out.println(deathmatch.getStats());
         }
+        if (tournament != null) {
+            System.out.println(tournament.getStats());
+        }
 
         return rtnval;
     }
 
     private static boolean report(TriggerConsumer consumer,
                                   AlgorithmDeathmatch deathmatch,
+                                  AlgorithmTournament tournament,
                                   double clockSecs)
     {
         final int numWritten, numFailed;
-        if (deathmatch == null) {
-            numWritten = consumer.getNumberWritten();
-            numFailed = consumer.getNumberFailed();
-        } else {
+        if (deathmatch != null) {
             numWritten = deathmatch.getNumberWritten();
             numFailed = deathmatch.getNumberFailed();
+        } else if (tournament != null) {
+            numWritten = tournament.getNumberWritten();
+            numFailed = tournament.getNumberFailed();
+        } else {
+            numWritten = consumer.getNumberWritten();
+            numFailed = consumer.getNumberFailed();
         }
 
         String success;
@@ -700,12 +968,43 @@ public class TestAlgorithm
         SimpleHit.setDOMRegistry(registry);
         SimplerHit.setDOMRegistry(registry);
 
+        if (reuseResults) {
+            File outFile = getOutputFile(targetDir, runCfg.getName(),
+                                         runNumber, numSrcs, numToSkip,
+                                         numToProcess, IGNORE_DB);
+            if (outFile.exists()) {
+                System.err.println("*** Reusing existing result " + outFile);
+                return true;
+            }
+        }
+
+        if (validate) {
+            PayloadValidation.start(registry);
+        }
+
         AlgorithmDeathmatch deathmatch = null;
         if (oldAlgorithm != null) {
-            deathmatch = new AlgorithmDeathmatch(algorithm, oldAlgorithm);
+            deathmatch = new AlgorithmDeathmatch(algorithm, oldAlgorithm,
+                                                 parallelCompare);
             algorithm = deathmatch;
         }
 
+        AlgorithmTournament tournament = null;
+        if (revAlgorithms != null) {
+            String[] names = new String[revisions.length];
+            for (int r = 0; r < revisions.length; r++) {
+                if (revisions[r] <= 0) {
+                    names[r] = "current";
+                } else {
+                    names[r] = "r" + revisions[r];
+                }
+            }
+
+            tournament = new AlgorithmTournament(names, revAlgorithms,
+                                                 parallelCompare);
+            algorithm = tournament;
+        }
+
         TriggerConsumer consumer =
             connectToConsumer(targetDir, runCfg.getName(), runNumber, numSrcs,
                               numToSkip, numToProcess, IGNORE_DB);
@@ -735,6 +1034,14 @@ public class TestAlgorithm
         AlgorithmMonitor activity = new AlgorithmMonitor(algorithm, bridges,
                                                          subscriber, consumer,
                                                          maxFailures);
+        TimeSeriesWriter series;
+        if (seriesFile == null) {
+            series = null;
+        } else {
+            series = new TimeSeriesWriter(seriesFile);
+            activity.setTimeSeries(series);
+        }
+
         if (LOG.isInfoEnabled()) {
             LOG.info("Waiting");
         }
@@ -761,9 +1068,20 @@ public class TestAlgorithm
         activity.waitForStasis(20, numToProcess, 3, verbose, dumpSplicer,
                                null);
 
+        if (series != null) {
+            series.close();
+        }
+
         thread.stop();
         thread.join();
 
+        if (deathmatch != null) {
+            deathmatch.stopRunners();
+        }
+        if (tournament != null) {
+            tournament.stopRunners();
+        }
+
         if (verbose) {
             System.out.println("Stopped...");
         }
@@ -777,7 +1095,11 @@ public class TestAlgorithm
         }
 
         boolean rtnval = report(thread, activity, consumer, startTime,
-                                deathmatch);
+                                deathmatch, tournament);
+
+        if (mismatchReporter != null) {
+            mismatchReporter.close();
+        }
 
         //final boolean noOutput = consumer.getNumberWritten() == 0 &&
         //    consumer.getNumberFailed() == 0;
@@ -819,7 +1141,19 @@ public class TestAlgorithm
         BasicConfigurator.configure(APPENDER);
 
         TestAlgorithm tstalgo = new TestAlgorithm(args);
-        if (!tstalgo.run()) {
+        if (tstalgo.jfrFile != null) {
+            FlightRecording.start(tstalgo.jfrFile);
+        }
+
+        boolean success;
+        try {
+            success = tstalgo.run();
+        } finally {
+            FlightRecording.stop();
+            APPENDER.close();
+        }
+
+        if (!success) {
             System.exit(1);
         }
     }
@@ -4,7 +4,6 @@ import icecube.daq.common.ANSIEscapeCode;
 import icecube.daq.payload.impl.SimpleHit;
 import icecube.daq.payload.impl.SimplerHit;
 import icecube.daq.trigger.exceptions.ConfigException;
-import icecube.daq.util.DOMRegistryFactory;
 import icecube.daq.util.IDOMRegistry;
 import icecube.daq.util.LocatePDAQ;
 
@@ -25,6 +24,9 @@ public class TestBed
     private static final ColoredAppender APPENDER =
         new ColoredAppender(/*org.apache.log4j.Level.ALL).setVerbose(true*/);
 
+    /** Number of log events queued by the asynchronous appender */
+    private static final int QUEUE_SIZE = ColoredAppender.DEFAULT_QUEUE_SIZE;
+
     private static final Level DEFAULT_LOGLEVEL = Level.ERROR;
     private static final int MAX_FAILURES = 4;
 
@@ -33,6 +35,14 @@ public class TestBed
     private boolean dumpSplicer;
     private Level logLevel = DEFAULT_LOGLEVEL;
     private File monOutFile;
+    private File seriesFile;
+    private File jfrFile;
+    private boolean validate;
+    private boolean contentNames;
+    private boolean reuseResults;
+    private boolean followHitFiles;
+    private File mismatchFile;
+    private int maxDumpChars = MismatchReporter.DEFAULT_MAX_DUMP_CHARS;
     private int numSrcs;
     private int numToProcess;
     private int numToSkip;
@@ -82,6 +92,19 @@ public class TestBed
 
             if (args[i].length() > 1 && args[i].charAt(0) == '-') {
                 switch(args[i].charAt(1)) {
+                case 'a':
+                    i++;
+                    if (args[i].equalsIgnoreCase("drop")) {
+                        APPENDER.setAsynchronous(QUEUE_SIZE, false);
+                    } else if (args[i].equalsIgnoreCase("block")) {
+                        APPENDER.setAsynchronous(QUEUE_SIZE, true);
+                    } else {
+                        System.err.println("Bad log policy \"" + args[i] +
+                                           "\" (should be \"drop\" or" +
+                                           " \"block\")");
+                        usage = true;
+                    }
+                    break;
                 case 'C':
                     i++;
                     File tmpCfgDir = new File(args[i]);
@@ -130,6 +153,9 @@ public class TestBed
                         break;
                     }
 
+                    break;
+                case 'f':
+                    followHitFiles = true;
                     break;
                 case 'h':
                     i++;
@@ -145,6 +171,16 @@ public class TestBed
                         break;
                     }
 
+                    break;
+                case 'K':
+                    contentNames = true;
+                    break;
+                case 'k':
+                    contentNames = true;
+                    reuseResults = true;
+                    break;
+                case 'L':
+                    LatencyTracker.setEnabled(true);
                     break;
                 case 'l':
                     i++;
@@ -177,6 +213,18 @@ public class TestBed
                         logLevel = tmpLevel;
                     }
 
+                    break;
+                case 'J':
+                    i++;
+                    jfrFile = new File(args[i]);
+                    break;
+                case 'j':
+                    i++;
+                    seriesFile = new File(args[i]);
+                    break;
+                case 'M':
+                    i++;
+                    mismatchFile = new File(args[i]);
                     break;
                 case 'm':
                     i++;
@@ -245,11 +293,32 @@ public class TestBed
                         targetDir = tmpTarget;
                     }
                     break;
+                case 'V':
+                    validate = true;
+                    break;
                 case 'v':
                     verbose = true;
                     break;
                 case 'w':
                     waitForInput = true;
+                    break;
+                case 'X':
+                    Configuration.setStreamingParser(true);
+                    break;
+                case 'x':
+                    i++;
+
+                    int tmpDump;
+                    try {
+                        tmpDump = Integer.parseInt(args[i]);
+                        maxDumpChars = tmpDump;
+                    } catch (NumberFormatException e) {
+                        System.err.println("Bad maximum dump size \"" +
+                                           args[i] + "\"");
+                        usage = true;
+                        break;
+                    }
+
                     break;
                 default:
                     System.err.println("Unknown option '" + args[i] + "'");
@@ -296,7 +365,7 @@ public class TestBed
         }
 
         try {
-            registry = DOMRegistryFactory.load(configDir);
+            registry = DOMRegistryCache.load(configDir);
         } catch (Exception ex) {
             System.err.println("Cannot load DOM registry");
             ex.printStackTrace();
@@ -329,6 +398,21 @@ public class TestBed
             }
         }
 
+        if (comp != null && mismatchFile != null) {
+            try {
+                comp.setMismatchReporter(new MismatchReporter(mismatchFile,
+                                                              maxDumpChars));
+            } catch (IOException ioe) {
+                System.err.println("Cannot create mismatch file \"" +
+                                   mismatchFile + "\"");
+                usage = true;
+            }
+        } else if (comp != null &&
+                   maxDumpChars != MismatchReporter.DEFAULT_MAX_DUMP_CHARS)
+        {
+            comp.setMismatchReporter(new MismatchReporter(maxDumpChars));
+        }
+
         if (runCfg != null && comp != null) {
             int maxSrcs;
             try {
@@ -356,13 +440,21 @@ public class TestBed
 
         if (usage) {
             String usageMsg = "java " + getClass().getName() +
+                " [-a drop|block]" +
                 " [-C configDir]" +
                 " [-c runConfig]" +
                 " [-D javaProperty(=value)]" +
                 " [-d sourceDirectory]" +
                 " [-F maxFailures]" +
+                " [-f(ollowGrowingHitFiles)]" +
                 " [-h numberOfSources]" +
+                " [-J flightRecordingFile]" +
+                " [-j timeSeriesFile(.csv|.jsonl)]" +
+                " [-K(eyOutputByContent)]" +
+                " [-k(eepExistingResult)]" +
+                " [-L(atencyHistograms)]" +
                 " [-l logLevel]" +
+                " [-M mismatchFile]" +
                 " [-m monitoringOutputFile]" +
                 " [-n numberToProcess]" +
                 " [-r runNumber]" +
@@ -370,8 +462,11 @@ public class TestBed
                 " [-s numberToSkip]" +
                 " [-T componentClass]" +
                 " [-t targetDirectory]" +
+                " [-V(alidatePayloads)]" +
                 " [-v(erbose)]" +
                 " [-w(aitForInput)]" +
+                " [-x maxDumpChars]" +
+                " [-X(mlStreamingParser)]" +
                 "";
 
             if (comp != null) {
@@ -400,6 +495,16 @@ public class TestBed
         if (monOutFile != null) {
             System.out.println("Monitoring: " + monOutFile);
         }
+        if (seriesFile != null) {
+            System.out.println("Time series: " + seriesFile);
+        }
+        if (jfrFile != null) {
+            System.out.println("Flight recording: " + jfrFile);
+        }
+        if (mismatchFile != null) {
+            System.out.println("Mismatches: " + mismatchFile);
+        }
+        System.out.println(DOMRegistryCache.getStatistics());
         System.out.print(ANSIEscapeCode.OFF);
         System.out.println("=====================================");
     }
@@ -432,6 +537,15 @@ public class TestBed
             }
         }
 
+        comp.setTimeSeriesFile(seriesFile);
+        comp.setContentNames(contentNames);
+        comp.setReuseResults(reuseResults);
+        comp.setFollowHitFiles(followHitFiles);
+
+        if (validate) {
+            PayloadValidation.start(registry);
+        }
+
         System.err.println("Running " + comp);
 
         boolean rtnval;
@@ -448,6 +562,16 @@ public class TestBed
             comp.destroy();
         }
 
+        if (validate) {
+            PayloadValidation.stop();
+            System.out.println(PayloadValidation.getSummary());
+        }
+
+        if (APPENDER.isAsynchronous()) {
+            System.out.println("Log events dropped: " +
+                               APPENDER.getNumberDropped());
+        }
+
         return rtnval;
     }
 
@@ -481,7 +605,19 @@ public class TestBed
         BasicConfigurator.configure(APPENDER);
 
         TestBed testbed = new TestBed(args);
-        if (!testbed.run()) {
+        if (testbed.jfrFile != null) {
+            FlightRecording.start(testbed.jfrFile);
+        }
+
+        boolean success;
+        try {
+            success = testbed.run();
+        } finally {
+            FlightRecording.stop();
+            APPENDER.close();
+        }
+
+        if (!success) {
             System.exit(1);
         }
     }
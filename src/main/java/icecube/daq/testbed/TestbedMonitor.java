@@ -0,0 +1,281 @@
+package icecube.daq.testbed;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Publish an <tt>ActivityMonitor</tt>'s state as a JMX MBean so long runs
+ * can be watched with jconsole or a scraper instead of verbose console
+ * output.
+ */
+public class TestbedMonitor
+    implements TestbedMonitorMBean
+{
+    private static final Logger LOG = Logger.getLogger(TestbedMonitor.class);
+
+    /** JMX domain for all testbed MBeans */
+    public static final String DOMAIN = "icecube.daq.testbed";
+
+    /** Minimum interval between throughput rate updates */
+    private static final long RATE_INTERVAL_NANOS = 1000000000L;
+
+    private ActivityMonitor monitor;
+    private AbstractPayloadFileListBridge[] bridges;
+    private Consumer consumer;
+
+    private ObjectName objName;
+
+    private long rateNanos;
+    private long rateInputs;
+    private long rateOutputs;
+    private double inputRate;
+    private double outputRate;
+
+    TestbedMonitor(ActivityMonitor monitor,
+                   AbstractPayloadFileListBridge[] bridges,
+                   Consumer consumer)
+    {
+        this.monitor = monitor;
+        this.bridges = bridges;
+        this.consumer = consumer;
+    }
+
+    @Override
+    public long[] getBridgeCounts()
+    {
+        long[] counts = new long[bridges.length];
+        for (int i = 0; i < bridges.length; i++) {
+            counts[i] = bridges[i].getNumberWritten();
+        }
+        return counts;
+    }
+
+    @Override
+    public long[] getBridgeLastTimes()
+    {
+        long[] times = new long[bridges.length];
+        for (int i = 0; i < bridges.length; i++) {
+            times[i] = bridges[i].getLastTime();
+        }
+        return times;
+    }
+
+    @Override
+    public String[] getBridgeNames()
+    {
+        String[] names = new String[bridges.length];
+        for (int i = 0; i < bridges.length; i++) {
+            names[i] = bridges[i].getName();
+        }
+        return names;
+    }
+
+    @Override
+    public boolean[] getBridgePaused()
+    {
+        boolean[] paused = new boolean[bridges.length];
+        for (int i = 0; i < bridges.length; i++) {
+            paused[i] = bridges[i].isPaused();
+        }
+        return paused;
+    }
+
+    @Override
+    public long getBridgeSkew()
+    {
+        long earliest = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+        for (AbstractPayloadFileListBridge bridge : bridges) {
+            final long lastTime = bridge.getLastTime();
+            if (lastTime <= 0 || lastTime == Long.MAX_VALUE) {
+                continue;
+            }
+
+            if (lastTime < earliest) {
+                earliest = lastTime;
+            }
+            if (lastTime > latest) {
+                latest = lastTime;
+            }
+        }
+
+        if (earliest == Long.MAX_VALUE) {
+            return 0L;
+        }
+
+        return latest - earliest;
+    }
+
+    @Override
+    public int getConsumerFailed()
+    {
+        return consumer.getNumberFailed();
+    }
+
+    @Override
+    public int getConsumerWritten()
+    {
+        return consumer.getNumberWritten();
+    }
+
+    @Override
+    public double getInputRate()
+    {
+        updateRates();
+        return inputRate;
+    }
+
+    private static double[] getLatencies(double percentile)
+    {
+        final int num = LatencyTracker.getNumberOfStages();
+
+        double[] values = new double[num];
+        for (int i = 0; i < num; i++) {
+            LatencyHistogram hist = LatencyTracker.getHistogram(i);
+            values[i] = hist.getValueAtPercentile(percentile) / 1000000.0;
+        }
+        return values;
+    }
+
+    @Override
+    public double[] getLatencyP50()
+    {
+        return getLatencies(50.0);
+    }
+
+    @Override
+    public double[] getLatencyP99()
+    {
+        return getLatencies(99.0);
+    }
+
+    @Override
+    public double[] getLatencyP999()
+    {
+        return getLatencies(99.9);
+    }
+
+    @Override
+    public String[] getLatencyStages()
+    {
+        String[] names = new String[LatencyTracker.getNumberOfStages()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = LatencyTracker.getStageName(i);
+        }
+        return names;
+    }
+
+    @Override
+    public String getMonitoredName()
+    {
+        return monitor.getMonitoredName();
+    }
+
+    @Override
+    public double getOutputRate()
+    {
+        updateRates();
+        return outputRate;
+    }
+
+    @Override
+    public long getProcessed()
+    {
+        return monitor.getNumberProcessed();
+    }
+
+    @Override
+    public long getQueuedInputs()
+    {
+        return monitor.getNumberOfQueuedInputs();
+    }
+
+    @Override
+    public long getQueuedOutputs()
+    {
+        return monitor.getNumberOfQueuedOutputs();
+    }
+
+    @Override
+    public long getReceived()
+    {
+        return monitor.getNumberReceived();
+    }
+
+    @Override
+    public long getSent()
+    {
+        return monitor.getNumberSent();
+    }
+
+    @Override
+    public double getThrottleLevel()
+    {
+        return monitor.getThrottleLevel();
+    }
+
+    @Override
+    public boolean isStopped()
+    {
+        return monitor.isStopped();
+    }
+
+    /**
+     * Register this MBean with the platform MBean server, replacing any
+     * MBean left over from an earlier monitor with the same name.
+     */
+    void register()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            objName = new ObjectName(DOMAIN + ":type=ActivityMonitor,name=" +
+                                     ObjectName.quote(monitor.getName()));
+            if (server.isRegistered(objName)) {
+                server.unregisterMBean(objName);
+            }
+            server.registerMBean(this, objName);
+        } catch (JMException jme) {
+            LOG.error("Cannot register testbed MBean", jme);
+            objName = null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TestbedMonitor[" + objName + "]";
+    }
+
+    /**
+     * Recompute throughput rates if enough time has passed since the
+     * last update.
+     */
+    private synchronized void updateRates()
+    {
+        final long now = System.nanoTime();
+        if (rateNanos != 0 && now - rateNanos < RATE_INTERVAL_NANOS) {
+            return;
+        }
+
+        long inputs = 0;
+        for (AbstractPayloadFileListBridge bridge : bridges) {
+            inputs += bridge.getNumberWritten();
+        }
+        final long outputs = consumer.getNumberWritten();
+
+        if (rateNanos != 0) {
+            final double secs = (now - rateNanos) / 1000000000.0;
+            inputRate = (double) (inputs - rateInputs) / secs;
+            outputRate = (double) (outputs - rateOutputs) / secs;
+        }
+
+        rateNanos = now;
+        rateInputs = inputs;
+        rateOutputs = outputs;
+    }
+}
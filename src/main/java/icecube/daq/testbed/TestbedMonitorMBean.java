@@ -0,0 +1,158 @@
+package icecube.daq.testbed;
+
+/**
+ * Live testbed metrics, visible through JMX.
+ */
+public interface TestbedMonitorMBean
+{
+    /**
+     * Get the number of payloads written by each input bridge.
+     *
+     * @return per-bridge payload counts
+     */
+    long[] getBridgeCounts();
+
+    /**
+     * Get the time of the most recent payload from each input bridge.
+     *
+     * @return per-bridge payload times (<tt>Long.MAX_VALUE</tt> once the
+     *         bridge has finished)
+     */
+    long[] getBridgeLastTimes();
+
+    /**
+     * Get the input bridge names.
+     *
+     * @return bridge names
+     */
+    String[] getBridgeNames();
+
+    /**
+     * Get the paused state of each input bridge.
+     *
+     * @return <tt>true</tt> for each paused bridge
+     */
+    boolean[] getBridgePaused();
+
+    /**
+     * Get the difference between the latest and earliest payload times
+     * of all active bridges.
+     *
+     * @return skew in DAQ ticks
+     */
+    long getBridgeSkew();
+
+    /**
+     * Get the number of output payloads which failed comparison or
+     * validation.
+     *
+     * @return number of failed payloads
+     */
+    int getConsumerFailed();
+
+    /**
+     * Get the number of output payloads consumed.
+     *
+     * @return number of consumed payloads
+     */
+    int getConsumerWritten();
+
+    /**
+     * Get the input bridge throughput over the most recent interval.
+     *
+     * @return payloads per second
+     */
+    double getInputRate();
+
+    /**
+     * Get the 50th percentile latency for each pipeline stage.
+     *
+     * @return latencies in milliseconds
+     */
+    double[] getLatencyP50();
+
+    /**
+     * Get the 99th percentile latency for each pipeline stage.
+     *
+     * @return latencies in milliseconds
+     */
+    double[] getLatencyP99();
+
+    /**
+     * Get the 99.9th percentile latency for each pipeline stage.
+     *
+     * @return latencies in milliseconds
+     */
+    double[] getLatencyP999();
+
+    /**
+     * Get the latency stage names, in the same order as the percentile
+     * arrays.
+     *
+     * @return stage names
+     */
+    String[] getLatencyStages();
+
+    /**
+     * Get the name of the monitored component or algorithm.
+     *
+     * @return name
+     */
+    String getMonitoredName();
+
+    /**
+     * Get the consumer throughput over the most recent interval.
+     *
+     * @return payloads per second
+     */
+    double getOutputRate();
+
+    /**
+     * Get the number of payloads processed.
+     *
+     * @return number of processed payloads
+     */
+    long getProcessed();
+
+    /**
+     * Get the number of queued inputs.
+     *
+     * @return input queue size
+     */
+    long getQueuedInputs();
+
+    /**
+     * Get the number of queued outputs.
+     *
+     * @return output queue size
+     */
+    long getQueuedOutputs();
+
+    /**
+     * Get the number of payloads received.
+     *
+     * @return number of received payloads
+     */
+    long getReceived();
+
+    /**
+     * Get the number of payloads sent.
+     *
+     * @return number of sent payloads
+     */
+    long getSent();
+
+    /**
+     * Get the current input throttle level.
+     *
+     * @return 0.0 (full speed) to 1.0 (stopped)
+     */
+    double getThrottleLevel();
+
+    /**
+     * Has everything stopped?
+     *
+     * @return <tt>true</tt> if input and output have stopped
+     */
+    boolean isStopped();
+}
@@ -0,0 +1,330 @@
+package icecube.daq.testbed;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Track heap allocation and CPU time for the threads which make up each
+ * stage of the testbed pipeline.
+ *
+ * Threads register themselves when they start working on a stage.  The
+ * per-thread counters are read from the JVM's <tt>ThreadMXBean</tt>, and
+ * the last values seen for a thread are kept after it exits so the final
+ * report still includes short-lived threads.  Threads which haven't
+ * registered (such as the splicer and trigger manager threads inside a
+ * wrapped component) are classified by name, and anything left over
+ * (GC, JMX, etc.) is lumped into "other".
+ */
+public abstract class ThreadAccounting
+{
+    private static final Logger LOG = Logger.getLogger(ThreadAccounting.class);
+
+    /** Input bridge threads */
+    public static final int BRIDGE = 0;
+    /** Splicer threads */
+    public static final int SPLICER = 1;
+    /** Trigger algorithm threads */
+    public static final int TRIGGER = 2;
+    /** Output consumer threads */
+    public static final int CONSUMER = 3;
+    /** Everything else */
+    public static final int OTHER = 4;
+
+    private static final String[] STAGE_NAMES = {
+        "bridge", "splicer", "trigger", "consumer", "other",
+    };
+
+    /**
+     * Lower-case thread name fragments used to classify unregistered
+     * threads, checked in order
+     */
+    private static final String[] NAME_FRAGMENTS = {
+        "splicer", "trigger", "collector",
+    };
+    /** Stage for each entry in <tt>NAME_FRAGMENTS</tt> */
+    private static final int[] NAME_STAGES = {
+        SPLICER, TRIGGER, TRIGGER,
+    };
+
+    /** Per-thread data */
+    private static class Entry
+    {
+        int stage;
+        long allocBytes;
+        long cpuNanos;
+
+        /** Values which were charged to a previous stage */
+        long baseAlloc;
+        long baseCPU;
+
+        Entry(int stage)
+        {
+            this.stage = stage;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean;
+    static {
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            try {
+                if (threadBean.isThreadAllocatedMemorySupported()) {
+                    threadBean.setThreadAllocatedMemoryEnabled(true);
+                }
+                if (threadBean.isThreadCpuTimeSupported()) {
+                    threadBean.setThreadCpuTimeEnabled(true);
+                }
+            } catch (UnsupportedOperationException uoe) {
+                LOG.error("Cannot enable thread accounting", uoe);
+            }
+        } else {
+            LOG.error("Per-thread allocation counts are not available");
+        }
+    }
+
+    /** Registered threads, indexed by thread ID */
+    private static HashMap<Long, Entry> threads = new HashMap<Long, Entry>();
+
+    /** Stage for each unregistered thread, indexed by thread ID */
+    private static HashMap<Long, Integer> named =
+        new HashMap<Long, Integer>();
+
+    /** Totals for registered threads which have exited */
+    private static long[] doneAlloc = new long[STAGE_NAMES.length];
+    private static long[] doneCPU = new long[STAGE_NAMES.length];
+
+    /**
+     * Guess the stage for an unregistered thread from its name.
+     *
+     * @param name thread name
+     *
+     * @return stage index
+     */
+    private static int classify(String name)
+    {
+        if (name != null) {
+            final String lower = name.toLowerCase();
+            for (int i = 0; i < NAME_FRAGMENTS.length; i++) {
+                if (lower.contains(NAME_FRAGMENTS[i])) {
+                    return NAME_STAGES[i];
+                }
+            }
+        }
+
+        return OTHER;
+    }
+
+    /**
+     * Get the current per-stage totals.
+     *
+     * @param alloc array which is filled with allocated bytes per stage
+     * @param cpu array which is filled with CPU nanoseconds per stage
+     */
+    private static synchronized void collect(long[] alloc, long[] cpu)
+    {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            alloc[i] = doneAlloc[i];
+            cpu[i] = doneCPU[i];
+        }
+
+        if (threadBean == null) {
+            return;
+        }
+
+        Iterator<Long> iter = threads.keySet().iterator();
+        while (iter.hasNext()) {
+            final Long id = iter.next();
+            Entry entry = threads.get(id);
+
+            if (!update(id, entry)) {
+                // thread has exited, keep the last values we saw
+                doneAlloc[entry.stage] += entry.allocBytes;
+                doneCPU[entry.stage] += entry.cpuNanos;
+                iter.remove();
+            }
+
+            alloc[entry.stage] += entry.allocBytes;
+            cpu[entry.stage] += entry.cpuNanos;
+        }
+
+        final long[] ids = threadBean.getAllThreadIds();
+        final long[] threadAlloc = threadBean.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (threads.containsKey(ids[i])) {
+                continue;
+            }
+
+            Integer stage = named.get(ids[i]);
+            if (stage == null) {
+                ThreadInfo info = threadBean.getThreadInfo(ids[i]);
+                if (info == null) {
+                    // thread has already exited
+                    continue;
+                }
+
+                stage = classify(info.getThreadName());
+                named.put(ids[i], stage);
+            }
+
+            if (threadAlloc[i] > 0) {
+                alloc[stage] += threadAlloc[i];
+            }
+
+            final long cpuTime = threadBean.getThreadCpuTime(ids[i]);
+            if (cpuTime > 0) {
+                cpu[stage] += cpuTime;
+            }
+        }
+    }
+
+    /**
+     * Write per-stage totals to the monitoring output.
+     *
+     * @param out monitoring output
+     * @param dateStr monitoring timestamp
+     * @param numPayloads number of input payloads
+     */
+    static void dumpSnapshot(PrintStream out, String dateStr,
+                             long numPayloads)
+    {
+        out.println("threads: " + dateStr + ":");
+        for (String line : format(numPayloads)) {
+            out.println("    " + line);
+        }
+        out.println();
+    }
+
+    private static String[] format(long numPayloads)
+    {
+        long[] alloc = new long[STAGE_NAMES.length];
+        long[] cpu = new long[STAGE_NAMES.length];
+        collect(alloc, cpu);
+
+        String[] lines = new String[STAGE_NAMES.length];
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            final double perAlloc, perCPU;
+            if (numPayloads <= 0) {
+                perAlloc = 0.0;
+                perCPU = 0.0;
+            } else {
+                perAlloc = (double) alloc[i] / (double) numPayloads;
+                perCPU = (double) cpu[i] / (double) numPayloads / 1000.0;
+            }
+
+            lines[i] = String.format("%s: %d bytes (%.1f/payload)," +
+                                     " %.3f cpu secs (%.3f us/payload)",
+                                     STAGE_NAMES[i], alloc[i], perAlloc,
+                                     (double) cpu[i] / 1000000000.0, perCPU);
+        }
+
+        return lines;
+    }
+
+    /**
+     * Get a summary of allocation and CPU time for every stage.
+     *
+     * @param numPayloads number of input payloads
+     *
+     * @return multi-line summary
+     */
+    public static String getSummary(long numPayloads)
+    {
+        StringBuilder buf = new StringBuilder("Thread usage (per input" +
+                                              " payload):");
+        for (String line : format(numPayloads)) {
+            buf.append("\n    ").append(line);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Add the current thread to a stage.  If the thread was already
+     * registered, it is moved to the new stage.
+     *
+     * @param stage stage index
+     */
+    static synchronized void register(int stage)
+    {
+        final long id = Thread.currentThread().getId();
+
+        Entry entry = threads.get(id);
+        if (entry == null) {
+            threads.put(id, new Entry(stage));
+        } else if (entry.stage != stage) {
+            // charge everything so far to the old stage
+            update(id, entry);
+            doneAlloc[entry.stage] += entry.allocBytes;
+            doneCPU[entry.stage] += entry.cpuNanos;
+            entry.stage = stage;
+            entry.baseAlloc += entry.allocBytes;
+            entry.baseCPU += entry.cpuNanos;
+            entry.allocBytes = 0;
+            entry.cpuNanos = 0;
+        }
+    }
+
+    /**
+     * Forget all threads and totals.
+     */
+    public static synchronized void reset()
+    {
+        threads.clear();
+        named.clear();
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            doneAlloc[i] = 0;
+            doneCPU[i] = 0;
+        }
+    }
+
+    /**
+     * Record the final values for the current thread.  This should be
+     * called just before a registered thread exits.
+     */
+    static synchronized void unregister()
+    {
+        final long id = Thread.currentThread().getId();
+
+        Entry entry = threads.remove(id);
+        if (entry != null) {
+            update(id, entry);
+            doneAlloc[entry.stage] += entry.allocBytes;
+            doneCPU[entry.stage] += entry.cpuNanos;
+        }
+    }
+
+    /**
+     * Read the latest values for a thread.
+     *
+     * @param id thread ID
+     * @param entry thread data
+     *
+     * @return <tt>false</tt> if the thread no longer exists
+     */
+    private static boolean update(long id, Entry entry)
+    {
+        if (threadBean == null) {
+            return true;
+        }
+
+        final long alloc = threadBean.getThreadAllocatedBytes(id);
+        if (alloc < 0) {
+            return false;
+        }
+
+        entry.allocBytes = alloc - entry.baseAlloc;
+
+        final long cpuTime = threadBean.getThreadCpuTime(id);
+        if (cpuTime >= 0) {
+            entry.cpuNanos = cpuTime - entry.baseCPU;
+        }
+
+        return true;
+    }
+}
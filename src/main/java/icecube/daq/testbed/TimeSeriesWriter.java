@@ -0,0 +1,266 @@
+package icecube.daq.testbed;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Write <tt>ActivityMonitor</tt> samples as a machine-readable time series.
+ * Files ending in <tt>.jsonl</tt> or <tt>.json</tt> get one JSON object
+ * per line, anything else is written as CSV with a header row.
+ *
+ * Each sample carries the monotonic time since the writer was created
+ * plus the wall clock time, along with per-second rates computed over
+ * the interval since the previous sample.
+ */
+class TimeSeriesWriter
+{
+    private static final double NANOS_PER_SEC = 1000000000.0;
+
+    private File file;
+    private PrintStream out;
+    private boolean json;
+
+    private long startNanos;
+    private long prevNanos;
+    private boolean headerWritten;
+    private int numSamples;
+
+    private long[] prevHits;
+    private long[] prevBytes;
+    private long prevReceived;
+    private long prevQueuedIn;
+    private long prevProcessed;
+    private long prevQueuedOut;
+    private long prevSent;
+    private long prevWritten;
+
+    /**
+     * Create a time series writer.
+     *
+     * @param file output file
+     *
+     * @throws FileNotFoundException if the file cannot be created
+     */
+    TimeSeriesWriter(File file)
+        throws FileNotFoundException
+    {
+        this.file = file;
+
+        final String name = file.getName();
+        json = name.endsWith(".jsonl") || name.endsWith(".json");
+
+        out = new PrintStream(file);
+
+        startNanos = System.nanoTime();
+        prevNanos = startNanos;
+    }
+
+    /**
+     * Close the output file.
+     */
+    void close()
+    {
+        out.close();
+    }
+
+    /**
+     * Make a bridge name safe for use as a CSV column or JSON key.
+     */
+    private static String columnName(AbstractPayloadFileListBridge bridge,
+                                     int index)
+    {
+        final String name = bridge.getName();
+        if (name == null || name.length() == 0) {
+            return "bridge" + index;
+        }
+
+        return name.replaceAll("[^A-Za-z0-9_#-]", "_");
+    }
+
+    /**
+     * Get the number of samples written.
+     *
+     * @return number of samples
+     */
+    int getNumberOfSamples()
+    {
+        return numSamples;
+    }
+
+    private static double rate(long delta, double secs)
+    {
+        if (secs <= 0.0) {
+            return 0.0;
+        }
+
+        return (double) delta / secs;
+    }
+
+    /**
+     * Write one sample.
+     *
+     * @param mon activity monitor
+     * @param bridges input bridges
+     * @param written number of payloads written by the consumer
+     */
+    void sample(ActivityMonitor mon, AbstractPayloadFileListBridge[] bridges,
+                long written)
+    {
+        final long now = System.nanoTime();
+        final long wallMillis = System.currentTimeMillis();
+
+        final int numBridges = (bridges == null ? 0 : bridges.length);
+        if (prevHits == null) {
+            prevHits = new long[numBridges];
+            prevBytes = new long[numBridges];
+        }
+
+        if (!json && !headerWritten) {
+            writeCSVHeader(bridges);
+        }
+        headerWritten = true;
+
+        final double elapsed = (now - startNanos) / NANOS_PER_SEC;
+        final double secs = (now - prevNanos) / NANOS_PER_SEC;
+
+        final Runtime rt = Runtime.getRuntime();
+        final long heapUsed = rt.totalMemory() - rt.freeMemory();
+        final long heapMax = rt.maxMemory();
+
+        long totHits = 0;
+        long totBytes = 0;
+        double[] hitRates = new double[numBridges];
+        double[] byteRates = new double[numBridges];
+        for (int i = 0; i < numBridges; i++) {
+            final long hits = bridges[i].getNumberWritten();
+            final long bytes = bridges[i].getNumberOfBytesWritten();
+
+            hitRates[i] = rate(hits - prevHits[i], secs);
+            byteRates[i] = rate(bytes - prevBytes[i], secs);
+
+            totHits += hits - prevHits[i];
+            totBytes += bytes - prevBytes[i];
+
+            prevHits[i] = hits;
+            prevBytes[i] = bytes;
+        }
+
+        final long received = mon.getNumberReceived();
+        final long queuedIn = mon.getNumberOfQueuedInputs();
+        final long processed = mon.getNumberProcessed();
+        final long queuedOut = mon.getNumberOfQueuedOutputs();
+        final long sent = mon.getNumberSent();
+
+        StringBuilder buf = new StringBuilder();
+        if (json) {
+            buf.append("{\"elapsed\":").append(format(elapsed)).
+                append(",\"wallMillis\":").append(wallMillis).
+                append(",\"interval\":").append(format(secs)).
+                append(",\"bridges\":{");
+            for (int i = 0; i < numBridges; i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                buf.append('"').append(columnName(bridges[i], i)).
+                    append("\":{\"hitsPerSec\":").
+                    append(format(hitRates[i])).
+                    append(",\"bytesPerSec\":").
+                    append(format(byteRates[i])).append('}');
+            }
+            buf.append("},\"hitsPerSec\":").
+                append(format(rate(totHits, secs))).
+                append(",\"bytesPerSec\":").
+                append(format(rate(totBytes, secs))).
+                append(",\"received\":").append(received).
+                append(",\"receivedPerSec\":").
+                append(format(rate(received - prevReceived, secs))).
+                append(",\"queuedIn\":").append(queuedIn).
+                append(",\"queuedInGrowth\":").
+                append(format(rate(queuedIn - prevQueuedIn, secs))).
+                append(",\"processedPerSec\":").
+                append(format(rate(processed - prevProcessed, secs))).
+                append(",\"queuedOut\":").append(queuedOut).
+                append(",\"queuedOutGrowth\":").
+                append(format(rate(queuedOut - prevQueuedOut, secs))).
+                append(",\"requestsPerSec\":").
+                append(format(rate(sent - prevSent, secs))).
+                append(",\"written\":").append(written).
+                append(",\"writtenPerSec\":").
+                append(format(rate(written - prevWritten, secs))).
+                append(",\"heapUsed\":").append(heapUsed).
+                append(",\"heapMax\":").append(heapMax).
+                append('}');
+        } else {
+            buf.append(format(elapsed)).append(',').
+                append(wallMillis).append(',').
+                append(format(secs));
+            for (int i = 0; i < numBridges; i++) {
+                buf.append(',').append(format(hitRates[i])).
+                    append(',').append(format(byteRates[i]));
+            }
+            buf.append(',').append(format(rate(totHits, secs))).
+                append(',').append(format(rate(totBytes, secs))).
+                append(',').append(received).
+                append(',').
+                append(format(rate(received - prevReceived, secs))).
+                append(',').append(queuedIn).
+                append(',').
+                append(format(rate(queuedIn - prevQueuedIn, secs))).
+                append(',').
+                append(format(rate(processed - prevProcessed, secs))).
+                append(',').append(queuedOut).
+                append(',').
+                append(format(rate(queuedOut - prevQueuedOut, secs))).
+                append(',').append(format(rate(sent - prevSent, secs))).
+                append(',').append(written).
+                append(',').
+                append(format(rate(written - prevWritten, secs))).
+                append(',').append(heapUsed).
+                append(',').append(heapMax);
+        }
+
+        out.println(buf.toString());
+        out.flush();
+
+        prevNanos = now;
+        prevReceived = received;
+        prevQueuedIn = queuedIn;
+        prevProcessed = processed;
+        prevQueuedOut = queuedOut;
+        prevSent = sent;
+        prevWritten = written;
+
+        numSamples++;
+    }
+
+    private static String format(double val)
+    {
+        return String.format(Locale.ROOT, "%.3f", val);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TimeSeries[" + file + (json ? ",json" : ",csv") + "*" +
+            numSamples + "]";
+    }
+
+    private void writeCSVHeader(AbstractPayloadFileListBridge[] bridges)
+    {
+        StringBuilder buf = new StringBuilder("elapsed,wallMillis,interval");
+        if (bridges != null) {
+            for (int i = 0; i < bridges.length; i++) {
+                final String name = columnName(bridges[i], i);
+                buf.append(',').append(name).append(".hitsPerSec").
+                    append(',').append(name).append(".bytesPerSec");
+            }
+        }
+        buf.append(",hitsPerSec,bytesPerSec,received,receivedPerSec" +
+                   ",queuedIn,queuedInGrowth,processedPerSec" +
+                   ",queuedOut,queuedOutGrowth,requestsPerSec" +
+                   ",written,writtenPerSec,heapUsed,heapMax");
+        out.println(buf.toString());
+    }
+}
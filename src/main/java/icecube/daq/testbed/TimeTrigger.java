@@ -9,7 +9,6 @@ import icecube.daq.trigger.config.DomSetFactory;
 import icecube.daq.trigger.control.ITriggerCollector;
 import icecube.daq.trigger.exceptions.TriggerException;
 import icecube.daq.util.CodeTimer;
-import icecube.daq.util.DOMRegistryFactory;
 import icecube.daq.util.IDOMRegistry;
 import icecube.daq.util.LocatePDAQ;
 
@@ -60,7 +59,7 @@ public class TimeTrigger
 
         IDOMRegistry reg;
         try {
-            reg = DOMRegistryFactory.load(cfgDir);
+            reg = DOMRegistryCache.load(cfgDir);
         } catch (Exception ex) {
             LOG.error("Cannot load DOM registry", ex);
             return false;
@@ -169,6 +169,10 @@ public class TriggerConsumer
     @Override
     public void setChanged()
     {
+        FlightRecording.TriggerRelease evt =
+            new FlightRecording.TriggerRelease();
+        evt.begin();
+
         List<ITriggerRequestPayload> released = null;
         while (true) {
             Interval ival = algorithm.getInterval(new Interval());
@@ -176,6 +180,8 @@ public class TriggerConsumer
                 break;
             }
 
+            evt.cycles++;
+
             if (released == null) {
                 released = new ArrayList<ITriggerRequestPayload>();
             }
@@ -186,8 +192,25 @@ public class TriggerConsumer
             }
 
             numWritten += released.size();
+            evt.released += released.size();
+            if (LatencyTracker.isEnabled()) {
+                for (ITriggerRequestPayload req : released) {
+                    LatencyTracker.record(LatencyTracker.RELEASE,
+                                          req.getUTCTime());
+                }
+            }
             released.clear();
         }
+
+        if (released != null) {
+            ActivitySignal.signal();
+        }
+
+        evt.end();
+        if (evt.shouldCommit()) {
+            evt.algorithm = algorithm.getTriggerName();
+            evt.commit();
+        }
     }
 
     @Override
@@ -251,6 +274,10 @@ public class TriggerConsumer
     void write(ByteBuffer buf)
         throws IOException
     {
+        if (buf.limit() >= 16 && !Util.isStopMessage(buf)) {
+            LatencyTracker.record(LatencyTracker.CONSUMER, buf.getLong(8));
+        }
+
         try {
             handler.handle(buf);
         } catch (IOException ioe) {
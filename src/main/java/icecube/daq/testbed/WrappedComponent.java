@@ -36,6 +36,12 @@ public abstract class WrappedComponent
 
     private Pipe[] tails;
 
+    private MismatchReporter mismatchReporter;
+    private File timeSeriesFile;
+    private boolean contentNames;
+    private boolean reuseResults;
+    private boolean followHitFiles;
+
     WrappedComponent(DAQTriggerComponent comp, String prefix)
     {
         this.comp = comp;
@@ -102,7 +108,7 @@ public abstract class WrappedComponent
      * Connect to the payload consumer.
      *
      * @param targetDir output file directory (may not be needed)
-     * @param runCfgName run configuration file name
+     * @param runCfg run configuration
      * @param runNumber run number
      * @param numSrcs number of sources feeding in data
      * @param numToSkip initial number of payloads to skip past
@@ -112,7 +118,7 @@ public abstract class WrappedComponent
      *
      * @return newly created payload consumer
      */
-    private Consumer connectToConsumer(File targetDir, String runCfgName,
+    private Consumer connectToConsumer(File targetDir, Configuration runCfg,
                                        int runNumber, int numSrcs,
                                        int numToSkip, int numToProcess)
         throws IOException
@@ -128,6 +134,45 @@ public abstract class WrappedComponent
         DAQComponentOutputProcess out = comp.getWriter();
         out.addDataChannel(sinkOut, comp.getOutputCache(), getName());
 
+        File outFile = getOutputFile(targetDir, runCfg, runNumber, numSrcs,
+                                     numToSkip, numToProcess);
+
+        ConsumerHandler handler;
+        if (outFile.exists()) {
+            handler = new CompareHandler(outFile, mismatchReporter);
+            System.err.println("*** Comparing output with " + outFile);
+        } else {
+            handler = new OutputHandler(outFile);
+            System.err.println("*** Writing output to " + outFile);
+        }
+        handler.configure(comp.getAlgorithms());
+
+        ChannelConsumer consumer =
+            new ChannelConsumer(outFile.getName(), srcOut, handler);
+        consumer.start();
+
+        return consumer;
+    }
+
+    /**
+     * Get the file holding (or which will hold) this run's output.
+     *
+     * @param targetDir output file directory
+     * @param runCfg run configuration
+     * @param runNumber run number
+     * @param numSrcs number of sources feeding in data
+     * @param numToSkip initial number of payloads to skip past
+     * @param numToProcess number of input payloads
+     *
+     * @throws IOException if there was a problem
+     *
+     * @return output file (which may not exist)
+     */
+    private File getOutputFile(File targetDir, Configuration runCfg,
+                               int runNumber, int numSrcs, int numToSkip,
+                               int numToProcess)
+        throws IOException
+    {
         final int trigId;
 
         List<ITriggerAlgorithm> algorithms = comp.getAlgorithms();
@@ -140,27 +185,28 @@ public abstract class WrappedComponent
             trigId = -1;
         }
 
-        ConsumerHandler handler;
-
-        final String name = HashedFileName.getName(runCfgName, getSourceID(),
-                                                   runNumber, trigId, numSrcs,
-                                                   numToSkip, numToProcess,
-                                                   IGNORE_DB);
-        File outFile = new File(targetDir, name);
-        if (outFile.exists()) {
-            handler = new CompareHandler(outFile);
-            System.err.println("*** Comparing output with " + outFile);
+        File outFile;
+        if (!contentNames) {
+            final String name =
+                HashedFileName.getName(runCfg.getName(), getSourceID(),
+                                       runNumber, trigId, numSrcs, numToSkip,
+                                       numToProcess, IGNORE_DB);
+            outFile = new File(targetDir, name);
         } else {
-            handler = new OutputHandler(outFile);
-            System.err.println("*** Writing output to " + outFile);
+            try {
+                outFile = HashedFileName.getContentFile(targetDir, runCfg,
+                                                        getSourceID(),
+                                                        runNumber, trigId,
+                                                        numSrcs, numToSkip,
+                                                        numToProcess,
+                                                        IGNORE_DB);
+            } catch (ConfigException ce) {
+                throw new IOException("Cannot build content key for " +
+                                      runCfg.getName(), ce);
+            }
         }
-        handler.configure(algorithms);
 
-        ChannelConsumer consumer =
-            new ChannelConsumer(outFile.getName(), srcOut, handler);
-        consumer.start();
-
-        return consumer;
+        return outFile;
     }
 
     /**
@@ -211,6 +257,10 @@ public abstract class WrappedComponent
             bridge.setNumberToSkip(numToSkip);
             bridge.setMaximumPayloads(numToProcess);
             bridge.setWriteDelay(1, 10);
+            if (followHitFiles) {
+                final File lastFile = files[files.length - 1];
+                bridge.setFollow(SimpleHitFilter.getDoneMarker(lastFile));
+            }
             bridges[h] = bridge;
         }
 
@@ -256,11 +306,28 @@ public abstract class WrappedComponent
             }
 
             final int trigId = -1;
-            final String name =
-                HashedFileName.getName(cfg.getName(), subSrcId, runNum, trigId,
-                                       subSrcs, numToSkip, numToProcess,
-                                       IGNORE_DB);
-            File[] files = new File[] { new File(srcDir, name), };
+
+            File inFile;
+            if (!contentNames) {
+                final String name =
+                    HashedFileName.getName(cfg.getName(), subSrcId, runNum,
+                                           trigId, subSrcs, numToSkip,
+                                           numToProcess, IGNORE_DB);
+                inFile = new File(srcDir, name);
+            } else {
+                try {
+                    inFile = HashedFileName.getContentFile(srcDir, cfg,
+                                                           subSrcId, runNum,
+                                                           trigId, subSrcs,
+                                                           numToSkip,
+                                                           numToProcess,
+                                                           IGNORE_DB);
+                } catch (ConfigException ce) {
+                    throw new IOException("Cannot build content key for " +
+                                          cfg.getName(), ce);
+                }
+            }
+            File[] files = new File[] { inFile, };
 
             PayloadFileListBridge bridge =
                 new PayloadFileListBridge("trigOut", files, tails[i].sink());
@@ -306,6 +373,10 @@ public abstract class WrappedComponent
             System.err.println("Failed to destroy " + comp);
             dce.printStackTrace();
         }
+
+        if (mismatchReporter != null) {
+            mismatchReporter.close();
+        }
     }
 
     /**
@@ -358,6 +429,15 @@ public abstract class WrappedComponent
         comp.start(false);
         comp.configuring(runCfg.getName());
 
+        if (reuseResults) {
+            File outFile = getOutputFile(targetDir, runCfg, runNum, numSrcs,
+                                         numToSkip, numToProcess);
+            if (outFile.exists()) {
+                System.err.println("*** Reusing existing result " + outFile);
+                return true;
+            }
+        }
+
         tails = DAQTestUtil.connectToReader(comp.getReader(),
                                             comp.getInputCache(), numSrcs);
 
@@ -372,7 +452,7 @@ public abstract class WrappedComponent
         }
 
         Consumer consumer = connectToConsumer(targetDir,
-                                              runCfg.getName(), runNum,
+                                              runCfg, runNum,
                                               numSrcs, numToSkip,
                                               numToProcess);
 
@@ -419,6 +499,14 @@ public abstract class WrappedComponent
             monOut = new PrintStream(monitoringOutput);
         }
 
+        TimeSeriesWriter series;
+        if (timeSeriesFile == null) {
+            series = null;
+        } else {
+            series = new TimeSeriesWriter(timeSeriesFile);
+            activity.setTimeSeries(series);
+        }
+
         activity.waitForStasis(20, numToProcess, 2, verbose, dumpSplicer,
                                monOut);
 
@@ -447,6 +535,10 @@ public abstract class WrappedComponent
         activity.waitForStasis(20, numToProcess, 3, verbose, dumpSplicer,
                                null);
 
+        if (series != null) {
+            series.close();
+        }
+
         if (verbose) {
             System.out.println("Stopped...");
         }
@@ -459,6 +551,12 @@ public abstract class WrappedComponent
         }
 
         boolean rtnval = consumer.report(endTime - startTime);
+        if (LatencyTracker.isEnabled()) {
+            System.out.println(LatencyTracker.getSummary());
+        }
+        final long numInputs = activity.getNumberOfInputPayloads();
+        System.out.println(ThreadAccounting.getSummary(numInputs));
+        System.out.println(BufferCacheProfiler.getSummary());
 
         final boolean noOutput = consumer.getNumberWritten() == 0 &&
             consumer.getNumberFailed() == 0;
@@ -472,6 +570,63 @@ public abstract class WrappedComponent
         return rtnval;
     }
 
+    /**
+     * Set the object which reports mismatches between the expected and
+     * received trigger requests.  The reporter is closed by
+     * <tt>destroy()</tt>.
+     *
+     * @param reporter mismatch reporter
+     */
+    public void setMismatchReporter(MismatchReporter reporter)
+    {
+        mismatchReporter = reporter;
+    }
+
+    /**
+     * Name reference files by configuration content instead of run
+     * configuration name.
+     *
+     * @param val <tt>true</tt> to use content-addressed names
+     */
+    public void setContentNames(boolean val)
+    {
+        contentNames = val;
+    }
+
+    /**
+     * Skip the run if its content-addressed output file already exists,
+     * instead of regenerating the output and comparing against it.
+     * Only used with content-addressed names.
+     *
+     * @param val <tt>true</tt> to reuse existing results
+     */
+    public void setReuseResults(boolean val)
+    {
+        reuseResults = val;
+    }
+
+    /**
+     * Keep reading each hub's last simple hit file as it grows, until the
+     * writer marks it as done.
+     *
+     * @param val <tt>true</tt> to follow growing hit files
+     */
+    public void setFollowHitFiles(boolean val)
+    {
+        followHitFiles = val;
+    }
+
+    /**
+     * Set the file which receives machine-readable monitoring samples.
+     *
+     * @param file CSV (or JSON-lines if the name ends in <tt>.jsonl</tt>)
+     *             output file
+     */
+    public void setTimeSeriesFile(File file)
+    {
+        timeSeriesFile = file;
+    }
+
     /**
      * Start the file bridges.
      *